@@ -0,0 +1,15 @@
+package com.rigoni.citiesindex;
+
+import android.app.Application;
+
+import com.rigoni.citiesindex.utils.AndroidLogger;
+import com.rigoni.citiesindex.utils.Logging;
+
+public class CitiesIndexApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // The index module does not depend on Android, its messages go to logcat from here.
+        Logging.setLogger(new AndroidLogger());
+    }
+}
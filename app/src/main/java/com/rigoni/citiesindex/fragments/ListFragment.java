@@ -19,10 +19,15 @@ import android.widget.RelativeLayout;
 import com.rigoni.citiesindex.model.CitiesListViewModel;
 import com.rigoni.citiesindex.R;
 import com.rigoni.citiesindex.list.CitiesPagesListAdapter;
-import com.rigoni.citiesindex.task.UpdateListFilterTask;
+import com.rigoni.citiesindex.task.FilterQueryScheduler;
 
 
-public class ListFragment extends Fragment implements TextWatcher, UpdateListFilterTask.UpdateListFilterTaskListener {
+public class ListFragment extends Fragment implements TextWatcher, FilterQueryScheduler.FilterQueryListener {
+    /**
+     * Keystrokes closer than this are applied together.
+     */
+    private static final long FILTER_DEBOUNCE_MILLIS = 120;
+
     private RecyclerView mRecyclerView;
     private EditText mEtFilter;
     private View mFilteringLayout;
@@ -31,7 +36,7 @@ public class ListFragment extends Fragment implements TextWatcher, UpdateListFil
     private CitiesListViewModel mViewModel;
     private CitiesPagesListAdapter mAdapter;
 
-    private UpdateListFilterTask mUpdateFilterTask;
+    private FilterQueryScheduler mFilterScheduler;
 
     @Override
     public void onActivityCreated(@Nullable Bundle savedInstanceState) {
@@ -46,6 +51,7 @@ public class ListFragment extends Fragment implements TextWatcher, UpdateListFil
     @Override
     public View onCreateView(final LayoutInflater inflater, @Nullable final ViewGroup container, final Bundle savedInstanceState) {
         mViewModel = ViewModelProviders.of(this).get(CitiesListViewModel.class);
+        mFilterScheduler = new FilterQueryScheduler(mViewModel, this, FILTER_DEBOUNCE_MILLIS);
         mAdapter = new CitiesPagesListAdapter();
         mAdapter.setOnCityClickedListener((CitiesPagesListAdapter.OnCityClickedListener) getActivity());
 
@@ -66,6 +72,12 @@ public class ListFragment extends Fragment implements TextWatcher, UpdateListFil
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        mFilterScheduler.shutdown();
+        super.onDestroyView();
+    }
+
     @Override
     public void onSaveInstanceState(final Bundle outState) {
         outState.putString("filter", mEtFilter.getText().toString());
@@ -87,13 +99,11 @@ public class ListFragment extends Fragment implements TextWatcher, UpdateListFil
     }
 
     private void updateFilter(@NonNull final String filter) {
-        if (mUpdateFilterTask != null && !mUpdateFilterTask.isCancelled()) {
-            mUpdateFilterTask.cancel(true);
-        }
         if (!TextUtils.isEmpty(filter)) {
+            mFilterScheduler.schedule(filter);
+        } else {
             // We never show the full list of cities, at least one character is required.
-            mUpdateFilterTask = new UpdateListFilterTask(this, filter, mViewModel);
-            mUpdateFilterTask.execute();
+            mFilterScheduler.cancel();
         }
     }
 
@@ -0,0 +1,149 @@
+package com.rigoni.citiesindex.list;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.rigoni.citiesindex.index.IndexTreePage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the first pages of the most recent filters, so that deleting a character and typing
+ * it again, or recreating the list after a configuration change, does not read the index again.
+ * Pages are keyed by normalized filter and evicted in least recently used order once the
+ * entries they hold go over the specified amount. The cache is shared by all the data sources,
+ * see {@link #getInstance()}, and must be invalidated when the index is rebuilt.
+ * Each invalidation starts a new generation: pages read while it happened belong to the
+ * previous one, and are not stored.
+ */
+public class CitiesPageCache {
+    /**
+     * About three initial loads of the list for each of the last dozen filters.
+     */
+    private static final int SHARED_MAX_ENTRIES = 12 * 3 * CitiesPositionalDataSource.LIST_PAGE_SIZE;
+
+    private static final CitiesPageCache sInstance = new CitiesPageCache(SHARED_MAX_ENTRIES);
+
+    private final int mMaxEntries;
+
+    /**
+     * Access ordered, the eldest page is the least recently used one.
+     */
+    private final LinkedHashMap<String, IndexTreePage> mPages = new LinkedHashMap<>(16, 0.75f, true);
+    private int mEntries;
+
+    /**
+     * Incremented by each invalidation.
+     */
+    private int mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * Constructor.
+     * @param maxEntries the amount of entries the cached pages can hold altogether.
+     */
+    public CitiesPageCache(final int maxEntries) {
+        Preconditions.checkArgument(maxEntries > 0);
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * @return the cache shared by the data sources of the cities list.
+     */
+    @NonNull
+    public static CitiesPageCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Looks for the first page of a filter.
+     * @param filter the normalized filter.
+     * @param count the amount of entries the page is requested with.
+     * @return the cached page, or null if it is not cached or was loaded with a different size.
+     */
+    @Nullable
+    public synchronized IndexTreePage get(@NonNull final String filter, final int count) {
+        Preconditions.checkNotNull(filter);
+        final IndexTreePage page = mPages.get(filter);
+        final int size = page != null ? page.getEntries().size() : 0;
+        if (page != null && (size == count || (size < count && page.getContinuation() == null))) {
+            mHitCount++;
+            return page;
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * @return the current generation, to be taken before reading a page from the index and
+     * passed to {@link #put(String, IndexTreePage, int)}.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Stores the first page of a filter, replacing the one previously cached.
+     * @param filter the normalized filter.
+     * @param page the page, as returned by {@link com.rigoni.citiesindex.index.IndexTree#filterForward(String, int)}.
+     * @param generation the generation taken before reading the page, see {@link #getGeneration()}.
+     * If the cache was invalidated since, the page may come from the previous index and is dropped.
+     */
+    public synchronized void put(@NonNull final String filter, @NonNull final IndexTreePage page, final int generation) {
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkNotNull(page);
+        if (generation != mGeneration) return;
+        final int size = page.getEntries().size();
+        if (size > mMaxEntries) return;
+
+        final IndexTreePage previous = mPages.put(filter, page);
+        if (previous != null) {
+            mEntries -= previous.getEntries().size();
+        }
+        mEntries += size;
+        evict();
+    }
+
+    /**
+     * Drops all the cached pages, to be called when the index changes.
+     */
+    public synchronized void invalidate() {
+        mPages.clear();
+        mEntries = 0;
+        mGeneration++;
+    }
+
+    /**
+     * @return how many times a page was found in the cache.
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return how many times a page had to be read from the index.
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the amount of entries held by the cached pages.
+     */
+    public synchronized int getSize() {
+        return mEntries;
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, IndexTreePage>> iterator = mPages.entrySet().iterator();
+        while (mEntries > mMaxEntries && iterator.hasNext()) {
+            mEntries -= iterator.next().getValue().getEntries().size();
+            iterator.remove();
+        }
+    }
+}
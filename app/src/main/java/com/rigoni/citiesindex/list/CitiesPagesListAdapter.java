@@ -62,6 +62,9 @@ public class CitiesPagesListAdapter extends PagedListAdapter<IndexTreeEntry, Cit
         City city = (City) getItem(position);
         if (city != null) {
             holder.bindTo(city);
+        } else {
+            // A placeholder, the city is being loaded.
+            holder.clear();
         }
     }
 
@@ -74,6 +77,11 @@ public class CitiesPagesListAdapter extends PagedListAdapter<IndexTreeEntry, Cit
             mTvCityName = itemView.findViewById(R.id.tvCityName);
         }
 
+        void clear() {
+            mCity = null;
+            mTvCityName.setText(null);
+        }
+
         void bindTo(final IndexTreeEntry entry) {
             mCity = (City) entry;
             mTvCityName.setText(mCity.getName() + ", " + mCity.getCountry());
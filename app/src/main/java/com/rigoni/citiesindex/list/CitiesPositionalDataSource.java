@@ -0,0 +1,187 @@
+package com.rigoni.citiesindex.list;
+
+import android.arch.paging.PositionalDataSource;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.index.IndexTreeCancellationToken;
+import com.rigoni.citiesindex.index.IndexTreeCancelledException;
+import com.rigoni.citiesindex.index.IndexTreeEntry;
+import com.rigoni.citiesindex.index.IndexTreePage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the cities matching a filter by position. The amount of matching cities is known
+ * upfront, see {@link IndexTree#countMatching(String)}, so the list can be shown with
+ * placeholders: the scrollbar is exact and fast scrolling jumps straight to any position,
+ * loading only the pages around it.
+ * A data source serves a single list, and its filter never changes: a new one is created for
+ * each list, given the first page of the previous one. When the filter is extended, as it
+ * happens while typing, the new first page is picked from it, see
+ * {@link IndexTree#filterForwardRefining}.
+ * Loads can be cancelled with {@link #cancelLoads()} once the list they are for is not wanted
+ * anymore, they stop reading the index right away.
+ */
+public class CitiesPositionalDataSource extends PositionalDataSource<IndexTreeEntry> {
+    public static final int LIST_PAGE_SIZE = 200;
+
+    private final IndexTree mIndexTree;
+    private final CitiesPageCache mPageCache;
+    @NonNull
+    private final String mFilter;
+    @NonNull
+    private final IndexTreeCancellationToken mToken = new IndexTreeCancellationToken();
+
+    /**
+     * The first page loaded, until then the first page of the previous list, if any.
+     */
+    @Nullable
+    private IndexTreePage mFirstPage;
+
+    /**
+     * Constructor, first pages are cached in the shared {@link CitiesPageCache}.
+     * @param indexTree the {@link IndexTree} where the cities are stored.
+     * @param filter the normalized filter the cities are loaded for.
+     * @param window the first page of the previous list, read from the same index, or null.
+     */
+    public CitiesPositionalDataSource(@NonNull final IndexTree indexTree,
+                                      @NonNull final String filter,
+                                      @Nullable final IndexTreePage window) {
+        this(indexTree, filter, window, CitiesPageCache.getInstance());
+    }
+
+    /**
+     * Constructor
+     * @param indexTree the {@link IndexTree} where the cities are stored.
+     * @param filter the normalized filter the cities are loaded for.
+     * @param window the first page of the previous list, read from the same index, or null.
+     * @param pageCache where the first pages of the filters are cached.
+     */
+    public CitiesPositionalDataSource(@NonNull final IndexTree indexTree,
+                                      @NonNull final String filter,
+                                      @Nullable final IndexTreePage window,
+                                      @NonNull final CitiesPageCache pageCache) {
+        Preconditions.checkNotNull(indexTree);
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkNotNull(pageCache);
+        mIndexTree = indexTree;
+        mFilter = filter;
+        mFirstPage = window;
+        mPageCache = pageCache;
+    }
+
+    /**
+     * Cancels the loads of this data source, the running ones and the ones requested later.
+     * Can be called from any thread.
+     */
+    public void cancelLoads() {
+        mToken.cancel();
+    }
+
+    /**
+     * @return true if the loads were cancelled with {@link #cancelLoads()}.
+     */
+    public boolean isLoadingCancelled() {
+        return mToken.isCancelled();
+    }
+
+    /**
+     * @return the filter of this data source.
+     */
+    @NonNull
+    public String getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * @return the first page loaded, to be given to the data source of the next list, or the
+     * one this data source was given if it loaded none yet.
+     */
+    @Nullable
+    public synchronized IndexTreePage getFirstPage() {
+        return mFirstPage;
+    }
+
+    /**
+     * @return the position of the first city whose key is not smaller than the specified one,
+     * to be used as initial key of the list.
+     */
+    public int getPositionOf(@NonNull final String key) {
+        Preconditions.checkNotNull(key);
+        return mIndexTree.positionOf(mFilter, key);
+    }
+
+    @Override
+    public void loadInitial(@NonNull LoadInitialParams params, @NonNull LoadInitialCallback<IndexTreeEntry> callback) {
+        Preconditions.checkNotNull(params);
+        Preconditions.checkNotNull(callback);
+        int totalCount = mIndexTree.countMatching(mFilter);
+
+        // Start from the page holding the requested position, moved back if needed so that
+        // the load is not cut short by the end of the list.
+        int position = Math.max(0, Math.min(params.requestedStartPosition, totalCount - params.requestedLoadSize));
+        position -= position % params.pageSize;
+
+        List<IndexTreeEntry> entries;
+        try {
+            if (position >= totalCount) {
+                entries = new ArrayList<>();
+            } else if (position == 0) {
+                entries = loadFirstPage(params.requestedLoadSize).getEntries();
+            } else {
+                entries = mIndexTree.filterForwardAt(mFilter, position, params.requestedLoadSize, mToken).getEntries();
+            }
+        } catch (final IndexTreeCancelledException e) {
+            // Nobody is going to show this list, do not waste more time on it.
+            entries = new ArrayList<>();
+            position = 0;
+            totalCount = 0;
+        }
+        if (params.placeholdersEnabled) {
+            callback.onResult(entries, position, totalCount);
+        } else {
+            callback.onResult(entries, position);
+        }
+    }
+
+    @Override
+    public void loadRange(@NonNull LoadRangeParams params, @NonNull LoadRangeCallback<IndexTreeEntry> callback) {
+        Preconditions.checkNotNull(params);
+        Preconditions.checkNotNull(callback);
+        try {
+            callback.onResult(mIndexTree.filterForwardAt(mFilter, params.startPosition, params.loadSize, mToken).getEntries());
+        } catch (final IndexTreeCancelledException e) {
+            // The list this range belongs to has been replaced, leave it as it is.
+        }
+    }
+
+    /**
+     * Loads the first page of the filter, from the cache when possible, otherwise narrowing
+     * the first page of the previous list.
+     */
+    @NonNull
+    private IndexTreePage loadFirstPage(final int count) {
+        // Taken before reading, the index may be replaced meanwhile.
+        final int generation = mPageCache.getGeneration();
+        IndexTreePage page = mPageCache.get(mFilter, count);
+        if (page == null) {
+            final IndexTreePage window;
+            synchronized (this) {
+                window = mFirstPage;
+            }
+            // Not holding the lock while reading, the next list may ask for the first page meanwhile.
+            page = window != null
+                    ? mIndexTree.filterForwardRefining(window, mFilter, count, mToken)
+                    : mIndexTree.filterForward(mFilter, count, mToken);
+            mPageCache.put(mFilter, page, generation);
+        }
+        synchronized (this) {
+            mFirstPage = page;
+        }
+        return page;
+    }
+}
@@ -8,13 +8,20 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
 
 import com.rigoni.citiesindex.data.City;
-import com.rigoni.citiesindex.index.IndexTreeStorageFs;
+import com.rigoni.citiesindex.data.CityCodec;
+import com.rigoni.citiesindex.index.IndexTreeStorageMmap;
 import com.rigoni.citiesindex.index.IndexTree;
 import com.rigoni.citiesindex.index.IndexTreeEntry;
+import com.rigoni.citiesindex.index.IndexTreeGenerations;
+import com.rigoni.citiesindex.index.IndexTreePage;
 import com.rigoni.citiesindex.index.IndexTreeStorage;
-import com.rigoni.citiesindex.list.CitiesDataSource;
+import com.rigoni.citiesindex.index.IndexTreeStorageCache;
+import com.rigoni.citiesindex.list.CitiesPageCache;
+import com.rigoni.citiesindex.list.CitiesPositionalDataSource;
 import com.rigoni.citiesindex.utils.NameNormalizer;
 import com.rigoni.citiesindex.utils.IndexStorageUtils;
 
@@ -26,10 +33,39 @@ import java.util.concurrent.TimeUnit;
 
 
 public class CitiesListViewModel extends AndroidViewModel {
-    private IndexTree mIndexTree;
-    private CitiesDataSource mDataSource;
+    private static final String TAG = CitiesListViewModel.class.getSimpleName();
+
+    /**
+     * Decoded bins are kept around while the user types, deletes and scrolls.
+     */
+    private static final long BINS_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The published index the list reads from, replaced once a rebuild publishes a new one,
+     * see {@link IndexTreeGenerations}.
+     */
+    private volatile File mIndexDirectory;
+    private volatile IndexTree mIndexTree;
+
+    /**
+     * The data source of the current list, a new one is created for each list.
+     */
+    @Nullable
+    private volatile CitiesPositionalDataSource mDataSource;
     private PagedList<IndexTreeEntry> mPagedList;
 
+    /**
+     * Normalizes the filter at every keystroke. Filters are set on the FilterQueryWorker thread
+     * of {@link com.rigoni.citiesindex.task.FilterQueryScheduler}, but can be set from any
+     * thread, and normalizers are not thread safe, so each thread has its own.
+     */
+    private static final ThreadLocal<NameNormalizer> sNameNormalizer = new ThreadLocal<NameNormalizer>() {
+        @Override
+        protected NameNormalizer initialValue() {
+            return new NameNormalizer();
+        }
+    };
+
     private final Executor mMainThreadExecutor = new Executor() {
         private final Handler mHandler = new Handler(Looper.getMainLooper());
         @Override
@@ -49,19 +85,12 @@ public class CitiesListViewModel extends AndroidViewModel {
         super(application);
 
         // This ViewModel is backed by the IndexTree
-        if (mIndexTree == null) {
-            final File indexDirectory = IndexStorageUtils.findExistingIndex(application);
-            if (indexDirectory == null) {
-                // This is really bad and unexpected, better throw so we can notice this.
-                throw new RuntimeException("Index directory does not exist!");
-            }
-            final IndexTreeStorage storage = new IndexTreeStorageFs<City>(City.class, indexDirectory.getAbsolutePath(), false);
-            mIndexTree = new IndexTree(storage);
-        }
-
-        if (mDataSource == null) {
-            mDataSource = new CitiesDataSource(mIndexTree);
+        final File indexDirectory = IndexStorageUtils.findExistingIndex(application);
+        if (indexDirectory == null) {
+            // This is really bad and unexpected, better throw so we can notice this.
+            throw new RuntimeException("Index directory does not exist!");
         }
+        openIndex(indexDirectory);
     }
 
     /**
@@ -69,19 +98,96 @@ public class CitiesListViewModel extends AndroidViewModel {
      * @param filter the string to be used as filter.
      */
     public void setFilter(@NonNull final String filter) {
-        if (mDataSource != null && filter.equals(mDataSource.getFilter())) {
+        final CitiesPositionalDataSource dataSource = mDataSource;
+        if (dataSource != null && !dataSource.isLoadingCancelled() && !isIndexReplaced()
+                && sNameNormalizer.get().normalize(filter).equals(dataSource.getFilter())) {
             // Skip
             return;
         }
+        setFilter(filter, null);
+    }
 
-        mDataSource.setFilter(new NameNormalizer().normalize(filter));
-        mPagedList = new PagedList.Builder<>(mDataSource, CitiesDataSource.LIST_PAGE_SIZE)
+    /**
+     * Creates a new paged list using the provided filter, opened at the specified key.
+     * The list has placeholders for all the matching cities, pages are loaded around the
+     * positions being shown. This can be used to restore a scroll position or to jump to any
+     * point of the list.
+     * @param filter the string to be used as filter.
+     * @param initialKey the key of the entry to open the list at, null to open it at the beginning.
+     */
+    public void setFilter(@NonNull final String filter, @Nullable final String initialKey) {
+        final CitiesPositionalDataSource previous = mDataSource;
+        // The first page of the previous list is narrowed, unless it was read from another index.
+        final IndexTreePage window = followPublishedIndex() || previous == null ? null : previous.getFirstPage();
+        final CitiesPositionalDataSource dataSource = new CitiesPositionalDataSource(
+                mIndexTree, sNameNormalizer.get().normalize(filter), window);
+        mDataSource = dataSource;
+        if (previous != null) {
+            // Its list is being replaced.
+            previous.cancelLoads();
+        }
+        final PagedList.Config config = new PagedList.Config.Builder()
+                .setPageSize(CitiesPositionalDataSource.LIST_PAGE_SIZE)
+                .setEnablePlaceholders(true)
+                .build();
+        mPagedList = new PagedList.Builder<>(dataSource, config)
                 .setMainThreadExecutor(mMainThreadExecutor)
                 .setBackgroundThreadExecutor(mBackgroundThreadExecutor)
+                .setInitialKey(initialKey != null ? dataSource.getPositionOf(initialKey) : null)
                 .build();
     }
 
+    /**
+     * Stops the loads of the current list right away, to be called as soon as the filter
+     * changes. A list needs to be created again with {@link #setFilter(String)}.
+     */
+    public void cancelFilter() {
+        final CitiesPositionalDataSource dataSource = mDataSource;
+        if (dataSource != null) {
+            dataSource.cancelLoads();
+        }
+    }
+
+    /**
+     * Moves to the index published last, if it is not the one the list reads from. The list
+     * being shown keeps loading from the previous index until it is replaced, the previous
+     * index stays on disk until the following rebuild, so there is no moment without an index
+     * to query.
+     * @return true if the index changed, lists have to be created again.
+     */
+    private synchronized boolean followPublishedIndex() {
+        final File published = IndexStorageUtils.findExistingIndex(getApplication());
+        if (published == null || published.equals(mIndexDirectory)) return false;
+        openIndex(published);
+        // The cached pages come from the previous index.
+        CitiesPageCache.getInstance().invalidate();
+        return true;
+    }
+
+    /**
+     * @return true if an index was published after the one the list reads from.
+     */
+    private boolean isIndexReplaced() {
+        final File published = IndexStorageUtils.findExistingIndex(getApplication());
+        return published != null && !published.equals(mIndexDirectory);
+    }
+
+    private void openIndex(@NonNull final File indexDirectory) {
+        final IndexTreeStorage<City> storage = new IndexTreeStorageCache<>(
+                new IndexTreeStorageMmap<City>(new CityCodec(), indexDirectory.getAbsolutePath(), false),
+                BINS_CACHE_MAX_BYTES);
+        mIndexTree = new IndexTree(storage);
+        mIndexDirectory = indexDirectory;
+    }
+
     public PagedList<IndexTreeEntry> getList() {
         return mPagedList;
     }
+
+    @Override
+    protected void onCleared() {
+        final CitiesPageCache pageCache = CitiesPageCache.getInstance();
+        Log.d(TAG, "First pages cache hits: " + pageCache.getHitCount()
+                + ", misses: " + pageCache.getMissCount());
+    }
 }
@@ -5,6 +5,7 @@ import android.arch.lifecycle.AndroidViewModel;
 import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
 import android.arch.paging.PagedList;
+import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.NonNull;
@@ -12,18 +13,23 @@ import android.widget.Toast;
 
 import com.google.common.base.Preconditions;
 import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.data.CityCodec;
+import com.rigoni.citiesindex.data.PrebuiltIndex;
 import com.rigoni.citiesindex.index.IndexTree;
 import com.rigoni.citiesindex.index.IndexTreeEntry;
+import com.rigoni.citiesindex.index.IndexTreeGenerations;
 import com.rigoni.citiesindex.index.IndexTreeStorage;
-import com.rigoni.citiesindex.index.IndexTreeStorageFs;
-import com.rigoni.citiesindex.list.CitiesDataSource;
+import com.rigoni.citiesindex.index.IndexTreeStorageMmap;
+import com.rigoni.citiesindex.list.CitiesPageCache;
 import com.rigoni.citiesindex.task.CitiesIndexBuilderTask;
+import com.rigoni.citiesindex.task.PrebuiltIndexInstallTask;
 import com.rigoni.citiesindex.utils.IndexStorageUtils;
 import com.rigoni.citiesindex.utils.NameNormalizer;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -37,6 +43,7 @@ public class IndexBuilderViewModel extends AndroidViewModel {
             = new CitiesIndexBuilderTask.IndexBuilderTaskListener() {
         @Override
         public void onIndexCreated() {
+            CitiesPageCache.getInstance().invalidate();
             mIndexReady.setValue(true);
             mIndexInProgress.setValue(false);
             mTask = null;
@@ -69,7 +76,7 @@ public class IndexBuilderViewModel extends AndroidViewModel {
     private final MutableLiveData<Boolean> mIndexInProgress = new MutableLiveData<>();
     private final MutableLiveData<String> mIndexCreationError = new MutableLiveData<>();
 
-    private CitiesIndexBuilderTask mTask;
+    private AsyncTask<Void, ?, Void> mTask;
 
     public IndexBuilderViewModel(@NonNull final Application application) {
         super(application);
@@ -100,25 +107,49 @@ public class IndexBuilderViewModel extends AndroidViewModel {
             throw new IllegalStateException("Index creation in progress");
         }
 
-        if (Boolean.TRUE.equals(mIndexReady.getValue())) {
-            throw new IllegalStateException("An index is already present");
-        }
-
         try {
-            final File indexTreeDir = IndexStorageUtils.findIndexStorageLocation(getApplication());
-            if (indexTreeDir != null) {
-                final String indexPath = indexTreeDir.getAbsolutePath();
-                final IndexTreeStorage storage = new IndexTreeStorageFs<City>(City.class, indexPath, true);
+            // The index compiled at build time only needs to be copied.
+            final String prebuiltIndexName = PrebuiltIndex.getAssetName(citiesFileName);
+            if (Arrays.asList(getApplication().getAssets().list("")).contains(prebuiltIndexName)) {
+                installPrebuiltIndex(prebuiltIndexName);
+                return;
+            }
+
+            // A build interrupted after a checkpoint goes on where it was left, otherwise a new
+            // generation is staged next to the published index, which keeps serving meanwhile.
+            final File interruptedGeneration = IndexStorageUtils.findInterruptedIndex(getApplication());
+            final File indexRoot = interruptedGeneration != null
+                    ? interruptedGeneration.getParentFile() : IndexStorageUtils.findIndexStorageLocation(getApplication());
+            if (indexRoot != null) {
+                final IndexTreeGenerations generations = new IndexTreeGenerations(indexRoot);
+                final File generation = interruptedGeneration != null
+                        ? interruptedGeneration : generations.createStaging();
+                final IndexTreeStorage storage
+                        = new IndexTreeStorageMmap<City>(new CityCodec(), generation.getAbsolutePath(), false);
                 final IndexTree indexTree = new IndexTree(storage);
                 final InputStream inputStream = getApplication().getAssets().open(citiesFileName);
                 mIndexInProgress.setValue(true);
-                mTask = new CitiesIndexBuilderTask(inputStream, indexTree, mIndexBuilderListener);
+                mTask = new CitiesIndexBuilderTask(inputStream, indexTree, generations, generation, mIndexBuilderListener);
                 mTask.execute();
             } else {
                 mIndexCreationError.setValue("Not enough space to build the IndexTree");
             }
         } catch (final IOException e) {
-            mIndexCreationError.setValue("IOException while opening cities file: " + e.getMessage());
+            mIndexCreationError.setValue("IOException while preparing the index: " + e.getMessage());
+        }
+    }
+
+    private void installPrebuiltIndex(@NonNull final String prebuiltIndexName) throws IOException {
+        final File indexRoot = IndexStorageUtils.findIndexStorageLocation(getApplication());
+        if (indexRoot != null) {
+            final IndexTreeGenerations generations = new IndexTreeGenerations(indexRoot);
+            final File generation = generations.createStaging();
+            final InputStream inputStream = getApplication().getAssets().open(prebuiltIndexName);
+            mIndexInProgress.setValue(true);
+            mTask = new PrebuiltIndexInstallTask(inputStream, generations, generation, mIndexBuilderListener);
+            mTask.execute();
+        } else {
+            mIndexCreationError.setValue("Not enough space to install the IndexTree");
         }
     }
 
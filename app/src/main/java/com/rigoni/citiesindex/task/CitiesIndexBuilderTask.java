@@ -11,8 +11,10 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.stream.JsonReader;
 import com.rigoni.citiesindex.data.City;
 import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.index.IndexTreeGenerations;
 import com.rigoni.citiesindex.utils.StreamUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -27,45 +29,86 @@ public class CitiesIndexBuilderTask extends AsyncTask<Void, Pair<Integer, String
         void onIndexBuildCancelled();
     }
 
+    /**
+     * About as many cities as the bulk insert keeps in memory, so checkpoints barely add
+     * any sorted runs to the ones spilled anyway.
+     */
+    private static final int CHECKPOINT_INTERVAL = 20000;
+
     private IndexTree mIndexTree;
+    private IndexTreeGenerations mGenerations;
+    private File mGeneration;
     private IndexBuilderTaskListener mListener;
     private InputStream mInputStream;
     private String mTaskErrorMessage;
 
+    /**
+     * Constructor.
+     * @param inputStream the json array of the cities.
+     * @param indexTree the index being built, stored in the generation.
+     * @param generations where the generation is published once the index is built.
+     * @param generation the staging generation, see {@link IndexTreeGenerations#createStaging()}.
+     * @param listener notified on the main thread.
+     */
     public CitiesIndexBuilderTask(@NonNull final InputStream inputStream,
                                   @NonNull final IndexTree indexTree,
+                                  @NonNull final IndexTreeGenerations generations,
+                                  @NonNull final File generation,
                                   @NonNull final IndexBuilderTaskListener listener) {
         Preconditions.checkNotNull(inputStream);
         Preconditions.checkNotNull(indexTree);
+        Preconditions.checkNotNull(generations);
+        Preconditions.checkNotNull(generation);
         Preconditions.checkNotNull(listener);
 
         mInputStream = inputStream;
         mIndexTree = indexTree;
+        mGenerations = generations;
+        mGeneration = generation;
         mListener = listener;
     }
 
     @Override
     protected Void doInBackground(Void... voids) {
         try {
-            mIndexTree.initiateBulkInsert();
+            // Parsing stays on this thread, keys are computed and stored by one worker per core.
+            // A build interrupted after a checkpoint goes on from there.
+            long position = mIndexTree.resumeBulkInsert();
+            if (position < 0) {
+                mIndexTree.initiateBulkInsert(Runtime.getRuntime().availableProcessors());
+                position = 0;
+            }
 
             final JsonReader reader = new JsonReader(new InputStreamReader(mInputStream, "UTF-8"));
             final Gson gson = new GsonBuilder().create();
             reader.beginArray();
             int count = 0;
+            // The reader buffers ahead, so the position is counted in cities rather than bytes.
+            // Cities already stored are skipped without being decoded.
+            while (count < position && reader.hasNext()) {
+                reader.skipValue();
+                count++;
+            }
             while (reader.hasNext() && !isCancelled()) {
                 final City city = gson.fromJson(reader, City.class);
                 mIndexTree.addEntry(city);
                 count++;
                 publishProgress(new Pair<>(count, city.getName()));
                 if (isCancelled()) {
-                    mIndexTree.delete();
+                    // Kept, creating the index again resumes from here.
+                    mIndexTree.suspendBulkInsert(count);
                     reader.close();
                     return null;
                 }
+                if (count % CHECKPOINT_INTERVAL == 0) {
+                    mIndexTree.checkpointBulkInsert(count);
+                }
             }
             reader.close();
-            mIndexTree.finalizeBulkInsert();
+            // Checkpointed first, a finalization interrupted halfway goes on from where it was.
+            mIndexTree.finalizeBulkInsert(count);
+            // Queries move to the new index from now on.
+            mGenerations.publish(mGeneration);
         } catch (UnsupportedEncodingException ex) {
             mTaskErrorMessage = "UnsupportedEncodingException: " + ex.getMessage();
             mIndexTree.delete();
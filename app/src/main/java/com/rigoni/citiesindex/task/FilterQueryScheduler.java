@@ -0,0 +1,131 @@
+package com.rigoni.citiesindex.task;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+import com.rigoni.citiesindex.model.CitiesListViewModel;
+
+/**
+ * Applies the filter typed by the user to the CitiesListViewModel, coalescing keystrokes.
+ *
+ * <ul>
+ * <li>Only the latest filter is kept, scheduling one drops the one still waiting.</li>
+ * <li>A filter is applied once no other one is scheduled for the debounce delay.</li>
+ * <li>Filters are applied one at a time by a single worker thread, running at a higher
+ * priority than the threads loading the pages of the list.</li>
+ * <li>A filter being applied when a new one is scheduled is cancelled, and its result is
+ * dropped instead of being delivered to the listener.</li>
+ * </ul>
+ *
+ * So the time between the last keystroke and the first rows is bounded by the debounce delay
+ * plus a single query, however fast the user types. Must be used from the main thread.
+ */
+public class FilterQueryScheduler {
+    public interface FilterQueryListener {
+        void onFilterInProgress();
+        void onFilterComplete();
+    }
+
+    @NonNull
+    private final CitiesListViewModel mViewModel;
+    @NonNull
+    private final FilterQueryListener mListener;
+    private final long mDebounceMillis;
+
+    @NonNull
+    private final HandlerThread mWorkerThread;
+    @NonNull
+    private final Handler mWorkerHandler;
+    @NonNull
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Incremented each time a filter is scheduled or cancelled, results of older
+     * generations are dropped. Only changed on the main thread.
+     */
+    private volatile int mGeneration;
+
+    /**
+     * Constructor, starts the worker thread.
+     * @param viewModel the view model the filter is applied to.
+     * @param listener notified on the main thread.
+     * @param debounceMillis how long a filter waits for the following keystroke before being applied.
+     */
+    public FilterQueryScheduler(@NonNull final CitiesListViewModel viewModel,
+                                @NonNull final FilterQueryListener listener,
+                                final long debounceMillis) {
+        Preconditions.checkNotNull(viewModel);
+        Preconditions.checkNotNull(listener);
+        Preconditions.checkArgument(debounceMillis >= 0);
+        mViewModel = viewModel;
+        mListener = listener;
+        mDebounceMillis = debounceMillis;
+
+        // Ahead of the paging threads, the user is waiting for these results.
+        mWorkerThread = new HandlerThread("FilterQueryWorker", Process.THREAD_PRIORITY_FOREGROUND);
+        mWorkerThread.start();
+        mWorkerHandler = new Handler(mWorkerThread.getLooper());
+    }
+
+    /**
+     * Schedules a filter, replacing the one scheduled before.
+     * @param filter the string to be used as filter.
+     */
+    public void schedule(@NonNull final String filter) {
+        Preconditions.checkNotNull(filter);
+        final int generation = supersede();
+        mListener.onFilterInProgress();
+        mWorkerHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                apply(filter, generation);
+            }
+        }, mDebounceMillis);
+    }
+
+    /**
+     * Drops the scheduled filter and cancels the one being applied, if any.
+     */
+    public void cancel() {
+        supersede();
+    }
+
+    /**
+     * Cancels everything and stops the worker thread, the scheduler cannot be used anymore.
+     */
+    public void shutdown() {
+        supersede();
+        mWorkerThread.quit();
+    }
+
+    /**
+     * Makes the pending and running filters obsolete.
+     * @return the generation of the next filter.
+     */
+    private int supersede() {
+        mWorkerHandler.removeCallbacksAndMessages(null);
+        mMainHandler.removeCallbacksAndMessages(null);
+        mViewModel.cancelFilter();
+        return ++mGeneration;
+    }
+
+    /**
+     * Runs on the worker thread.
+     */
+    private void apply(@NonNull final String filter, final int generation) {
+        if (generation != mGeneration) return;
+        mViewModel.setFilter(filter);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // A newer filter was scheduled meanwhile, this list must not reach the adapter.
+                if (generation != mGeneration) return;
+                mListener.onFilterComplete();
+            }
+        });
+    }
+}
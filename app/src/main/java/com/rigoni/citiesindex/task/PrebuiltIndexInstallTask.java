@@ -0,0 +1,92 @@
+package com.rigoni.citiesindex.task;
+
+import android.os.AsyncTask;
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.data.CityCodec;
+import com.rigoni.citiesindex.index.IndexTreeGenerations;
+import com.rigoni.citiesindex.index.IndexTreeStorageMmap;
+import com.rigoni.citiesindex.utils.FsUtils;
+import com.rigoni.citiesindex.utils.StreamUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Installs an index compiled at build time, see {@link com.rigoni.citiesindex.data.PrebuiltIndex},
+ * in place of {@link CitiesIndexBuilderTask}: the asset is only copied into a staging generation,
+ * which is then published.
+ */
+public class PrebuiltIndexInstallTask extends AsyncTask<Void, Void, Void> {
+    private IndexTreeGenerations mGenerations;
+    private File mGeneration;
+    private CitiesIndexBuilderTask.IndexBuilderTaskListener mListener;
+    private InputStream mInputStream;
+    private String mTaskErrorMessage;
+
+    /**
+     * Constructor.
+     * @param inputStream the prebuilt index.
+     * @param generations where the generation is published once the index is installed.
+     * @param generation the staging generation, see {@link IndexTreeGenerations#createStaging()}.
+     * @param listener notified on the main thread, progress is not reported.
+     */
+    public PrebuiltIndexInstallTask(@NonNull final InputStream inputStream,
+                                    @NonNull final IndexTreeGenerations generations,
+                                    @NonNull final File generation,
+                                    @NonNull final CitiesIndexBuilderTask.IndexBuilderTaskListener listener) {
+        Preconditions.checkNotNull(inputStream);
+        Preconditions.checkNotNull(generations);
+        Preconditions.checkNotNull(generation);
+        Preconditions.checkNotNull(listener);
+
+        mInputStream = inputStream;
+        mGenerations = generations;
+        mGeneration = generation;
+        mListener = listener;
+    }
+
+    @Override
+    protected Void doInBackground(Void... voids) {
+        try {
+            IndexTreeStorageMmap.installIndexFile(mInputStream, mGeneration.getAbsolutePath());
+            if (isCancelled()) {
+                FsUtils.deleteDirectory(mGeneration);
+                return null;
+            }
+            // Opening the storage checks the header, a broken asset is never published.
+            new IndexTreeStorageMmap<City>(new CityCodec(), mGeneration.getAbsolutePath(), false);
+            mGenerations.publish(mGeneration);
+        } catch (IOException ex) {
+            mTaskErrorMessage = "IOException: " + ex.getMessage();
+            FsUtils.deleteDirectory(mGeneration);
+        } catch (RuntimeException ex) {
+            mTaskErrorMessage = "Invalid prebuilt index: " + ex.getMessage();
+            FsUtils.deleteDirectory(mGeneration);
+        } finally {
+            StreamUtils.closeInputStreamNoThrow(mInputStream);
+        }
+        return null;
+    }
+
+    @Override
+    protected void onCancelled() {
+        if (mListener != null) {
+            mListener.onIndexBuildCancelled();
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Void aVoid) {
+        if (mListener != null) {
+            if (mTaskErrorMessage != null) {
+                mListener.onIndexError(mTaskErrorMessage);
+            } else {
+                mListener.onIndexCreated();
+            }
+        }
+    }
+}
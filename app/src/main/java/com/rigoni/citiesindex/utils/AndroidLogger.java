@@ -0,0 +1,24 @@
+package com.rigoni.citiesindex.utils;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+/**
+ * Sends the messages of the index module to logcat, see {@link Logging}.
+ */
+public class AndroidLogger implements Logger {
+    @Override
+    public void info(@NonNull final String tag, @NonNull final String message) {
+        Log.i(tag, message);
+    }
+
+    @Override
+    public void warning(@NonNull final String tag, @NonNull final String message) {
+        Log.w(tag, message);
+    }
+
+    @Override
+    public void error(@NonNull final String tag, @NonNull final String message) {
+        Log.e(tag, message);
+    }
+}
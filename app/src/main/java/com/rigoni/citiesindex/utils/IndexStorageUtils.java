@@ -8,6 +8,7 @@ import android.support.annotation.Nullable;
 import android.support.v4.content.PermissionChecker;
 
 import com.google.common.base.Preconditions;
+import com.rigoni.citiesindex.index.IndexTreeGenerations;
 
 import java.io.File;
 
@@ -20,18 +21,24 @@ import static android.support.v4.content.PermissionChecker.PERMISSION_GRANTED;
 public class IndexStorageUtils {
 
     /**
-     * We need around 150 MB to build the index completely.
+     * The packed index for 200k cities is around 10 MB, while it is built the sorted runs and
+     * a temporary copy of the data need space too, and the index being replaced keeps serving
+     * queries, so we ask for around 50 MB.
      * These values are used to quickly check if the storage space on the device is enough.
      * This could be smarter, however is good enough for this sample app.
      */
-    public static final int BYTES_NEEDED_FOR_INDEX = 155140672;
-    public static final int MEGABYTES_NEEDED_FOR_INDEX = 155140672 / 1024 / 1024;
+    public static final int BYTES_NEEDED_FOR_INDEX = 52428800;
+    public static final int MEGABYTES_NEEDED_FOR_INDEX = BYTES_NEEDED_FOR_INDEX / 1024 / 1024;
 
+    /**
+     * Holds the generations of the index, see {@link IndexTreeGenerations}.
+     */
     private static final String INDEX_BASE_DIRECTORY = "cities_index";
 
     /**
-     * Looks for an existing index. The external cache directory is checked first, if no index is
-     * found then the internal cache dir is searched.
+     * Looks for the published index. The external cache directory is checked first, if no index
+     * is found then the internal cache dir is searched. Indexes still being built, or whose build
+     * was interrupted, are not considered, see {@link #findInterruptedIndex(Context)}.
      * @param context
      * @return the File representing the directory of the index, or null if the index is not found.
      */
@@ -40,26 +47,50 @@ public class IndexStorageUtils {
         Preconditions.checkNotNull(context);
 
         if (context.getExternalCacheDir() != null) {
-            final File predictedFileOnExternalStorage
-                    = new File(context.getExternalCacheDir().getAbsolutePath() + File.separator + INDEX_BASE_DIRECTORY);
-            if (predictedFileOnExternalStorage.exists()) {
-                return predictedFileOnExternalStorage;
+            final File published = getExternalGenerations(context).getPublished();
+            if (published != null) {
+                return published;
             }
         }
+        return getInternalGenerations(context).getPublished();
+    }
 
-        final File predictedFileOnInternalStorage
-                = new File(context.getCacheDir().getAbsolutePath() + File.separator + INDEX_BASE_DIRECTORY);
-        if (predictedFileOnInternalStorage.exists()) {
-            return predictedFileOnInternalStorage;
+    /**
+     * Looks for an index whose build was interrupted after a checkpoint, and can be resumed,
+     * in the same places as {@link #findExistingIndex(Context)}.
+     * @param context
+     * @return the File representing the directory of the index, or null if no build was interrupted.
+     */
+    @Nullable
+    public static File findInterruptedIndex(@NonNull final Context context) {
+        Preconditions.checkNotNull(context);
+
+        if (context.getExternalCacheDir() != null) {
+            final File interrupted = getExternalGenerations(context).getInterrupted();
+            if (interrupted != null) {
+                return interrupted;
+            }
         }
+        return getInternalGenerations(context).getInterrupted();
+    }
 
-        return null;
+    @NonNull
+    private static IndexTreeGenerations getExternalGenerations(@NonNull final Context context) {
+        return new IndexTreeGenerations(
+                new File(context.getExternalCacheDir().getAbsolutePath() + File.separator + INDEX_BASE_DIRECTORY));
+    }
+
+    @NonNull
+    private static IndexTreeGenerations getInternalGenerations(@NonNull final Context context) {
+        return new IndexTreeGenerations(
+                new File(context.getCacheDir().getAbsolutePath() + File.separator + INDEX_BASE_DIRECTORY));
     }
 
     /**
      * Search for a suitable location with enough free space to contain the full index for 200k cities.
      * @param context
-     * @return a File representing the location where the index can be built. This is located either on
+     * @return a File representing the location where the generations of the index can be built, see
+     *         {@link IndexTreeGenerations}. This is located either on
      *         the internal or external storage. This method return null if no suitable location was found.
      */
     @Nullable
@@ -0,0 +1,206 @@
+package com.rigoni.citiesindex;
+
+import com.google.gson.Gson;
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.index.IndexTreePage;
+import com.rigoni.citiesindex.index.IndexTreeStorageFs;
+import com.rigoni.citiesindex.list.CitiesPageCache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CitiesPageCacheTest {
+    private static final String[] TEST_JSON_CITIES = {
+            "{\"country\":\"US\",\"name\":\"Downs\",\"_id\":4270472,\"coord\":{\"lon\":-98.542007,\"lat\":39.498619}}",
+            "{\"country\":\"CA\",\"name\":\"Downsview\",\"_id\":5942354,\"coord\":{\"lon\":-79.48291,\"lat\":43.716808}}",
+            "{\"country\":\"GB\",\"name\":\"Downton\",\"_id\":2651019,\"coord\":{\"lon\":-2.83333,\"lat\":52.366669}}",
+            "{\"country\":\"IE\",\"name\":\"Dowra\",\"_id\":2964677,\"coord\":{\"lon\":-8.015,\"lat\":54.191109}}",
+            "{\"country\":\"BY\",\"name\":\"Dowsk\",\"_id\":628923,\"coord\":{\"lon\":30.4601,\"lat\":53.157101}}",
+            "{\"country\":\"MX\",\"name\":\"Doxey\",\"_id\":3529689,\"coord\":{\"lon\":-99.23333,\"lat\":20.08333}}",
+            "{\"country\":\"FR\",\"name\":\"Doyet\",\"_id\":3020872,\"coord\":{\"lon\":2.8,\"lat\":46.333328}}",
+            "{\"country\":\"US\",\"name\":\"Doylestown\",\"_id\":5187432,\"coord\":{\"lon\":-75.129906,\"lat\":40.310101}}"
+    };
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /**
+     * The first 3 of the 8 "do" cities, more follow.
+     */
+    private IndexTreePage mDoPage;
+
+    /**
+     * The first 2 of the 8 "do" cities.
+     */
+    private IndexTreePage mShortDoPage;
+
+    /**
+     * All the 3 "down" cities.
+     */
+    private IndexTreePage mDownPage;
+
+    /**
+     * All the 2 "doy" cities.
+     */
+    private IndexTreePage mDoyPage;
+
+    @Before
+    public void setUp() {
+        final File indexDirectory = new File(mTemporaryFolder.getRoot(), "test_index");
+        final IndexTree indexTree = new IndexTree(
+                new IndexTreeStorageFs<City>(City.class, indexDirectory.getAbsolutePath(), true));
+        final Gson gson = new Gson();
+        indexTree.initiateBulkInsert();
+        for (final String json : TEST_JSON_CITIES) {
+            indexTree.addEntry(gson.fromJson(json, City.class));
+        }
+        indexTree.finalizeBulkInsert();
+
+        mDoPage = indexTree.filterForward("do", 3);
+        mShortDoPage = indexTree.filterForward("do", 2);
+        mDownPage = indexTree.filterForward("down", 10);
+        mDoyPage = indexTree.filterForward("doy", 10);
+        assertNotNull(mDoPage.getContinuation());
+        assertNull(mDownPage.getContinuation());
+        assertNull(mDoyPage.getContinuation());
+    }
+
+    @Test
+    public void testPageOfRequestedSizeIsHit() {
+        // Given a cache holding a page
+        final CitiesPageCache cache = new CitiesPageCache(100);
+        cache.put("do", mDoPage, cache.getGeneration());
+
+        // When the page is requested with its size, or for another filter
+        final IndexTreePage page = cache.get("do", 3);
+        final IndexTreePage otherPage = cache.get("dow", 3);
+
+        // Then only the first should be found
+        assertSame(mDoPage, page);
+        assertNull(otherPage);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testShorterPageIsHitOnlyIfComplete() {
+        // Given a cache holding a page with all the matches, and one with more following
+        final CitiesPageCache cache = new CitiesPageCache(100);
+        cache.put("down", mDownPage, cache.getGeneration());
+        cache.put("do", mDoPage, cache.getGeneration());
+
+        // When the pages are requested with a bigger size
+        final IndexTreePage completePage = cache.get("down", 10);
+        final IndexTreePage cutPage = cache.get("do", 10);
+
+        // Then the page with all the matches should be found, the other one has to be read again
+        assertSame(mDownPage, completePage);
+        assertNull(cutPage);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testLongerPageIsMiss() {
+        // Given a cache holding a page
+        final CitiesPageCache cache = new CitiesPageCache(100);
+        cache.put("down", mDownPage, cache.getGeneration());
+
+        // When the page is requested with a smaller size, then it should not be found
+        assertNull(cache.get("down", 2));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPagesAreEvicted() {
+        // Given a cache full with two pages, the first one used last
+        final CitiesPageCache cache = new CitiesPageCache(6);
+        cache.put("do", mDoPage, cache.getGeneration());
+        cache.put("down", mDownPage, cache.getGeneration());
+        assertEquals(6, cache.getSize());
+        cache.get("do", 3);
+
+        // When a third page is added
+        cache.put("doy", mDoyPage, cache.getGeneration());
+
+        // Then the least recently used page should be evicted, the others kept
+        assertEquals(5, cache.getSize());
+        assertNull(cache.get("down", 10));
+        assertSame(mDoPage, cache.get("do", 3));
+        assertSame(mDoyPage, cache.get("doy", 10));
+    }
+
+    @Test
+    public void testPutReplacesPage() {
+        // Given a cache holding a page
+        final CitiesPageCache cache = new CitiesPageCache(100);
+        cache.put("do", mDoPage, cache.getGeneration());
+        cache.put("doy", mDoyPage, cache.getGeneration());
+
+        // When a page of another size is put for the same filter
+        cache.put("do", mShortDoPage, cache.getGeneration());
+
+        // Then it should replace the previous one, in the entries count as well
+        assertEquals(4, cache.getSize());
+        assertSame(mShortDoPage, cache.get("do", 2));
+        assertNull(cache.get("do", 3));
+    }
+
+    @Test
+    public void testInvalidateDropsAllPages() {
+        // Given a cache holding some pages
+        final CitiesPageCache cache = new CitiesPageCache(100);
+        cache.put("do", mDoPage, cache.getGeneration());
+        cache.put("doy", mDoyPage, cache.getGeneration());
+
+        // When the cache is invalidated
+        cache.invalidate();
+
+        // Then no page should be found anymore
+        assertEquals(0, cache.getSize());
+        assertNull(cache.get("do", 3));
+        assertNull(cache.get("doy", 10));
+    }
+
+    @Test
+    public void testPageBiggerThanCacheIsSkipped() {
+        // Given a cache too small for a page, holding a smaller one
+        final CitiesPageCache cache = new CitiesPageCache(2);
+        cache.put("doy", mDoyPage, cache.getGeneration());
+
+        // When the bigger page is put
+        cache.put("do", mDoPage, cache.getGeneration());
+
+        // Then it should not be cached, nor evict the page already there
+        assertEquals(2, cache.getSize());
+        assertNull(cache.get("do", 3));
+        assertSame(mDoyPage, cache.get("doy", 10));
+    }
+
+    @Test
+    public void testPageReadBeforeInvalidationIsDropped() {
+        // Given a page read from the index before the cache is invalidated
+        final CitiesPageCache cache = new CitiesPageCache(100);
+        final int generation = cache.getGeneration();
+        cache.invalidate();
+
+        // When the page is put afterwards, and another one read after the invalidation
+        cache.put("do", mDoPage, generation);
+        cache.put("doy", mDoyPage, cache.getGeneration());
+
+        // Then only the page read after the invalidation should be cached
+        assertEquals(2, cache.getSize());
+        assertNull(cache.get("do", 3));
+        assertSame(mDoyPage, cache.get("doy", 10));
+    }
+}
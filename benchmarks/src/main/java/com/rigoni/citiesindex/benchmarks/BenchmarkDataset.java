@@ -0,0 +1,146 @@
+package com.rigoni.citiesindex.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.data.CityCodec;
+import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.index.IndexTreeStorage;
+import com.rigoni.citiesindex.index.IndexTreeStorageFs;
+import com.rigoni.citiesindex.index.IndexTreeStorageMmap;
+import com.rigoni.citiesindex.tools.CitiesGenerator;
+import com.rigoni.citiesindex.utils.BinaryUtils;
+import com.rigoni.citiesindex.utils.FsUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The cities the benchmarks run on, the same for every benchmark and every run.
+ *
+ * The json file given by the cities.file system property is used if set, otherwise cities.count
+ * cities (200000 by default, as many as the real file) are generated from cities.seed into a
+ * temporary directory, see {@link CitiesGenerator}. The indexes are built in temporary
+ * directories as well, see {@link #createTemporaryDirectory()}.
+ */
+public final class BenchmarkDataset {
+    public static final String STORAGE_FS = "fs";
+    public static final String STORAGE_MMAP = "mmap";
+
+    private static final int DEFAULT_COUNT = 200000;
+    private static final long DEFAULT_SEED = 42;
+
+    private static File sCitiesFile;
+    private static List<City> sCities;
+
+    private BenchmarkDataset() {
+    }
+
+    /**
+     * @return the json file holding the cities, in the same format as the assets of the app.
+     */
+    public static synchronized File getCitiesFile() throws IOException {
+        if (sCitiesFile == null) {
+            final String path = System.getProperty("cities.file");
+            if (path != null) {
+                sCitiesFile = new File(path);
+            } else {
+                final File directory = createTemporaryDirectory();
+                sCitiesFile = new File(directory, "cities.json");
+                generate(sCitiesFile, Integer.getInteger("cities.count", DEFAULT_COUNT),
+                        Long.getLong("cities.seed", DEFAULT_SEED));
+            }
+        }
+        return sCitiesFile;
+    }
+
+    /**
+     * @return the cities, decoded once and kept in memory.
+     */
+    public static synchronized List<City> getCities() throws IOException {
+        if (sCities == null) {
+            sCities = readCities(getCitiesFile());
+        }
+        return sCities;
+    }
+
+    /**
+     * @return a new empty directory, deleted when the JVM exits if it is not deleted before.
+     */
+    public static File createTemporaryDirectory() throws IOException {
+        final File directory = File.createTempFile("citiesindex", ".benchmark");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory.getAbsolutePath());
+        }
+        deleteOnExit(directory);
+        return directory;
+    }
+
+    private static void deleteOnExit(final File directory) {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                FsUtils.deleteDirectory(directory);
+            }
+        });
+    }
+
+    /**
+     * @param storage {@link #STORAGE_FS} or {@link #STORAGE_MMAP}.
+     * @return a new empty storage of the specified kind in the directory.
+     */
+    public static IndexTreeStorage createStorage(final String storage, final File directory) {
+        if (STORAGE_FS.equals(storage)) {
+            return new IndexTreeStorageFs<>(City.class, directory.getAbsolutePath(), true);
+        } else if (STORAGE_MMAP.equals(storage)) {
+            return new IndexTreeStorageMmap<>(new CityCodec(), directory.getAbsolutePath(), true);
+        }
+        throw new IllegalArgumentException("Unknown storage " + storage);
+    }
+
+    /**
+     * Builds the index of the cities the same way the app does.
+     */
+    public static IndexTree buildIndex(final IndexTreeStorage storage, final List<City> cities) {
+        final IndexTree indexTree = new IndexTree(storage);
+        indexTree.initiateBulkInsert(Runtime.getRuntime().availableProcessors());
+        for (final City city : cities) {
+            indexTree.addEntry(city);
+        }
+        indexTree.finalizeBulkInsert();
+        return indexTree;
+    }
+
+    private static List<City> readCities(final File file) throws IOException {
+        final List<City> cities = new ArrayList<>();
+        final JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), BinaryUtils.UTF_8));
+        try {
+            final Gson gson = new GsonBuilder().create();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                cities.add(gson.<City>fromJson(reader, City.class));
+            }
+            reader.endArray();
+        } finally {
+            reader.close();
+        }
+        return cities;
+    }
+
+    private static void generate(final File file, final int count, final long seed) throws IOException {
+        final OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            new CitiesGenerator(seed).generate(count, outputStream);
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.rigoni.citiesindex.benchmarks;
+
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.utils.FsUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to build the whole index from the decoded cities, bulk insert included: the entries go
+ * through IndexTreeStorage.addEntryAtSubPath into the sorted runs, which are then merged into
+ * the bins. Each build starts from an empty directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuildBenchmark {
+    @Param({BenchmarkDataset.STORAGE_FS, BenchmarkDataset.STORAGE_MMAP})
+    public String storage;
+
+    private List<City> mCities;
+    private File mIndexDirectory;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        mCities = BenchmarkDataset.getCities();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        mIndexDirectory = BenchmarkDataset.createTemporaryDirectory();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        FsUtils.deleteDirectory(mIndexDirectory);
+    }
+
+    @Benchmark
+    public IndexTree build() {
+        return BenchmarkDataset.buildIndex(BenchmarkDataset.createStorage(storage, mIndexDirectory), mCities);
+    }
+}
@@ -0,0 +1,68 @@
+package com.rigoni.citiesindex.benchmarks;
+
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.utils.NameNormalizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the normalization of the names, which runs once per city at build time and
+ * on the filter at every keystroke. The names are the ones the keys are made of, normalized
+ * by a reused normalizer as the index does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NormalizerBenchmark {
+    private static final int NAMES = 4096;
+
+    private final NameNormalizer mNameNormalizer = new NameNormalizer();
+    private final StringBuilder mNormalized = new StringBuilder();
+    private String[] mNames;
+    private int mNextName;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final List<City> cities = BenchmarkDataset.getCities();
+        mNames = new String[Math.min(NAMES, cities.size())];
+        for (int i = 0; i < mNames.length; i++) {
+            final City city = cities.get(i * (cities.size() / mNames.length));
+            mNames[i] = city.getName() + ", " + city.getCountry();
+        }
+    }
+
+    @Benchmark
+    public String normalize() {
+        return mNameNormalizer.normalize(nextName());
+    }
+
+    @Benchmark
+    public StringBuilder normalizeAppending() {
+        mNormalized.setLength(0);
+        mNameNormalizer.normalize(nextName(), mNormalized);
+        return mNormalized;
+    }
+
+    private String nextName() {
+        final String name = mNames[mNextName];
+        mNextName = (mNextName + 1) % mNames.length;
+        return name;
+    }
+}
@@ -0,0 +1,100 @@
+package com.rigoni.citiesindex.benchmarks;
+
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.index.IndexTreeContinuation;
+import com.rigoni.citiesindex.index.IndexTreeEntry;
+import com.rigoni.citiesindex.index.IndexTreePage;
+import com.rigoni.citiesindex.utils.FsUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the page N of results of a broad filter, the ways a list can load it while the
+ * user scrolls: after the key of the last entry shown, as the keyed lists of the app did, from
+ * the continuation of the previous page, and at a position, as CitiesPositionalDataSource does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PagingBenchmark {
+    /**
+     * The pages scrolled past before the measured one.
+     */
+    @Param({"1", "10", "50"})
+    public int page;
+
+    @Param({"s"})
+    public String filter;
+
+    @Param({BenchmarkDataset.STORAGE_MMAP})
+    public String storage;
+
+    private File mIndexDirectory;
+    private IndexTree mIndexTree;
+    private String mPreviousEndKey;
+    private IndexTreeContinuation mContinuation;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final List<City> cities = BenchmarkDataset.getCities();
+        mIndexDirectory = BenchmarkDataset.createTemporaryDirectory();
+        mIndexTree = BenchmarkDataset.buildIndex(
+                BenchmarkDataset.createStorage(storage, mIndexDirectory), cities);
+
+        // Scroll down to the page before the measured one.
+        IndexTreePage previousPage = mIndexTree.filterForward(filter, QueryBenchmark.PAGE_SIZE);
+        for (int i = 1; i < page; i++) {
+            if (previousPage.getContinuation() == null) {
+                throw new IllegalStateException("Filter " + filter + " matches less than " + (page + 1) + " pages");
+            }
+            previousPage = mIndexTree.filterForward(previousPage.getContinuation(), QueryBenchmark.PAGE_SIZE);
+        }
+        final List<IndexTreeEntry> entries = previousPage.getEntries();
+        mPreviousEndKey = entries.get(entries.size() - 1).getIndexTreeKey();
+        mContinuation = previousPage.getContinuation();
+        if (mContinuation == null) {
+            throw new IllegalStateException("Filter " + filter + " matches less than " + (page + 1) + " pages");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FsUtils.deleteDirectory(mIndexDirectory);
+    }
+
+    @Benchmark
+    public List<IndexTreeEntry> pageAfterKey() {
+        return mIndexTree.filterForward(filter, mPreviousEndKey, QueryBenchmark.PAGE_SIZE);
+    }
+
+    @Benchmark
+    public IndexTreePage pageFromContinuation() {
+        return mIndexTree.filterForward(mContinuation, QueryBenchmark.PAGE_SIZE);
+    }
+
+    @Benchmark
+    public IndexTreePage pageAtPosition() {
+        return mIndexTree.filterForwardAt(filter, page * QueryBenchmark.PAGE_SIZE, QueryBenchmark.PAGE_SIZE);
+    }
+}
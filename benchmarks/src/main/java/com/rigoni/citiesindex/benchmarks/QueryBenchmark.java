@@ -0,0 +1,104 @@
+package com.rigoni.citiesindex.benchmarks;
+
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.index.IndexTreePage;
+import com.rigoni.citiesindex.utils.FsUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the first page of results as the user types, one benchmark per filter length.
+ * The filters are prefixes of the keys of cities picked at random, so they always match.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+    /**
+     * As many entries as the list of the app loads at once.
+     */
+    static final int PAGE_SIZE = 200;
+    private static final int FILTERS = 64;
+
+    @Param({"1", "2", "3", "4", "5", "6"})
+    public int filterLength;
+
+    @Param({BenchmarkDataset.STORAGE_MMAP})
+    public String storage;
+
+    private File mIndexDirectory;
+    private IndexTree mIndexTree;
+    private String[] mFilters;
+    private int mNextFilter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final List<City> cities = BenchmarkDataset.getCities();
+        mIndexDirectory = BenchmarkDataset.createTemporaryDirectory();
+        mIndexTree = BenchmarkDataset.buildIndex(
+                BenchmarkDataset.createStorage(storage, mIndexDirectory), cities);
+        mFilters = pickFilters(cities, filterLength);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FsUtils.deleteDirectory(mIndexDirectory);
+    }
+
+    @Benchmark
+    public IndexTreePage firstPage() {
+        final String filter = nextFilter();
+        return mIndexTree.filterForward(filter, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public int countMatching() {
+        final String filter = nextFilter();
+        return mIndexTree.countMatching(filter);
+    }
+
+    private String nextFilter() {
+        final String filter = mFilters[mNextFilter];
+        mNextFilter = (mNextFilter + 1) % mFilters.length;
+        return filter;
+    }
+
+    /**
+     * @return prefixes of the specified length of the keys of random cities, the shorter keys
+     * are skipped.
+     */
+    static String[] pickFilters(final List<City> cities, final int length) {
+        final Random random = new Random(length);
+        final String[] filters = new String[FILTERS];
+        int picked = 0;
+        while (picked < filters.length) {
+            final String key = cities.get(random.nextInt(cities.size())).getIndexTreeKey();
+            if (key.length() >= length) {
+                filters[picked++] = key.substring(0, length);
+            }
+        }
+        return filters;
+    }
+}
@@ -0,0 +1,123 @@
+package com.rigoni.citiesindex.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rigoni.citiesindex.index.IndexTreeEntry;
+import com.rigoni.citiesindex.utils.NameNormalizer;
+
+
+public class City implements IndexTreeEntry, Comparable<City> {
+    public class Coordinates {
+        private float lon;
+        private float lat;
+
+        @Override
+        public String toString() {
+            return "(Lat: " + lat + " Lon: " + lon + ")";
+        }
+    }
+
+    /**
+     * Keys are created by the workers of a bulk insert at the same time, each one reuses its own
+     * normalizer and name buffer.
+     */
+    private static final ThreadLocal<KeyBuilder> sKeyBuilder = new ThreadLocal<KeyBuilder>() {
+        @Override
+        protected KeyBuilder initialValue() {
+            return new KeyBuilder();
+        }
+    };
+
+    private String country;
+    private String name;
+    private long _id;
+    private Coordinates coord;
+
+    private String mNormalizedName;
+
+    /**
+     * Used by Gson.
+     */
+    City() {}
+
+    /**
+     * Used by {@link CityCodec} to restore a city without reflection.
+     * @param normalizedName the already known index tree key, or null to compute it when needed.
+     */
+    City(final String name, final String country, final long id, final boolean hasCoordinates,
+         final float lon, final float lat, @Nullable final String normalizedName) {
+        this.name = name;
+        this.country = country;
+        this._id = id;
+        if (hasCoordinates) {
+            coord = new Coordinates();
+            coord.lon = lon;
+            coord.lat = lat;
+        }
+        mNormalizedName = normalizedName;
+    }
+
+    @Override
+    public String toString() {
+        return _id + " " + name + " " + country + " " + coord;
+    }
+
+    @Override
+    public String getIndexTreeKey() {
+        if (mNormalizedName == null) {
+            mNormalizedName = createIndexTreeKey(name, country);
+        }
+        return mNormalizedName;
+    }
+
+    /**
+     * Also used by {@link CityJsonCodec} to find the key of a city without decoding it.
+     */
+    @NonNull
+    static String createIndexTreeKey(final String name, final String country) {
+        final KeyBuilder keyBuilder = sKeyBuilder.get();
+        final StringBuilder fullName = keyBuilder.mFullName;
+        fullName.setLength(0);
+        fullName.append(name).append(", ").append(country);
+        return keyBuilder.mNameNormalizer.normalize(fullName);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCountry() {
+        return country;
+    }
+
+    public long getId() {
+        return _id;
+    }
+
+    boolean hasCoordinates() {
+        return coord != null;
+    }
+
+    public float getLat() {
+        return (coord != null ? coord.lat : 0);
+    }
+
+    public float getLon() {
+        return (coord != null ? coord.lon : 0);
+    }
+
+    @Override
+    public int compareTo(@NonNull final City city) {
+        int compareResult = getIndexTreeKey().compareTo(city.getIndexTreeKey());
+        if (compareResult == 0) {
+            compareResult = (int) (_id - city._id);
+        }
+        return compareResult;
+    }
+
+    private static final class KeyBuilder {
+        private final NameNormalizer mNameNormalizer = new NameNormalizer();
+        private final StringBuilder mFullName = new StringBuilder();
+    }
+}
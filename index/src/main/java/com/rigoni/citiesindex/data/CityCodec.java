@@ -0,0 +1,45 @@
+package com.rigoni.citiesindex.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.rigoni.citiesindex.index.IndexTreeEntryCodec;
+import com.rigoni.citiesindex.utils.BinaryUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary codec for {@link City}.
+ *
+ * <pre>
+ * name (length prefixed UTF-8) | country (length prefixed UTF-8) | _id (varint) |
+ * flags (1 byte, bit 0 set when coordinates are present) | lon (float) | lat (float)
+ * </pre>
+ */
+public class CityCodec implements IndexTreeEntryCodec<City> {
+    private static final int FLAG_HAS_COORDINATES = 1;
+
+    @Override
+    public void write(@NonNull final DataOutput out, @NonNull final City city) throws IOException {
+        BinaryUtils.writeString(out, city.getName());
+        BinaryUtils.writeString(out, city.getCountry());
+        BinaryUtils.writeVarLong(out, city.getId());
+        out.writeByte(city.hasCoordinates() ? FLAG_HAS_COORDINATES : 0);
+        out.writeFloat(city.getLon());
+        out.writeFloat(city.getLat());
+    }
+
+    @NonNull
+    @Override
+    public City read(@NonNull final DataInput in, @Nullable final String indexTreeKey) throws IOException {
+        final String name = BinaryUtils.readString(in);
+        final String country = BinaryUtils.readString(in);
+        final long id = BinaryUtils.readVarLong(in);
+        final int flags = in.readUnsignedByte();
+        final float lon = in.readFloat();
+        final float lat = in.readFloat();
+        return new City(name, country, id, (flags & FLAG_HAS_COORDINATES) != 0, lon, lat, indexTreeKey);
+    }
+}
@@ -0,0 +1,129 @@
+package com.rigoni.citiesindex.data;
+
+import android.support.annotation.NonNull;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.rigoni.citiesindex.index.IndexTreeEntryJsonCodec;
+
+import java.io.IOException;
+
+/**
+ * Streaming json codec for {@link City}, decoding fields straight from the reader.
+ * It reads and writes the same documents Gson does, including the cached index tree key,
+ * so bins written by either can be read by the other.
+ *
+ * <pre>
+ * {"country":"..","name":"..","_id":..,"coord":{"lon":..,"lat":..},"mNormalizedName":".."}
+ * </pre>
+ */
+public class CityJsonCodec implements IndexTreeEntryJsonCodec<City> {
+    private static final String FIELD_COUNTRY = "country";
+    private static final String FIELD_NAME = "name";
+    private static final String FIELD_ID = "_id";
+    private static final String FIELD_COORDINATES = "coord";
+    private static final String FIELD_LON = "lon";
+    private static final String FIELD_LAT = "lat";
+    private static final String FIELD_KEY = "mNormalizedName";
+
+    @Override
+    public void write(@NonNull final JsonWriter out, @NonNull final City city) throws IOException {
+        out.beginObject();
+        out.name(FIELD_COUNTRY).value(city.getCountry());
+        out.name(FIELD_NAME).value(city.getName());
+        out.name(FIELD_ID).value(city.getId());
+        if (city.hasCoordinates()) {
+            // Boxed, so the shortest representation of the float is written, like Gson does.
+            out.name(FIELD_COORDINATES).beginObject();
+            out.name(FIELD_LON).value(Float.valueOf(city.getLon()));
+            out.name(FIELD_LAT).value(Float.valueOf(city.getLat()));
+            out.endObject();
+        }
+        out.name(FIELD_KEY).value(city.getIndexTreeKey());
+        out.endObject();
+    }
+
+    @NonNull
+    @Override
+    public City read(@NonNull final JsonReader in) throws IOException {
+        String country = null;
+        String name = null;
+        long id = 0;
+        boolean hasCoordinates = false;
+        float lon = 0;
+        float lat = 0;
+        String key = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            final String field = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if (FIELD_COUNTRY.equals(field)) {
+                country = in.nextString();
+            } else if (FIELD_NAME.equals(field)) {
+                name = in.nextString();
+            } else if (FIELD_ID.equals(field)) {
+                id = in.nextLong();
+            } else if (FIELD_KEY.equals(field)) {
+                key = in.nextString();
+            } else if (FIELD_COORDINATES.equals(field)) {
+                hasCoordinates = true;
+                in.beginObject();
+                while (in.hasNext()) {
+                    final String coordinate = in.nextName();
+                    if (FIELD_LON.equals(coordinate)) {
+                        lon = readFloat(in);
+                    } else if (FIELD_LAT.equals(coordinate)) {
+                        lat = readFloat(in);
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return new City(name, country, id, hasCoordinates, lon, lat, key);
+    }
+
+    /**
+     * The cached key is used when present, otherwise it is computed from name and country
+     * without creating the city.
+     */
+    @NonNull
+    @Override
+    public String readKey(@NonNull final JsonReader in) throws IOException {
+        String country = null;
+        String name = null;
+        String key = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            final String field = in.nextName();
+            if (key != null || in.peek() == JsonToken.NULL) {
+                in.skipValue();
+            } else if (FIELD_KEY.equals(field)) {
+                key = in.nextString();
+            } else if (FIELD_COUNTRY.equals(field)) {
+                country = in.nextString();
+            } else if (FIELD_NAME.equals(field)) {
+                name = in.nextString();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return key != null ? key : City.createIndexTreeKey(name, country);
+    }
+
+    /**
+     * Parsed from the literal, going through a double could round differently.
+     */
+    private static float readFloat(@NonNull final JsonReader in) throws IOException {
+        return Float.parseFloat(in.nextString());
+    }
+}
@@ -0,0 +1,29 @@
+package com.rigoni.citiesindex.data;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Indexes compiled at build time, one for each cities file found in the assets, see the
+ * compilePrebuiltIndex task in app/build.gradle. Each of them is the index file of an
+ * {@link com.rigoni.citiesindex.index.IndexTreeStorageMmap}, shipped as an asset.
+ */
+public final class PrebuiltIndex {
+    public static final String CITIES_FILE_SUFFIX = ".json";
+    public static final String INDEX_FILE_SUFFIX = ".index";
+
+    private PrebuiltIndex() {
+    }
+
+    /**
+     * @param citiesFileName the name of the cities file in the assets.
+     * @return the name of the asset holding the index of the cities file.
+     */
+    @NonNull
+    public static String getAssetName(@NonNull final String citiesFileName) {
+        Preconditions.checkNotNull(citiesFileName);
+        Preconditions.checkArgument(citiesFileName.endsWith(CITIES_FILE_SUFFIX));
+        return citiesFileName.substring(0, citiesFileName.length() - CITIES_FILE_SUFFIX.length()) + INDEX_FILE_SUFFIX;
+    }
+}
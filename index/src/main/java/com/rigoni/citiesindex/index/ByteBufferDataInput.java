@@ -0,0 +1,146 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A {@link DataInput} reading from a {@link ByteBuffer}, heap or memory mapped.
+ * Codecs can then decode entries without caring where the bytes come from.
+ */
+class ByteBufferDataInput implements DataInput {
+    private final ByteBuffer mBuffer;
+
+    /**
+     * @param buffer the buffer to read from, reading starts at its current position.
+     */
+    ByteBufferDataInput(@NonNull final ByteBuffer buffer) {
+        Preconditions.checkNotNull(buffer);
+        mBuffer = buffer;
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * @return the current position inside the buffer.
+     */
+    int position() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Moves the read position.
+     */
+    void position(final int position) {
+        mBuffer.position(position);
+    }
+
+    /**
+     * @return true if there are bytes left to read.
+     */
+    boolean hasRemaining() {
+        return mBuffer.hasRemaining();
+    }
+
+    @Override
+    public void readFully(@NonNull final byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(@NonNull final byte[] b, final int off, final int len) throws IOException {
+        if (mBuffer.remaining() < len) throw new EOFException();
+        mBuffer.get(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(final int n) {
+        final int skipped = Math.max(0, Math.min(n, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        try {
+            return mBuffer.get();
+        } catch (final BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        try {
+            return mBuffer.getShort();
+        } catch (final BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        try {
+            return mBuffer.getInt();
+        } catch (final BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        try {
+            return mBuffer.getLong();
+        } catch (final BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public String readLine() {
+        throw new UnsupportedOperationException();
+    }
+
+    @NonNull
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
@@ -0,0 +1,43 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.Gson;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * A generic {@link IndexTreeEntryCodec} writing each entry as a length prefixed json document.
+ * It works for any entry class Gson can handle, at the price of reflection.
+ */
+class GsonEntryCodec<T extends IndexTreeEntry> implements IndexTreeEntryCodec<T> {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Gson mGson = new Gson();
+    private final Class<T> mEntryClass;
+
+    GsonEntryCodec(@NonNull final Class<T> entryClass) {
+        Preconditions.checkNotNull(entryClass);
+        mEntryClass = entryClass;
+    }
+
+    @Override
+    public void write(@NonNull final DataOutput out, @NonNull final T entry) throws IOException {
+        final byte[] json = mGson.toJson(entry, mEntryClass).getBytes(UTF_8);
+        out.writeInt(json.length);
+        out.write(json);
+    }
+
+    @NonNull
+    @Override
+    public T read(@NonNull final DataInput in, @Nullable final String indexTreeKey) throws IOException {
+        final byte[] json = new byte[in.readInt()];
+        in.readFully(json);
+        return mGson.fromJson(new String(json, UTF_8), mEntryClass);
+    }
+}
@@ -0,0 +1,41 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * A generic {@link IndexTreeEntryJsonCodec} relying on Gson reflection, for entry classes
+ * which do not provide a codec of their own. Keys are found by decoding the whole entry.
+ */
+class GsonEntryJsonCodec<T extends IndexTreeEntry> implements IndexTreeEntryJsonCodec<T> {
+    private final Gson mGson = new Gson();
+    private final Class<T> mEntryClass;
+
+    GsonEntryJsonCodec(@NonNull final Class<T> entryClass) {
+        Preconditions.checkNotNull(entryClass);
+        mEntryClass = entryClass;
+    }
+
+    @Override
+    public void write(@NonNull final JsonWriter out, @NonNull final T entry) throws IOException {
+        mGson.toJson(entry, mEntryClass, out);
+    }
+
+    @NonNull
+    @Override
+    public T read(@NonNull final JsonReader in) throws IOException {
+        return mGson.fromJson(in, mEntryClass);
+    }
+
+    @NonNull
+    @Override
+    public String readKey(@NonNull final JsonReader in) throws IOException {
+        return read(in).getIndexTreeKey();
+    }
+}
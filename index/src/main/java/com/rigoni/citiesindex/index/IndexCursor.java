@@ -0,0 +1,218 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Streams the entries matching a filter in order, across bins, see
+ * {@link IndexTree#openCursor(String, String)}.
+ *
+ * Entries are decoded one block at a time, only when the ones before them have been
+ * consumed, so walking any amount of entries needs about as much memory as a block. The pages
+ * of {@link IndexTree} are read through a cursor as well, with blocks as big as the page.
+ * A cursor is only valid as long as the index it was opened on is not modified, and it is not
+ * thread safe.
+ */
+public final class IndexCursor implements Iterator<IndexTreeEntry>, Closeable {
+    /**
+     * Entries decoded at once by the cursors opened with {@link IndexTree#openCursor(String, String)},
+     * a couple of the key index intervals of the binary bins.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+
+    @NonNull
+    private final IndexTreeStorage<?> mStorage;
+    @NonNull
+    private final String mFilter;
+    @NonNull
+    private final List<String> mSubPaths;
+    private final int mBlockSize;
+    @NonNull
+    private final IndexTreeCancellationToken mToken;
+
+    /**
+     * Entries the caller will take at most, blocks are not decoded past them.
+     */
+    private int mRemaining;
+
+    private int mSubPathIndex;
+
+    /**
+     * The position inside the bin of {@link #mNext} if set, of the next entry to decode
+     * otherwise. -1 until the bin is searched for the first entry matching the filter.
+     */
+    private int mBinPosition;
+
+    /**
+     * Set once an entry matched, the first one which does not match then ends the cursor.
+     */
+    private boolean mIsReading;
+
+    /**
+     * The entries of the current block not looked at yet, null before the first block of a bin.
+     */
+    @Nullable
+    private Iterator<? extends IndexTreeEntry> mBlock;
+    private boolean mIsLastBlockOfBin;
+
+    @Nullable
+    private IndexTreeEntry mNext;
+    private boolean mIsFinished;
+
+    /**
+     * Constructor.
+     * @param subPaths the subpaths of the bins which can hold entries matching the filter, sorted.
+     * @param subPathIndex the subpath where to start reading.
+     * @param binPosition the position where to start reading inside the first bin, or -1 to
+     * start from the first entry matching the filter.
+     * @param blockSize the entries decoded at once.
+     * @param limit the entries the caller will take at most.
+     * @param token checked before each bin, and passed to the storage to be checked while reading it.
+     */
+    IndexCursor(@NonNull final IndexTreeStorage<?> storage,
+                @NonNull final String filter,
+                @NonNull final List<String> subPaths,
+                final int subPathIndex,
+                final int binPosition,
+                final int blockSize,
+                final int limit,
+                @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(storage);
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkNotNull(subPaths);
+        Preconditions.checkArgument(blockSize > 0);
+        Preconditions.checkArgument(limit >= 0);
+        Preconditions.checkNotNull(token);
+        mStorage = storage;
+        mFilter = filter;
+        mSubPaths = subPaths;
+        mSubPathIndex = subPathIndex;
+        mBinPosition = binPosition;
+        mIsReading = binPosition >= 0;
+        mBlockSize = blockSize;
+        mRemaining = limit;
+        mToken = token;
+    }
+
+    /**
+     * @return true if there are more entries matching the filter, the next block is decoded
+     * if needed.
+     * @throws IndexTreeCancelledException if the token of the cursor is cancelled.
+     */
+    @Override
+    public boolean hasNext() {
+        if (mNext == null && !mIsFinished) {
+            advance();
+        }
+        return mNext != null;
+    }
+
+    @Override
+    @NonNull
+    public IndexTreeEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final IndexTreeEntry entry = mNext;
+        mNext = null;
+        mBinPosition++;
+        mRemaining--;
+        return entry;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("The index is read only");
+    }
+
+    /**
+     * Drops the decoded block, the cursor has no more entries afterwards.
+     */
+    @Override
+    public void close() {
+        finish();
+    }
+
+    /**
+     * @return a continuation pointing right before the entry {@link #next()} returns, or right
+     * after the last returned one if {@link #hasNext()} was not called since.
+     */
+    @NonNull
+    IndexTreeContinuation getContinuation() {
+        Preconditions.checkState(mBinPosition >= 0);
+        return new IndexTreeContinuation(mFilter, mSubPaths, mSubPathIndex, mBinPosition);
+    }
+
+    /**
+     * Looks for the next entry matching the filter, and sets it as {@link #mNext}, or finishes
+     * the cursor.
+     */
+    private void advance() {
+        while (true) {
+            if (mRemaining <= 0) {
+                finish();
+                return;
+            }
+            if (mBlock != null && mBlock.hasNext()) {
+                final IndexTreeEntry entry = mBlock.next();
+                if (entry.getIndexTreeKey().startsWith(mFilter)) {
+                    mIsReading = true;
+                    mNext = entry;
+                    return;
+                }
+                if (mIsReading) {
+                    // Matching entries finished.
+                    finish();
+                    return;
+                }
+                // Entries are sorted, the starting point is not in this bin.
+                nextBin();
+                continue;
+            }
+            if (mBlock != null) {
+                if (mIsLastBlockOfBin) {
+                    nextBin();
+                    continue;
+                }
+            } else {
+                if (mSubPathIndex >= mSubPaths.size()) {
+                    finish();
+                    return;
+                }
+                mToken.throwIfCancelled();
+                if (mBinPosition < 0) {
+                    mBinPosition = mStorage.seek(mSubPaths.get(mSubPathIndex), mFilter);
+                }
+            }
+            readBlock();
+        }
+    }
+
+    private void readBlock() {
+        final int count = Math.min(mBlockSize, mRemaining);
+        final Set<? extends IndexTreeEntry> entries
+                = mStorage.getEntriesListAtSubPath(mSubPaths.get(mSubPathIndex), mBinPosition, count, mToken);
+        mIsLastBlockOfBin = entries.size() < count;
+        mBlock = entries.iterator();
+    }
+
+    private void nextBin() {
+        mSubPathIndex++;
+        mBinPosition = mIsReading ? 0 : -1;
+        mBlock = null;
+    }
+
+    private void finish() {
+        mIsFinished = true;
+        mNext = null;
+        mBlock = null;
+    }
+}
@@ -0,0 +1,794 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+
+public class IndexTree {
+    /**
+     * Appended to a filter it makes a key sorting after all the keys the filter matches.
+     */
+    private static final char MAX_KEY_CHAR = Character.MAX_VALUE;
+
+    /**
+     * The storage backing the tree.
+     */
+    @NonNull
+    private final IndexTreeStorage<? extends IndexTreeEntry> mStorage;
+
+    /**
+     * Set while a parallel bulk insert is in progress.
+     */
+    @Nullable
+    private IndexTreeParallelInserter mParallelInserter;
+
+    /**
+     * Set while a bulk insert is in progress, chooses the bins the entries are stored in.
+     */
+    @Nullable
+    private IndexTreePartitionMap.Builder mPartitionMapBuilder;
+
+    /**
+     * Constructor.
+     * @param storage a mandatory {@link IndexTreeStorage} implementation.
+     */
+    public IndexTree(@NonNull final IndexTreeStorage<? extends IndexTreeEntry> storage) {
+        Preconditions.checkNotNull(storage);
+        mStorage = storage;
+    }
+
+    /**
+     * Filters forward over the tree for the list of entries matching the filter string.
+     * @param filter the filter string.
+     * @param lastPreviouslyReadNormalizedName the normalizedName of the last entry read with this method on a previous call.
+     * @param count the amount of entries to fetch.
+     * @return a {@link List} of {@link IndexTreeEntry} containing count or less items,
+     * an empty list if no entries are found matching the filterForward.
+     */
+    public List<IndexTreeEntry> filterForward(@NonNull final String filter,
+                                              @NonNull String lastPreviouslyReadNormalizedName,
+                                              int count) {
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkNotNull(lastPreviouslyReadNormalizedName);
+
+        // Start walking from where we left off, if we can figure it out.
+        final boolean isContinuing = !Strings.isNullOrEmpty(lastPreviouslyReadNormalizedName);
+        final List<IndexTreeEntry> entries = new ArrayList<>();
+        // One more than needed, the first one might be the previously read entry.
+        final IndexCursor cursor = openCursor(filter, isContinuing ? lastPreviouslyReadNormalizedName : null,
+                count + 1, count + 1, IndexTreeCancellationToken.NONE);
+        try {
+            if (isContinuing) {
+                // We have a previously read name, so we need to start from the one after it.
+                if (!cursor.hasNext() || !cursor.next().getIndexTreeKey().equals(lastPreviouslyReadNormalizedName)) {
+                    return entries;
+                }
+            }
+            while (entries.size() < count && cursor.hasNext()) {
+                entries.add(cursor.next());
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Opens a cursor over the entries matching the filter string, starting from the first one
+     * whose key is not smaller than the specified key. Unlike the pages, entries are decoded
+     * only as the cursor moves, one block of {@link IndexCursor#DEFAULT_BLOCK_SIZE} at a time,
+     * so any amount of them can be walked without holding them all in memory.
+     * @param filter the filter string.
+     * @param fromKey the key where to start reading, null to start from the first matching entry.
+     * @return an {@link IndexCursor} to be closed once done with it.
+     */
+    @NonNull
+    public IndexCursor openCursor(@NonNull final String filter, @Nullable final String fromKey) {
+        return openCursor(filter, fromKey, IndexTreeCancellationToken.NONE);
+    }
+
+    /**
+     * Like {@link #openCursor(String, String)}, but the cursor gives up as soon as the token is
+     * cancelled.
+     * @param token checked between bins and entries while the cursor reads.
+     * @throws IndexTreeCancelledException from the cursor if the token is cancelled.
+     */
+    @NonNull
+    public IndexCursor openCursor(@NonNull final String filter, @Nullable final String fromKey,
+                                  @NonNull final IndexTreeCancellationToken token) {
+        return openCursor(filter, fromKey, IndexCursor.DEFAULT_BLOCK_SIZE, Integer.MAX_VALUE, token);
+    }
+
+    /**
+     * Filters forward over the tree, reading the first page of entries matching the filter string.
+     * @param filter the filter string.
+     * @param count the amount of entries to fetch, must be positive.
+     * @return an {@link IndexTreePage} containing count or less entries and the continuations
+     * to read the pages around it.
+     */
+    @NonNull
+    public IndexTreePage filterForward(@NonNull final String filter, int count) {
+        return filterForward(filter, count, IndexTreeCancellationToken.NONE);
+    }
+
+    /**
+     * Like {@link #filterForward(String, int)}, but gives up as soon as the token is cancelled.
+     * @param token checked between bins and entries while reading.
+     * @throws IndexTreeCancelledException if the token is cancelled.
+     */
+    @NonNull
+    public IndexTreePage filterForward(@NonNull final String filter, int count,
+                                       @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkArgument(count > 0);
+        Preconditions.checkNotNull(token);
+
+        return readPage(openCursor(filter, null, count, count, token), count);
+    }
+
+    /**
+     * Filters forward over the tree, reading the entries matching the filter string starting
+     * from the first one whose key is not smaller than the specified key.
+     * Together with {@link #filterBackwards(IndexTreeContinuation, int)} this allows to start
+     * reading at any point of the results.
+     * @param filter the filter string.
+     * @param fromKey the key where to start reading.
+     * @param count the amount of entries to fetch, must be positive.
+     * @return an {@link IndexTreePage} containing count or less entries and the continuations
+     * to read the pages around it.
+     */
+    @NonNull
+    public IndexTreePage filterForwardFrom(@NonNull final String filter, @NonNull final String fromKey, int count) {
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkNotNull(fromKey);
+        Preconditions.checkArgument(count > 0);
+
+        return readPage(openCursor(filter, fromKey, count, count, IndexTreeCancellationToken.NONE), count);
+    }
+
+    /**
+     * Reads the page following the one the continuation was obtained with.
+     * Entries are read starting from where the previous page ended, so each page costs
+     * about as much as its size.
+     * @param continuation the next continuation returned with the previous page.
+     * @param count the amount of entries to fetch, must be positive.
+     * @return an {@link IndexTreePage} containing count or less entries and the continuations
+     * to read the pages around it.
+     */
+    @NonNull
+    public IndexTreePage filterForward(@NonNull final IndexTreeContinuation continuation, int count) {
+        return filterForward(continuation, count, IndexTreeCancellationToken.NONE);
+    }
+
+    /**
+     * Like {@link #filterForward(IndexTreeContinuation, int)}, but gives up as soon as the token
+     * is cancelled.
+     * @param token checked between bins and entries while reading.
+     * @throws IndexTreeCancelledException if the token is cancelled.
+     */
+    @NonNull
+    public IndexTreePage filterForward(@NonNull final IndexTreeContinuation continuation, int count,
+                                       @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(continuation);
+        Preconditions.checkArgument(count > 0);
+        Preconditions.checkNotNull(token);
+
+        return readForward(continuation.mFilter, continuation.mSubPaths,
+                continuation.mSubPathIndex, continuation.mBinPosition, count, token);
+    }
+
+    /**
+     * Reads the first page of entries matching the filter narrowing a window previously read
+     * with a shorter filter, as it happens when the user types one more character.
+     * The entries matching the longer filter are a contiguous part of the window, so they are
+     * picked from it without touching the storage; the tree is read only once the window runs
+     * out. Windows which are not the first page of a filter the new one extends are not reused.
+     * @param window the first page read with the previous filter.
+     * @param filter the filter string.
+     * @param count the amount of entries to fetch, must be positive.
+     * @return an {@link IndexTreePage} containing count or less entries and the continuations
+     * to read the pages around it, as {@link #filterForward(String, int)} would return.
+     */
+    @NonNull
+    public IndexTreePage filterForwardRefining(@NonNull final IndexTreePage window, @NonNull final String filter, int count) {
+        return filterForwardRefining(window, filter, count, IndexTreeCancellationToken.NONE);
+    }
+
+    /**
+     * Like {@link #filterForwardRefining(IndexTreePage, String, int)}, but gives up as soon as
+     * the token is cancelled.
+     * @param token checked between bins and entries while reading.
+     * @throws IndexTreeCancelledException if the token is cancelled.
+     */
+    @NonNull
+    public IndexTreePage filterForwardRefining(@NonNull final IndexTreePage window, @NonNull final String filter,
+                                               int count, @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(window);
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkArgument(count > 0);
+        Preconditions.checkNotNull(token);
+        token.throwIfCancelled();
+
+        final IndexTreeContinuation start = window.getPreviousContinuation();
+        if (window.getEntries().isEmpty() || start == null
+                || !filter.startsWith(start.mFilter) || !isFirstPage(start)) {
+            return filterForward(filter, count, token);
+        }
+
+        // Walk the window keeping track of where each entry lies, the continuations of
+        // the refined page point inside the same bins.
+        final List<String> subPaths = start.mSubPaths;
+        int subPathIndex = start.mSubPathIndex;
+        int binPosition = start.mBinPosition;
+        int binCount = mStorage.getEntriesCountAtSubPath(subPaths.get(subPathIndex));
+        final List<IndexTreeEntry> entries = new ArrayList<>();
+        IndexTreeContinuation previous = null;
+        for (final IndexTreeEntry entry : window.getEntries()) {
+            while (binPosition >= binCount) {
+                subPathIndex++;
+                binPosition = 0;
+                binCount = mStorage.getEntriesCountAtSubPath(subPaths.get(subPathIndex));
+            }
+            if (entry.getIndexTreeKey().startsWith(filter)) {
+                if (entries.size() >= count) {
+                    return new IndexTreePage(entries, previous,
+                            new IndexTreeContinuation(filter, subPaths, subPathIndex, binPosition));
+                }
+                if (entries.isEmpty()) {
+                    previous = new IndexTreeContinuation(filter, subPaths, subPathIndex, binPosition);
+                }
+                entries.add(entry);
+            } else if (!entries.isEmpty() || entry.getIndexTreeKey().compareTo(filter) > 0) {
+                // Past the matching entries, the window held all of them.
+                return new IndexTreePage(entries, previous, null);
+            }
+            binPosition++;
+        }
+
+        final IndexTreeContinuation end = window.getContinuation();
+        if (end == null) {
+            // The previous filter had no more entries, neither has this one.
+            return new IndexTreePage(entries, previous, null);
+        }
+        if (entries.isEmpty()) {
+            // The matching entries start after the window.
+            return filterForward(filter, count, token);
+        }
+        if (entries.size() >= count) {
+            return new IndexTreePage(entries, previous,
+                    new IndexTreeContinuation(filter, end.mSubPaths, end.mSubPathIndex, end.mBinPosition));
+        }
+        // The window ran out while still matching, the rest comes from the tree.
+        final IndexTreePage rest = readForward(filter, end.mSubPaths, end.mSubPathIndex, end.mBinPosition,
+                count - entries.size(), token);
+        entries.addAll(rest.getEntries());
+        return new IndexTreePage(entries, previous, rest.getContinuation());
+    }
+
+    /**
+     * Filters backwards over the tree, reading the entries matching the filter string whose
+     * key is smaller than the specified key.
+     * @param filter the filter string.
+     * @param beforeKey the entries returned come before this key.
+     * @param count the amount of entries to fetch, must be positive.
+     * @return an {@link IndexTreePage} containing the count or less entries closest to the key,
+     * sorted, and the continuations to read the pages around it.
+     */
+    @NonNull
+    public IndexTreePage filterBackwards(@NonNull final String filter, @NonNull final String beforeKey, int count) {
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkNotNull(beforeKey);
+        Preconditions.checkArgument(count > 0);
+
+        final List<String> subPathsToWalk = getSubPathsMatching(filter, IndexTreeCancellationToken.NONE);
+        final int subPathIndex = findSubPathIndex(subPathsToWalk, beforeKey);
+        if (subPathIndex >= 0) {
+            final int binPosition = mStorage.seek(subPathsToWalk.get(subPathIndex), beforeKey);
+            return readBackwards(filter, subPathsToWalk, subPathIndex, binPosition, count);
+        }
+        // The bin of the key does not exist, start from the end of the bin before it.
+        return readBackwards(filter, subPathsToWalk, -subPathIndex - 2, -1, count);
+    }
+
+    /**
+     * Reads the page preceding the one the continuation was obtained with.
+     * @param continuation the previous continuation returned with the following page.
+     * @param count the amount of entries to fetch, must be positive.
+     * @return an {@link IndexTreePage} containing count or less entries, sorted, and the
+     * continuations to read the pages around it.
+     */
+    @NonNull
+    public IndexTreePage filterBackwards(@NonNull final IndexTreeContinuation continuation, int count) {
+        Preconditions.checkNotNull(continuation);
+        Preconditions.checkArgument(count > 0);
+
+        return readBackwards(continuation.mFilter, continuation.mSubPaths,
+                continuation.mSubPathIndex, continuation.mBinPosition, count);
+    }
+
+    /**
+     * Counts the entries matching the filter without reading them.
+     * In the fixed depth layout filters as long as the tree depth, or shorter, match whole
+     * subtrees whose counts are kept aggregated by the storage; longer ones match a range of
+     * a single bin, found with two seeks. Otherwise the matching entries are the range between
+     * the positions of the filter and of the first key after them.
+     * @param filter the filter string.
+     * @return the amount of entries matching the filter.
+     */
+    public int countMatching(@NonNull final String filter) {
+        Preconditions.checkNotNull(filter);
+
+        final IndexTreePartitionMap partitionMap = mStorage.getPartitionMap();
+        if (!partitionMap.isFixedDepth()) {
+            return getPositionOfKey(partitionMap, filter + MAX_KEY_CHAR) - getPositionOfKey(partitionMap, filter);
+        }
+        final String subPath = partitionMap.getSubPath(filter);
+        if (filter.length() <= IndexTreePartitionMap.MAX_DEPTH) {
+            return mStorage.getEntriesCountFrom(subPath);
+        }
+        return mStorage.seek(subPath, filter + MAX_KEY_CHAR) - mStorage.seek(subPath, filter);
+    }
+
+    /**
+     * Finds the position of a key among the entries matching the filter.
+     * @param filter the filter string.
+     * @param key the key to look for, it does not need to exist.
+     * @return the position of the first entry whose key is not smaller than the specified one,
+     * between 0 and {@link #countMatching(String)}.
+     */
+    public int positionOf(@NonNull final String filter, @NonNull final String key) {
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkNotNull(key);
+
+        final int count = countMatching(filter);
+        final IndexTreePartitionMap partitionMap = mStorage.getPartitionMap();
+        final String subPath = partitionMap.getSubPath(filter);
+        final int position;
+        if (!partitionMap.isFixedDepth()) {
+            position = getPositionOfKey(partitionMap, key) - getPositionOfKey(partitionMap, filter);
+        } else if (filter.length() <= IndexTreePartitionMap.MAX_DEPTH) {
+            position = getPositionOfKey(partitionMap, key) - mStorage.getEntriesCountBefore(subPath);
+        } else {
+            position = mStorage.seek(subPath, key) - mStorage.seek(subPath, filter);
+        }
+        return Math.max(0, Math.min(count, position));
+    }
+
+    /**
+     * Filters forward over the tree, reading the entries matching the filter string starting
+     * from the specified position among them. This allows to jump at any point of the results,
+     * the bin holding the position is found with the counts aggregated by the storage.
+     * @param filter the filter string.
+     * @param position the position of the first entry to read, see {@link #countMatching(String)}.
+     * @param count the amount of entries to fetch, must be positive.
+     * @return an {@link IndexTreePage} containing count or less entries and the continuations
+     * to read the pages around it.
+     */
+    @NonNull
+    public IndexTreePage filterForwardAt(@NonNull final String filter, final int position, final int count) {
+        return filterForwardAt(filter, position, count, IndexTreeCancellationToken.NONE);
+    }
+
+    /**
+     * Like {@link #filterForwardAt(String, int, int)}, but gives up as soon as the token is cancelled.
+     * @param token checked between bins and entries while reading.
+     * @throws IndexTreeCancelledException if the token is cancelled.
+     */
+    @NonNull
+    public IndexTreePage filterForwardAt(@NonNull final String filter, final int position, final int count,
+                                         @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkArgument(position >= 0);
+        Preconditions.checkArgument(count > 0);
+        Preconditions.checkNotNull(token);
+
+        final IndexTreePartitionMap partitionMap = mStorage.getPartitionMap();
+        final List<String> subPathsToWalk = getSubPathsMatching(filter, token);
+        if (subPathsToWalk.isEmpty()) {
+            return new IndexTreePage(new ArrayList<IndexTreeEntry>(), null, null);
+        }
+        final int target;
+        if (!partitionMap.isFixedDepth()) {
+            target = getPositionOfKey(partitionMap, filter) + position;
+        } else if (filter.length() > IndexTreePartitionMap.MAX_DEPTH) {
+            // A single bin.
+            final int binPosition = mStorage.seek(subPathsToWalk.get(0), filter) + position;
+            return readForward(filter, subPathsToWalk, 0, binPosition, count, token);
+        } else {
+            // Every entry in these bins matches.
+            target = mStorage.getEntriesCountBefore(subPathsToWalk.get(0)) + position;
+        }
+
+        // Look for the last bin starting at or before the position.
+        int low = 0;
+        int high = subPathsToWalk.size() - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (mStorage.getEntriesCountBefore(subPathsToWalk.get(middle)) <= target) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        final int binPosition = target - mStorage.getEntriesCountBefore(subPathsToWalk.get(low));
+        return readForward(filter, subPathsToWalk, low, binPosition, count, token);
+    }
+
+    /**
+     * @param filter the filter string.
+     * @param position the position among the entries matching the filter.
+     * @return the entry at the position, null if there are not enough entries matching the filter.
+     */
+    @Nullable
+    public IndexTreeEntry entryAt(@NonNull final String filter, final int position) {
+        final List<IndexTreeEntry> entries = filterForwardAt(filter, position, 1).getEntries();
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    /**
+     * Reads entries matching the filter walking the subpaths in order.
+     * @param subPathIndex the subpath where to start reading.
+     * @param binPosition the position where to start reading inside the first bin, or -1
+     * to start from the first entry matching the filter.
+     * @param token checked before each bin, and passed to the storage to be checked while reading it.
+     */
+    @NonNull
+    private IndexTreePage readForward(@NonNull final String filter,
+                                      @NonNull final List<String> subPaths,
+                                      final int subPathIndex,
+                                      final int binPosition,
+                                      final int count,
+                                      @NonNull final IndexTreeCancellationToken token) {
+        return readPage(new IndexCursor(mStorage, filter, subPaths, subPathIndex, binPosition, count, count, token), count);
+    }
+
+    /**
+     * Reads a page from the cursor, which is closed afterwards.
+     * @param count the amount of entries to fetch.
+     */
+    @NonNull
+    private IndexTreePage readPage(@NonNull final IndexCursor cursor, final int count) {
+        final List<IndexTreeEntry> entries = new ArrayList<>();
+        IndexTreeContinuation previous = null;
+        try {
+            while (entries.size() < count && cursor.hasNext()) {
+                if (entries.isEmpty()) {
+                    previous = cursor.getContinuation();
+                }
+                entries.add(cursor.next());
+            }
+            // Not looking past the page, the next one might turn out empty.
+            return new IndexTreePage(entries, previous, entries.size() >= count ? cursor.getContinuation() : null);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Opens a cursor positioned at the first entry matching the filter whose key is not smaller
+     * than the specified key.
+     * @param fromKey the key where to start reading, null to start from the first matching entry.
+     * @param blockSize the entries decoded at once.
+     * @param limit the entries the caller will take at most.
+     */
+    @NonNull
+    private IndexCursor openCursor(@NonNull final String filter,
+                                   @Nullable final String fromKey,
+                                   final int blockSize,
+                                   final int limit,
+                                   @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkNotNull(token);
+
+        final List<String> subPathsToWalk = getSubPathsMatching(filter, token);
+        if (fromKey == null || fromKey.compareTo(filter) <= 0) {
+            // All the matching entries come after the key.
+            return new IndexCursor(mStorage, filter, subPathsToWalk, 0, -1, blockSize, limit, token);
+        }
+        final int subPathIndex = findSubPathIndex(subPathsToWalk, fromKey);
+        if (subPathIndex >= 0) {
+            final int binPosition = mStorage.seek(subPathsToWalk.get(subPathIndex), fromKey);
+            return new IndexCursor(mStorage, filter, subPathsToWalk, subPathIndex, binPosition, blockSize, limit, token);
+        }
+        // The bin of the key does not exist, all the entries in the following ones come after it.
+        return new IndexCursor(mStorage, filter, subPathsToWalk, -subPathIndex - 1, 0, blockSize, limit, token);
+    }
+
+    /**
+     * Reads entries matching the filter walking the subpaths in reverse order.
+     * @param subPathIndex the subpath where to start reading.
+     * @param binPosition the entries before this position are read in the first bin, -1 to read
+     * the first bin from its end.
+     */
+    @NonNull
+    private IndexTreePage readBackwards(@NonNull final String filter,
+                                        @NonNull final List<String> subPaths,
+                                        int subPathIndex,
+                                        int binPosition,
+                                        final int count) {
+        // Collected from the last one, reversed at the end.
+        final List<IndexTreeEntry> entries = new ArrayList<>();
+        IndexTreeContinuation next = null;
+        boolean isFinished = false;
+        while (subPathIndex >= 0 && !isFinished) {
+            final String subPath = subPaths.get(subPathIndex);
+            if (binPosition < 0) {
+                binPosition = mStorage.getEntriesCountAtSubPath(subPath);
+            }
+
+            while (binPosition > 0 && !isFinished && entries.size() < count) {
+                final int start = Math.max(0, binPosition - (count - entries.size()));
+                final Set<? extends IndexTreeEntry> binEntries
+                        = mStorage.getEntriesListAtSubPath(subPath, start, binPosition - start);
+                // Walked from the last one, which sets cannot do.
+                final List<IndexTreeEntry> subEntries = new ArrayList<IndexTreeEntry>(binEntries);
+                if (subEntries.isEmpty()) break;
+
+                for (int i = subEntries.size() - 1; i >= 0; i--) {
+                    final IndexTreeEntry entry = subEntries.get(i);
+                    if (!entry.getIndexTreeKey().startsWith(filter)) {
+                        if (entry.getIndexTreeKey().compareTo(filter) < 0) {
+                            // Matching entries finished.
+                            isFinished = true;
+                            break;
+                        }
+                        // Still after the matching entries.
+                        binPosition--;
+                        continue;
+                    }
+                    if (entries.isEmpty()) {
+                        next = new IndexTreeContinuation(filter, subPaths, subPathIndex, binPosition);
+                    }
+                    entries.add(entry);
+                    binPosition--;
+                }
+            }
+
+            if (entries.size() >= count) {
+                Collections.reverse(entries);
+                return new IndexTreePage(entries,
+                        new IndexTreeContinuation(filter, subPaths, subPathIndex, binPosition), next);
+            }
+
+            // This bin has no more entries to give.
+            subPathIndex--;
+            binPosition = -1;
+        }
+        Collections.reverse(entries);
+        return new IndexTreePage(entries, null, next);
+    }
+
+    /**
+     * @return true if the continuation points to the first entry matching its filter.
+     */
+    private boolean isFirstPage(@NonNull final IndexTreeContinuation continuation) {
+        return continuation.mSubPathIndex == 0 && continuation.mSubPaths.size() > 0
+                && continuation.mBinPosition == mStorage.seek(continuation.mSubPaths.get(0), continuation.mFilter);
+    }
+
+    /**
+     * @return the subpaths of the bins which can hold entries matching the filter, sorted.
+     */
+    @NonNull
+    private List<String> getSubPathsMatching(@NonNull final String filter,
+                                             @NonNull final IndexTreeCancellationToken token) {
+        final IndexTreePartitionMap partitionMap = mStorage.getPartitionMap();
+        if (partitionMap.isFixedDepth()) {
+            // The matching entries are all at or below the node of the filter.
+            return mStorage.getSubPathsContainingEntriesFrom(partitionMap.getSubPath(filter), token);
+        }
+        return partitionMap.getSubPathsBetween(filter, filter + MAX_KEY_CHAR);
+    }
+
+    /**
+     * @return the position in the whole index of the first entry whose key is not smaller
+     * than the specified one.
+     */
+    private int getPositionOfKey(@NonNull final IndexTreePartitionMap partitionMap, @NonNull final String key) {
+        final String subPath = partitionMap.getSubPath(key);
+        return mStorage.getEntriesCountBefore(subPath) + mStorage.seek(subPath, key);
+    }
+
+    /**
+     * Looks for the bin where the specified key would be stored.
+     * Subpaths sort like the keys stored inside them, as each path component is a single
+     * character of the key.
+     * @return the index of the bin in subPaths, or (-(insertion point) - 1) if it is not there.
+     */
+    private int findSubPathIndex(@NonNull final List<String> subPaths, @NonNull final String key) {
+        return Collections.binarySearch(subPaths,
+                IndexTreeManifest.normalizeSubPath(mStorage.getPartitionMap().getSubPath(key)));
+    }
+
+    /**
+     * Adds an entry into the index tree.
+     * @param entry the entry to be added.
+     */
+    public void addEntry(@NonNull final IndexTreeEntry entry) {
+        Preconditions.checkNotNull(entry);
+        if (mParallelInserter != null) {
+            mParallelInserter.add(entry);
+            return;
+        }
+        final IndexTreePartitionMap.Builder partitionMapBuilder = mPartitionMapBuilder;
+        final String key = entry.getIndexTreeKey();
+        addEntryToStorage(mStorage, partitionMapBuilder != null
+                ? partitionMapBuilder.add(key) : mStorage.getPartitionMap().getSubPath(key), entry);
+    }
+
+    /**
+     * Adds an entry to the storage of a tree. The entries added to a tree are the ones its
+     * storage was created for, the tree does not know their type.
+     */
+    static <T extends IndexTreeEntry> void addEntryToStorage(@NonNull final IndexTreeStorage<T> storage,
+                                                             @NonNull final String subPath,
+                                                             @NonNull final IndexTreeEntry entry) {
+        @SuppressWarnings("unchecked")
+        final T storedEntry = (T) entry;
+        storage.addEntryAtSubPath(subPath, storedEntry);
+    }
+
+    /**
+     * @return the subpath of the filter in the fixed depth layout.
+     * @deprecated bins depend on how the index was built, use {@link IndexTreePartitionMap#getSubPath(String)}.
+     */
+    @Deprecated
+    public static String createRelativePathFromFilter(@NonNull final String filter) {
+        Preconditions.checkNotNull(filter);
+        return IndexTreePartitionMap.FIXED_DEPTH.getSubPath(filter);
+    }
+
+    public void initiateBulkInsert() {
+        initiateBulkInsert(1);
+    }
+
+    /**
+     * Initiates a bulk insert whose entries are keyed and stored by the specified amount of
+     * worker threads, {@link #addEntry(IndexTreeEntry)} only queues them and has to be called
+     * from a single thread. Entries are visible once {@link #finalizeBulkInsert()} returns.
+     * @param workers the amount of worker threads, 1 to do all the work on the calling thread.
+     */
+    public void initiateBulkInsert(final int workers) {
+        initiateBulkInsert(workers, IndexTreePartitionMap.Builder.DEFAULT_TARGET_BIN_SIZE,
+                IndexTreePartitionMap.Builder.DEFAULT_MAX_BIN_SIZE);
+    }
+
+    /**
+     * Like {@link #initiateBulkInsert(int)}, with the sizes of the bins of an index built from
+     * scratch, see {@link IndexTreePartitionMap.Builder}. Entries added to an existing index are
+     * stored in its bins instead.
+     * @param workers the amount of worker threads, 1 to do all the work on the calling thread.
+     * @param targetBinSize the amount of entries bins are cut at.
+     * @param maxBinSize the amount of entries a bin can grow to rather than being cut.
+     */
+    public void initiateBulkInsert(final int workers, final int targetBinSize, final int maxBinSize) {
+        Preconditions.checkArgument(workers > 0);
+        Preconditions.checkArgument(targetBinSize > 0);
+        Preconditions.checkArgument(maxBinSize >= targetBinSize);
+        cancelParallelInsert();
+        final IndexTreePartitionMap partitionMap = mStorage.getPartitionMap();
+        mPartitionMapBuilder = partitionMap.isFixedDepth() && mStorage.getEntriesCountFrom("") == 0
+                ? new IndexTreePartitionMap.Builder(targetBinSize, maxBinSize)
+                : new IndexTreePartitionMap.Builder(partitionMap);
+        mStorage.initiateBulkInsert(workers);
+        if (workers > 1) {
+            startParallelInserter(workers);
+        }
+    }
+
+    /**
+     * Makes the entries added so far durable: if the process dies, or the bulk insert is
+     * suspended, it can be resumed from here with {@link #resumeBulkInsert()}, also by another
+     * process. Waits for the worker threads to store the queued entries.
+     * @param position where the input was read up to, given back by {@link #resumeBulkInsert()}.
+     */
+    public void checkpointBulkInsert(final long position) {
+        final int workers = checkpoint(position);
+        if (workers > 1) {
+            startParallelInserter(workers);
+        }
+    }
+
+    /**
+     * Like {@link #checkpointBulkInsert(long)}, then stops the bulk insert without deleting
+     * anything, it has to be resumed to be finalized.
+     * @param position where the input was read up to, given back by {@link #resumeBulkInsert()}.
+     */
+    public void suspendBulkInsert(final long position) {
+        checkpoint(position);
+        mPartitionMapBuilder = null;
+    }
+
+    /**
+     * Goes on with the bulk insert interrupted after its last checkpoint, with the same amount
+     * of worker threads it was initiated with. The entries added after the checkpoint are lost,
+     * they have to be added again.
+     * @return the position passed to the checkpoint, -1 if there is none, in which case no bulk
+     * insert is initiated.
+     */
+    public long resumeBulkInsert() {
+        cancelParallelInsert();
+        final IndexTreeBulkCheckpoint checkpoint = mStorage.resumeBulkInsert();
+        if (checkpoint == null) return -1;
+        mPartitionMapBuilder = checkpoint.getPartitionMapBuilder();
+        if (checkpoint.getPartitions() > 1) {
+            startParallelInserter(checkpoint.getPartitions());
+        }
+        return checkpoint.getPosition();
+    }
+
+    /**
+     * Like {@link #finalizeBulkInsert()}, checkpointing the bulk insert first: if the process
+     * dies while the bins are written, {@link #resumeBulkInsert()} returns the position and
+     * finalizing again skips the partitions whose bins were all written.
+     * @param position where the input was read up to, normally its end.
+     */
+    public void finalizeBulkInsert(final long position) {
+        checkpoint(position);
+        finalizeBulkInsert();
+    }
+
+    public void finalizeBulkInsert() {
+        if (mParallelInserter != null) {
+            final IndexTreeParallelInserter inserter = mParallelInserter;
+            mParallelInserter = null;
+            inserter.finish();
+        }
+        final IndexTreePartitionMap.Builder partitionMapBuilder = mPartitionMapBuilder;
+        mPartitionMapBuilder = null;
+        if (partitionMapBuilder != null) {
+            mStorage.finalizeBulkInsert(partitionMapBuilder);
+        } else {
+            mStorage.finalizeBulkInsert();
+        }
+    }
+
+    public void delete() {
+        cancelParallelInsert();
+        mStorage.deleteIndex();
+    }
+
+    /**
+     * Stores the queued entries and checkpoints the storage, the workers are left stopped.
+     * @return the amount of worker threads of the bulk insert.
+     */
+    private int checkpoint(final long position) {
+        Preconditions.checkArgument(position >= 0);
+        if (mPartitionMapBuilder == null) {
+            throw new IllegalStateException("No bulk insert in progress");
+        }
+        int workers = 1;
+        if (mParallelInserter != null) {
+            final IndexTreeParallelInserter inserter = mParallelInserter;
+            mParallelInserter = null;
+            workers = inserter.getWorkers();
+            inserter.finish();
+        }
+        mStorage.checkpointBulkInsert(mPartitionMapBuilder, position);
+        return workers;
+    }
+
+    /**
+     * Starts the worker threads storing the entries of the bulk insert in progress.
+     */
+    private void startParallelInserter(final int workers) {
+        Preconditions.checkNotNull(mPartitionMapBuilder);
+        mParallelInserter = new IndexTreeParallelInserter(mStorage, mPartitionMapBuilder, workers);
+    }
+
+    private void cancelParallelInsert() {
+        mPartitionMapBuilder = null;
+        if (mParallelInserter != null) {
+            mParallelInserter.cancel();
+            mParallelInserter = null;
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.rigoni.citiesindex.utils.BinaryUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary bin format.
+ *
+ * <pre>
+ * header:  magic (4 bytes) | version (1 byte) | entries count (int) | key index offset (int)
+ * entries: shared key length (varint) | key suffix length (varint) | key suffix (UTF-8) |
+ *          payload length (varint) | payload
+ * key index: anchors count (varint) | for each anchor: key | position (varint) | offset (varint)
+ * </pre>
+ *
+ * The count lives in the header, so it can be looked up with a single small read. The payload
+ * is produced by an {@link IndexTreeEntryCodec}; thanks to the length prefixes an entry can be
+ * skipped, or only its key read, without decoding it.
+ * Keys are front coded: entries are sorted and all the keys of a bin share at least the
+ * subpath, so each key is stored as the amount of leading characters it shares with the
+ * previous one followed by the rest of it. Every {@link #KEY_INDEX_INTERVAL}th entry is a
+ * restart point storing its whole key, so decoding can start there.
+ * The key index at the end of the bin is sparse, it holds the key, the position and the offset
+ * from the beginning of the bin of every restart point, so a reader can jump close to a key or
+ * position instead of scanning from the first entry.
+ * Version 2 bins store whole keys, version 1 bins have no key index either and a shorter
+ * header, they can still be read.
+ * Bins stored in their own file are read in parts, see {@link #readPage}: the header, the key
+ * index and only the entries between the restart points around the page.
+ */
+final class IndexTreeBinFormat {
+    private static final byte[] MAGIC = {'C', 'I', 'B', 'N'};
+    static final int VERSION = 3;
+    private static final int VERSION_WHOLE_KEYS = 2;
+    private static final int VERSION_NO_KEY_INDEX = 1;
+
+    private static final int VERSION_OFFSET = MAGIC.length;
+    private static final int COUNT_OFFSET = VERSION_OFFSET + 1;
+    private static final int KEY_INDEX_OFFSET_OFFSET = COUNT_OFFSET + 4;
+    private static final int HEADER_SIZE_NO_KEY_INDEX = KEY_INDEX_OFFSET_OFFSET;
+    static final int HEADER_SIZE = KEY_INDEX_OFFSET_OFFSET + 4;
+
+    /**
+     * One entry every this many is a restart point, stored with its whole key and added to
+     * the key index.
+     */
+    static final int KEY_INDEX_INTERVAL = 32;
+
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+
+    private IndexTreeBinFormat() {}
+
+    /**
+     * Validates the header at the current position of the buffer and returns the entries count.
+     * The buffer position is moved after the header.
+     */
+    static int readHeader(@NonNull final ByteBuffer bin) throws IOException {
+        if (bin.remaining() < HEADER_SIZE_NO_KEY_INDEX) throw new IOException("Bin too short");
+        for (final byte b : MAGIC) {
+            if (bin.get() != b) throw new IOException("Not a bin file");
+        }
+        final int version = bin.get();
+        if (version != VERSION && version != VERSION_WHOLE_KEYS && version != VERSION_NO_KEY_INDEX) {
+            throw new IOException("Unsupported bin version " + version);
+        }
+        final int count = bin.getInt();
+        if (version != VERSION_NO_KEY_INDEX) {
+            if (bin.remaining() < 4) throw new IOException("Bin too short");
+            // Key index offset.
+            bin.getInt();
+        }
+        return count;
+    }
+
+    /**
+     * Opens a reader over a bin file holding only the entries between the restart point at or
+     * before start and the first restart point after the page. The header and the key index are
+     * read first, to find them. Bins without a key index are read whole.
+     * @param bin the file holding the bin, from its beginning.
+     * @param start the position of the first entry of the page.
+     * @param count the entries of the page.
+     * @return a reader to be moved to start with {@link Reader#skipTo(int)}, it ends after the page.
+     */
+    @NonNull
+    static <T extends IndexTreeEntry> Reader<T> readPage(@NonNull final FileChannel bin,
+                                                         @NonNull final IndexTreeEntryCodec<T> codec,
+                                                         final int start,
+                                                         final int count) throws IOException {
+        Preconditions.checkNotNull(bin);
+        Preconditions.checkNotNull(codec);
+        Preconditions.checkArgument(start >= 0);
+        Preconditions.checkArgument(count >= 0);
+        final ByteBuffer header = read(bin, 0, (int) Math.min(bin.size(), HEADER_SIZE));
+        final int entriesCount = readHeader(header.duplicate());
+        if (header.get(VERSION_OFFSET) == VERSION_NO_KEY_INDEX) {
+            return new Reader<>(read(bin, 0, (int) bin.size()), codec);
+        }
+        final KeyIndex keyIndex = readKeyIndex(bin, header);
+        final int end = (int) Math.min((long) start + count, entriesCount);
+        final int lastAnchor = end > 0 ? keyIndex.findByPosition(end - 1) : -1;
+        return readEntries(bin, codec, header, keyIndex, keyIndex.findByPosition(start), lastAnchor + 1);
+    }
+
+    /**
+     * Like {@link #readPage}, the reader holds the entries between the restart points around
+     * the first entry whose key is not smaller than the specified one.
+     * @return a reader to be moved to the key with {@link Reader#seek(String)}, it ends at the
+     * restart point following it, whose key is not smaller than the specified one.
+     */
+    @NonNull
+    static <T extends IndexTreeEntry> Reader<T> readSeek(@NonNull final FileChannel bin,
+                                                         @NonNull final IndexTreeEntryCodec<T> codec,
+                                                         @NonNull final String key) throws IOException {
+        Preconditions.checkNotNull(bin);
+        Preconditions.checkNotNull(codec);
+        Preconditions.checkNotNull(key);
+        final ByteBuffer header = read(bin, 0, (int) Math.min(bin.size(), HEADER_SIZE));
+        readHeader(header.duplicate());
+        if (header.get(VERSION_OFFSET) == VERSION_NO_KEY_INDEX) {
+            return new Reader<>(read(bin, 0, (int) bin.size()), codec);
+        }
+        final KeyIndex keyIndex = readKeyIndex(bin, header);
+        final int anchor = keyIndex.findByKey(key);
+        return readEntries(bin, codec, header, keyIndex, anchor, anchor + 1);
+    }
+
+    /**
+     * Reads the key index at the tail of a bin file.
+     * @param header the header of the bin, with a key index offset.
+     */
+    @NonNull
+    private static KeyIndex readKeyIndex(@NonNull final FileChannel bin, @NonNull final ByteBuffer header)
+            throws IOException {
+        final int keyIndexOffset = header.getInt(KEY_INDEX_OFFSET_OFFSET);
+        if (keyIndexOffset < HEADER_SIZE || keyIndexOffset > bin.size()) throw new IOException("Corrupted key index");
+        return new KeyIndex(new ByteBufferDataInput(read(bin, keyIndexOffset, (int) (bin.size() - keyIndexOffset))),
+                HEADER_SIZE, keyIndexOffset);
+    }
+
+    /**
+     * Reads the entries of a bin file from a restart point up to another one.
+     * @param firstAnchor the restart point where the reader starts, -1 for the first entry.
+     * @param endAnchor the restart point where the reader ends, past the last one for the end
+     * of the bin.
+     */
+    @NonNull
+    private static <T extends IndexTreeEntry> Reader<T> readEntries(@NonNull final FileChannel bin,
+                                                                    @NonNull final IndexTreeEntryCodec<T> codec,
+                                                                    @NonNull final ByteBuffer header,
+                                                                    @NonNull final KeyIndex keyIndex,
+                                                                    final int firstAnchor,
+                                                                    final int endAnchor) throws IOException {
+        final int count = header.getInt(COUNT_OFFSET);
+        final int keyIndexOffset = header.getInt(KEY_INDEX_OFFSET_OFFSET);
+        final int from = firstAnchor >= 0 ? keyIndex.mOffsets[firstAnchor] : HEADER_SIZE;
+        final int position = firstAnchor >= 0 ? keyIndex.mPositions[firstAnchor] : 0;
+        final boolean isLast = endAnchor >= keyIndex.mOffsets.length;
+        final int to = isLast ? keyIndexOffset : keyIndex.mOffsets[endAnchor];
+        final int end = isLast ? count : keyIndex.mPositions[endAnchor];
+        if (to < from || end < position) throw new IOException("Corrupted key index");
+        return new Reader<>(read(bin, from, to - from), from, position, end, count,
+                header.get(VERSION_OFFSET) == VERSION, keyIndexOffset, keyIndex, codec);
+    }
+
+    @NonNull
+    private static ByteBuffer read(@NonNull final FileChannel bin, final long offset, final int length)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (bin.read(buffer, offset + buffer.position()) < 0) throw new IOException("Truncated bin");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Streams a bin to a {@link RandomAccessFile}, starting at its current file pointer.
+     * The count is only known at the end, so the header is patched by {@link #finish()}.
+     */
+    static class Writer<T extends IndexTreeEntry> {
+        private final RandomAccessFile mFile;
+        private final IndexTreeEntryCodec<T> mCodec;
+        private final long mStart;
+        private final DataOutputStream mOut;
+        private final ByteArrayOutputStream mPayload = new ByteArrayOutputStream();
+        private final DataOutputStream mPayloadOut = new DataOutputStream(mPayload);
+        private final List<String> mAnchorKeys = new ArrayList<>();
+        private final List<Integer> mAnchorOffsets = new ArrayList<>();
+        private String mPreviousKey = "";
+        private int mCount;
+
+        Writer(@NonNull final RandomAccessFile file, @NonNull final IndexTreeEntryCodec<T> codec) throws IOException {
+            Preconditions.checkNotNull(file);
+            Preconditions.checkNotNull(codec);
+            mFile = file;
+            mCodec = codec;
+            mStart = file.getFilePointer();
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(file.getChannel()), STREAM_BUFFER_SIZE));
+            mOut.write(MAGIC);
+            mOut.writeByte(VERSION);
+            mOut.writeInt(0);
+            mOut.writeInt(0);
+        }
+
+        void add(@NonNull final T entry) throws IOException {
+            final String key = entry.getIndexTreeKey();
+            final int sharedLength;
+            if (mCount % KEY_INDEX_INTERVAL == 0) {
+                // The stream counts the bytes written since the beginning of the bin.
+                mAnchorKeys.add(key);
+                mAnchorOffsets.add(mOut.size());
+                sharedLength = 0;
+            } else {
+                // Never splits a surrogate pair, the suffix has to be valid UTF-16.
+                sharedLength = Strings.commonPrefix(mPreviousKey, key).length();
+            }
+            mPayload.reset();
+            mCodec.write(mPayloadOut, entry);
+            BinaryUtils.writeVarInt(mOut, sharedLength);
+            BinaryUtils.writeString(mOut, key.substring(sharedLength));
+            BinaryUtils.writeVarInt(mOut, mPayload.size());
+            mPayload.writeTo(mOut);
+            mPreviousKey = key;
+            mCount++;
+        }
+
+        /**
+         * Completes the bin, leaving the file pointer at its end.
+         * @return the amount of entries written.
+         */
+        int finish() throws IOException {
+            final int keyIndexOffset = mOut.size();
+            BinaryUtils.writeVarInt(mOut, mAnchorKeys.size());
+            for (int i = 0; i < mAnchorKeys.size(); i++) {
+                BinaryUtils.writeString(mOut, mAnchorKeys.get(i));
+                BinaryUtils.writeVarInt(mOut, i * KEY_INDEX_INTERVAL);
+                BinaryUtils.writeVarInt(mOut, mAnchorOffsets.get(i));
+            }
+            mOut.flush();
+            final long end = mFile.getFilePointer();
+            mFile.seek(mStart + COUNT_OFFSET);
+            mFile.writeInt(mCount);
+            mFile.writeInt(keyIndexOffset);
+            mFile.seek(end);
+            return mCount;
+        }
+    }
+
+    /**
+     * Sequentially reads the entries of a bin, or of the part of it read by {@link #readPage}
+     * or {@link #readSeek}.
+     */
+    static class Reader<T extends IndexTreeEntry> {
+        private final ByteBufferDataInput mIn;
+        private final IndexTreeEntryCodec<T> mCodec;
+
+        /**
+         * The position in the buffer of the beginning of the bin, before the buffer if it only
+         * holds a part of the bin.
+         */
+        private final int mStart;
+        private final int mFirstEntryOffset;
+        private final int mKeyIndexOffset;
+        private final boolean mIsFrontCoded;
+        private final int mCount;
+
+        /**
+         * The position of the entry after the last one in the buffer.
+         */
+        private final int mEnd;
+        private int mPosition;
+
+        /**
+         * The key of the entry before the next one, front coded keys are relative to it.
+         */
+        @NonNull
+        private String mPreviousKey = "";
+
+        /**
+         * The key index, loaded on first use.
+         */
+        private KeyIndex mKeyIndex;
+
+        /**
+         * @param bin a buffer positioned at the beginning of the bin header.
+         */
+        Reader(@NonNull final ByteBuffer bin, @NonNull final IndexTreeEntryCodec<T> codec) throws IOException {
+            Preconditions.checkNotNull(bin);
+            Preconditions.checkNotNull(codec);
+            mCodec = codec;
+            mStart = bin.position();
+            mCount = readHeader(bin);
+            mEnd = mCount;
+            mFirstEntryOffset = bin.position() - mStart;
+            final int version = bin.get(mStart + VERSION_OFFSET);
+            mKeyIndexOffset = version != VERSION_NO_KEY_INDEX
+                    ? bin.getInt(mStart + KEY_INDEX_OFFSET_OFFSET) : -1;
+            mIsFrontCoded = version == VERSION;
+            mIn = new ByteBufferDataInput(bin);
+        }
+
+        /**
+         * @param entries the entries from a restart point, or the first entry, up to another one.
+         * @param offset the offset of the entries from the beginning of the bin.
+         * @param position the position of the first of the entries.
+         * @param end the position of the entry after the last one.
+         */
+        private Reader(@NonNull final ByteBuffer entries,
+                       final int offset,
+                       final int position,
+                       final int end,
+                       final int count,
+                       final boolean isFrontCoded,
+                       final int keyIndexOffset,
+                       @NonNull final KeyIndex keyIndex,
+                       @NonNull final IndexTreeEntryCodec<T> codec) {
+            mCodec = codec;
+            mStart = entries.position() - offset;
+            mFirstEntryOffset = HEADER_SIZE;
+            mKeyIndexOffset = keyIndexOffset;
+            mIsFrontCoded = isFrontCoded;
+            mCount = count;
+            mEnd = end;
+            mPosition = position;
+            mKeyIndex = keyIndex;
+            mIn = new ByteBufferDataInput(entries);
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the index of the next entry to be read.
+         */
+        int getPosition() {
+            return mPosition;
+        }
+
+        boolean hasNext() {
+            return mPosition < mEnd;
+        }
+
+        /**
+         * Skips the next entry without decoding it.
+         */
+        void skip() throws IOException {
+            if (mIsFrontCoded) {
+                // The key is needed to decode the following ones.
+                readKey();
+            } else {
+                BinaryUtils.skipString(mIn);
+            }
+            final int payloadLength = BinaryUtils.readVarInt(mIn);
+            if (mIn.skipBytes(payloadLength) != payloadLength) throw new IOException("Truncated bin");
+            mPosition++;
+        }
+
+        /**
+         * Reads the key of the next entry without moving to the following one.
+         */
+        @NonNull
+        String peekKey() throws IOException {
+            final int position = mIn.position();
+            final String previousKey = mPreviousKey;
+            final String key = readKey();
+            mIn.position(position);
+            mPreviousKey = previousKey;
+            return key;
+        }
+
+        /**
+         * Reads the key of the next entry, leaving the input at its payload.
+         */
+        @NonNull
+        private String readKey() throws IOException {
+            if (!mIsFrontCoded) {
+                return BinaryUtils.readString(mIn);
+            }
+            final int sharedLength = BinaryUtils.readVarInt(mIn);
+            if (sharedLength > mPreviousKey.length()) throw new IOException("Corrupted key");
+            final String suffix = BinaryUtils.readString(mIn);
+            mPreviousKey = sharedLength == 0 ? suffix : mPreviousKey.substring(0, sharedLength) + suffix;
+            return mPreviousKey;
+        }
+
+        /**
+         * Moves to the entry at the specified position, or to the end of the bin.
+         * Only moves forward.
+         */
+        void skipTo(final int position) throws IOException {
+            final int anchor = findAnchor(position);
+            if (anchor >= 0 && mKeyIndex.mPositions[anchor] > mPosition) {
+                jumpToAnchor(anchor);
+            }
+            while (hasNext() && mPosition < position) {
+                skip();
+            }
+        }
+
+        /**
+         * Moves to the first entry whose key is not smaller than the specified one, or to the end
+         * of the bin. Only moves forward.
+         * @return the position of that entry.
+         */
+        int seek(@NonNull final String key) throws IOException {
+            Preconditions.checkNotNull(key);
+            final int anchor = findAnchor(key);
+            if (anchor >= 0 && mKeyIndex.mPositions[anchor] > mPosition) {
+                jumpToAnchor(anchor);
+            }
+            while (hasNext() && peekKey().compareTo(key) < 0) {
+                skip();
+            }
+            return mPosition;
+        }
+
+        /**
+         * @return the last anchor at or before the specified position, -1 if there is none.
+         */
+        private int findAnchor(final int position) throws IOException {
+            if (!loadKeyIndex()) return -1;
+            return mKeyIndex.findByPosition(position);
+        }
+
+        /**
+         * @return the last anchor whose key is smaller than the specified one, -1 if there is none.
+         */
+        private int findAnchor(@NonNull final String key) throws IOException {
+            if (!loadKeyIndex()) return -1;
+            return mKeyIndex.findByKey(key);
+        }
+
+        private void jumpToAnchor(final int anchor) {
+            mIn.position(mStart + mKeyIndex.mOffsets[anchor]);
+            mPosition = mKeyIndex.mPositions[anchor];
+            // Anchors are restart points, their keys do not depend on the previous one.
+            mPreviousKey = "";
+        }
+
+        /**
+         * @return false if the bin has no key index.
+         */
+        private boolean loadKeyIndex() throws IOException {
+            if (mKeyIndex != null) return true;
+            if (mKeyIndexOffset < 0) return false;
+            final int position = mIn.position();
+            mIn.position(mStart + mKeyIndexOffset);
+            mKeyIndex = new KeyIndex(mIn, mFirstEntryOffset, mKeyIndexOffset);
+            mIn.position(position);
+            return true;
+        }
+
+        @NonNull
+        T next() throws IOException {
+            final String key = readKey();
+            final int payloadLength = BinaryUtils.readVarInt(mIn);
+            final int payloadEnd = mIn.position() + payloadLength;
+            final T entry = mCodec.read(mIn, key);
+            // Codecs are not required to consume the whole payload.
+            mIn.position(payloadEnd);
+            mPosition++;
+            return entry;
+        }
+    }
+
+    /**
+     * The restart points of a bin, as stored in its key index.
+     */
+    private static final class KeyIndex {
+        final String[] mKeys;
+        final int[] mPositions;
+        final int[] mOffsets;
+
+        /**
+         * Reads the key index at the current position of the input.
+         * @param firstEntryOffset the offset of the first entry from the beginning of the bin.
+         * @param keyIndexOffset the offset of the key index from the beginning of the bin.
+         */
+        KeyIndex(@NonNull final ByteBufferDataInput in, final int firstEntryOffset, final int keyIndexOffset)
+                throws IOException {
+            final int anchorsCount = BinaryUtils.readVarInt(in);
+            mKeys = new String[anchorsCount];
+            mPositions = new int[anchorsCount];
+            mOffsets = new int[anchorsCount];
+            for (int i = 0; i < anchorsCount; i++) {
+                mKeys[i] = BinaryUtils.readString(in);
+                mPositions[i] = BinaryUtils.readVarInt(in);
+                mOffsets[i] = BinaryUtils.readVarInt(in);
+                if (mOffsets[i] < firstEntryOffset || mOffsets[i] > keyIndexOffset) {
+                    throw new IOException("Corrupted key index");
+                }
+            }
+        }
+
+        /**
+         * @return the last anchor at or before the specified position, -1 if there is none.
+         */
+        int findByPosition(final int position) {
+            int low = 0;
+            int high = mPositions.length - 1;
+            int found = -1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                if (mPositions[middle] <= position) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * @return the last anchor whose key is smaller than the specified one, -1 if there is none.
+         * Equal keys are excluded because entries with the same key may precede the anchor.
+         */
+        int findByKey(@NonNull final String key) {
+            int low = 0;
+            int high = mKeys.length - 1;
+            int found = -1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                if (mKeys[middle].compareTo(key) < 0) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+    }
+}
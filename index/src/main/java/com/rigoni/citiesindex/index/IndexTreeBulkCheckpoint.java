@@ -0,0 +1,240 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.rigoni.citiesindex.utils.BinaryUtils;
+import com.rigoni.citiesindex.utils.FsUtils;
+import com.rigoni.citiesindex.utils.StreamUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The state of a bulk insert at its last checkpoint, see {@link IndexTree#checkpointBulkInsert(long)}.
+ *
+ * Until the bulk insert is finalized the entries only live in the runs spilled by the sorters,
+ * so a checkpoint lists the runs of each partition, together with what the
+ * {@link IndexTreePartitionMap.Builder} counted and the position the caller had read its input
+ * up to. Runs spilled after the checkpoint are not listed, they are deleted on resume and the
+ * entries they hold are added again by the caller.
+ *
+ * The checkpoint is kept while the bulk insert is finalized, together with the runs it lists,
+ * and records the partitions whose bins are written: an interrupted finalization is resumed
+ * without merging them again, see {@link #setMerged(int, File)}.
+ *
+ * <pre>
+ * magic (4 bytes) | version (1 byte) | position (long) | partition map builder state
+ * partitions count (int), for each partition:
+ *         merged (1 byte) | runs count (int) | run file names (length prefixed UTF-8)
+ * </pre>
+ *
+ * Files of the first version have neither the merged flags nor the boundaries of the merged
+ * partitions in the builder state.
+ *
+ * The file lives in the base directory of the index, its presence tells that a build was
+ * interrupted and can be resumed, see {@link #isPresent(File)}.
+ */
+public final class IndexTreeBulkCheckpoint {
+    private static final byte[] MAGIC = {'C', 'I', 'C', 'P'};
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_MERGED = 1;
+
+    static final String FILE_NAME = "checkpoint.bin";
+
+    private final long mPosition;
+    @NonNull
+    private final List<List<String>> mRuns;
+    @NonNull
+    private final IndexTreePartitionMap.Builder mPartitionMapBuilder;
+
+    /**
+     * The partitions whose bins are all written, guarded by the checkpoint.
+     */
+    @NonNull
+    private final Set<Integer> mMerged;
+
+    /**
+     * Constructor.
+     * @param position where the caller read its input up to.
+     * @param runs the names of the runs of each partition, relative to its work directory.
+     * @param partitionMapBuilder the builder the subpaths of the entries were obtained from.
+     * @param merged the partitions whose bins are all written.
+     */
+    IndexTreeBulkCheckpoint(final long position,
+                            @NonNull final List<List<String>> runs,
+                            @NonNull final IndexTreePartitionMap.Builder partitionMapBuilder,
+                            @NonNull final Set<Integer> merged) {
+        Preconditions.checkArgument(position >= 0);
+        Preconditions.checkNotNull(runs);
+        Preconditions.checkArgument(!runs.isEmpty());
+        Preconditions.checkNotNull(partitionMapBuilder);
+        Preconditions.checkNotNull(merged);
+        mPosition = position;
+        mRuns = runs;
+        mPartitionMapBuilder = partitionMapBuilder;
+        mMerged = new TreeSet<>(merged);
+    }
+
+    /**
+     * @param indexDirectory the base directory of an index.
+     * @return true if a bulk insert into the index was interrupted after a checkpoint.
+     */
+    public static boolean isPresent(@NonNull final File indexDirectory) {
+        Preconditions.checkNotNull(indexDirectory);
+        return new File(indexDirectory, FILE_NAME).exists();
+    }
+
+    /**
+     * @return the position passed to {@link IndexTree#checkpointBulkInsert(long)}.
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return the amount of partitions the bulk insert was initiated with.
+     */
+    public int getPartitions() {
+        return mRuns.size();
+    }
+
+    /**
+     * @return the names of the runs of the partition, relative to its work directory.
+     */
+    @NonNull
+    List<String> getRuns(final int partition) {
+        return Collections.unmodifiableList(mRuns.get(partition));
+    }
+
+    /**
+     * @return the builder, with the keys of the entries added up to the checkpoint counted.
+     */
+    @NonNull
+    IndexTreePartitionMap.Builder getPartitionMapBuilder() {
+        return mPartitionMapBuilder;
+    }
+
+    /**
+     * @return true if the bins of the partition are all written, a resumed finalization skips it.
+     */
+    synchronized boolean isMerged(final int partition) {
+        return mMerged.contains(partition);
+    }
+
+    /**
+     * @return the partitions whose bins are all written.
+     */
+    @NonNull
+    synchronized Set<Integer> getMerged() {
+        return new TreeSet<>(mMerged);
+    }
+
+    /**
+     * Records that the bins of the partition are all written, and replaces the checkpoint
+     * stored in the file. Partitions can be merged by more threads at the same time.
+     * The checkpoint has to list all the entries of the bulk insert, otherwise the ones added
+     * after it would not be written on resume.
+     */
+    synchronized void setMerged(final int partition, @NonNull final File file) throws IOException {
+        Preconditions.checkElementIndex(partition, mRuns.size());
+        mMerged.add(partition);
+        write(file);
+    }
+
+    /**
+     * Replaces the checkpoint stored in the file, if any.
+     */
+    synchronized void write(@NonNull final File file) throws IOException {
+        Preconditions.checkNotNull(file);
+        // Nothing might have been spilled yet.
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Cannot create directory for checkpoint " + file.getAbsolutePath());
+        }
+        FsUtils.writeAtomically(file, new FsUtils.ContentWriter() {
+            @Override
+            public void write(@NonNull final DataOutputStream out) throws IOException {
+                out.write(MAGIC);
+                out.writeByte(VERSION);
+                out.writeLong(mPosition);
+                mPartitionMapBuilder.writeState(out, mMerged);
+                out.writeInt(mRuns.size());
+                for (int i = 0; i < mRuns.size(); i++) {
+                    final List<String> runs = mRuns.get(i);
+                    out.writeBoolean(mMerged.contains(i));
+                    out.writeInt(runs.size());
+                    for (final String run : runs) {
+                        BinaryUtils.writeString(out, run);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @param partitionMap the map of the index, the entries of a bulk insert into an existing
+     * index go to its bins.
+     * @return the checkpoint stored in the file, null if the file does not exist.
+     */
+    @Nullable
+    static IndexTreeBulkCheckpoint read(@NonNull final File file,
+                                        @NonNull final IndexTreePartitionMap partitionMap) throws IOException {
+        Preconditions.checkNotNull(file);
+        Preconditions.checkNotNull(partitionMap);
+        if (!file.exists()) return null;
+
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+            for (final byte b : MAGIC) {
+                if (in.readByte() != b) throw new IOException("Not a checkpoint file");
+            }
+            final int version = in.readByte();
+            if (version != VERSION && version != VERSION_WITHOUT_MERGED) {
+                throw new IOException("Unsupported checkpoint version " + version);
+            }
+            final boolean hasMerged = version != VERSION_WITHOUT_MERGED;
+            final long position = in.readLong();
+            final IndexTreePartitionMap.Builder partitionMapBuilder
+                    = IndexTreePartitionMap.Builder.readState(in, partitionMap, hasMerged);
+            final int partitions = in.readInt();
+            final List<List<String>> runs = new ArrayList<>(partitions);
+            final Set<Integer> merged = new TreeSet<>();
+            for (int i = 0; i < partitions; i++) {
+                if (hasMerged && in.readBoolean()) {
+                    merged.add(i);
+                }
+                final int count = in.readInt();
+                final List<String> partitionRuns = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    partitionRuns.add(BinaryUtils.readString(in));
+                }
+                runs.add(partitionRuns);
+            }
+            return new IndexTreeBulkCheckpoint(position, runs, partitionMapBuilder, merged);
+        } finally {
+            StreamUtils.closeInputStreamNoThrow(inputStream);
+        }
+    }
+
+    /**
+     * Deletes the checkpoint stored in the file, if any.
+     */
+    static void delete(@NonNull final File file) throws IOException {
+        Preconditions.checkNotNull(file);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete checkpoint " + file.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,578 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+import com.rigoni.citiesindex.utils.FsUtils;
+import com.rigoni.citiesindex.utils.StreamUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * External merge sort used to bulk load an index.
+ *
+ * Entries are buffered in memory until a run is full, then the run is sorted and spilled
+ * to a temporary file. When all the entries are in, the runs are merged back with a k-way
+ * merge and handed over, bin by bin and in order, to a {@link BinSink}. This way every bin
+ * is written exactly once, and the memory used does not depend on the size of the input.
+ */
+class IndexTreeBulkSorter<T extends IndexTreeEntry> {
+    /**
+     * Receives the sorted entries of one bin at a time.
+     */
+    interface BinSink<T extends IndexTreeEntry> {
+        /**
+         * @param subPath the subPath of the bin.
+         * @param entries the sorted and de-duplicated entries of the bin, streamed from the runs.
+         */
+        void writeBin(@NonNull final String subPath, @NonNull final Iterator<T> entries) throws IOException;
+    }
+
+    /**
+     * Keeps track of the partitions merged so far, so that an interrupted finalization can
+     * skip them, see {@link IndexTreeBulkCheckpoint}.
+     */
+    interface MergeListener {
+        /**
+         * @return true if the bins of the partition were written by a previous finalization,
+         * the partition is then skipped.
+         */
+        boolean isMerged(final int partition);
+
+        /**
+         * Called on the thread that merged the partition, once its sink received all the bins.
+         */
+        void onMerged(final int partition) throws IOException;
+    }
+
+    /**
+     * Maximum amount of entries kept in memory before a run is spilled to disk.
+     */
+    static final int DEFAULT_RUN_MAX_ENTRIES = 20000;
+
+    /**
+     * Runs are not made smaller than this when the memory is split among partitions.
+     */
+    private static final int MIN_RUN_MAX_ENTRIES = 2000;
+
+    /**
+     * Maximum amount of runs merged at the same time, bigger amounts are merged in more passes.
+     */
+    private static final int MERGE_MAX_FAN_IN = 32;
+
+    private static final String RUN_FILE_PREFIX = "run_";
+    private static final int STREAM_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * An entry together with the subPath it has to be stored at.
+     */
+    private static class Record<T> {
+        final String mSubPath;
+        final T mEntry;
+
+        Record(@NonNull final String subPath, @NonNull final T entry) {
+            mSubPath = subPath;
+            mEntry = entry;
+        }
+    }
+
+    private final Comparator<Record<T>> mComparator = new Comparator<Record<T>>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(final Record<T> first, final Record<T> second) {
+            final int compareResult = first.mSubPath.compareTo(second.mSubPath);
+            if (compareResult != 0) return compareResult;
+            return ((Comparable<T>) first.mEntry).compareTo(second.mEntry);
+        }
+    };
+
+    private final File mWorkDirectory;
+    private final IndexTreeEntryCodec<T> mCodec;
+    private final int mRunMaxEntries;
+
+    private final List<Record<T>> mCurrentRun = new ArrayList<>();
+    private final List<File> mRuns = new ArrayList<>();
+    private int mNextRunNumber;
+
+    /**
+     * The runs listed by the last checkpoint, they are only deleted by {@link #discard()}.
+     */
+    private final List<File> mCheckpointedRuns = new ArrayList<>();
+
+    /**
+     * Constructor.
+     * @param workDirectory a directory where runs can be spilled, it is created if needed.
+     * @param codec the codec used to write entries to the runs.
+     * @param runMaxEntries how many entries can be kept in memory at most.
+     */
+    IndexTreeBulkSorter(@NonNull final File workDirectory,
+                        @NonNull final IndexTreeEntryCodec<T> codec,
+                        final int runMaxEntries) {
+        Preconditions.checkNotNull(workDirectory);
+        Preconditions.checkNotNull(codec);
+        Preconditions.checkArgument(runMaxEntries > 0);
+        mWorkDirectory = workDirectory;
+        mCodec = codec;
+        mRunMaxEntries = runMaxEntries;
+    }
+
+    /**
+     * The partition a subPath belongs to when bulk inserting in parallel, see
+     * {@link IndexTreeStorage#initiateBulkInsert(int)}. Partitions are made of whole bins, so
+     * each of them can be sorted and written independently.
+     */
+    static int getPartition(@NonNull final String subPath, final int partitions) {
+        Preconditions.checkNotNull(subPath);
+        return (IndexTreeManifest.normalizeSubPath(subPath).hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * Creates the sorters used by a bulk insert, one per partition.
+     * The memory allowed for a single sorter is split among the partitions.
+     */
+    @NonNull
+    static <T extends IndexTreeEntry> List<IndexTreeBulkSorter<T>> createPartitions(@NonNull final File workDirectory,
+                                                                                @NonNull final IndexTreeEntryCodec<T> codec,
+                                                                                final int partitions) {
+        Preconditions.checkArgument(partitions > 0);
+        final List<IndexTreeBulkSorter<T>> sorters = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            sorters.add(new IndexTreeBulkSorter<>(new File(workDirectory, String.valueOf(i)), codec,
+                    Math.max(MIN_RUN_MAX_ENTRIES, DEFAULT_RUN_MAX_ENTRIES / partitions)));
+        }
+        return sorters;
+    }
+
+    /**
+     * Spills the entries kept in memory by each sorter, so that everything added so far is on
+     * disk, and lists the runs in a checkpoint. Entries must not be added meanwhile.
+     * @param position where the caller read its input up to.
+     * @param partitionMapBuilder the builder the subpaths of the entries were obtained from.
+     */
+    @NonNull
+    static <T extends IndexTreeEntry> IndexTreeBulkCheckpoint checkpointPartitions(@NonNull final List<IndexTreeBulkSorter<T>> sorters,
+                                                                                   final long position,
+                                                                                   @NonNull final IndexTreePartitionMap.Builder partitionMapBuilder,
+                                                                                   @NonNull final Set<Integer> merged) throws IOException {
+        final List<List<String>> runs = new ArrayList<>(sorters.size());
+        for (final IndexTreeBulkSorter<T> sorter : sorters) {
+            runs.add(sorter.checkpoint());
+        }
+        return new IndexTreeBulkCheckpoint(position, runs, partitionMapBuilder, merged);
+    }
+
+    /**
+     * @return true if no entry was added since the last checkpoint of the sorters.
+     */
+    static <T extends IndexTreeEntry> boolean isCheckpointed(@NonNull final List<IndexTreeBulkSorter<T>> sorters) {
+        for (final IndexTreeBulkSorter<T> sorter : sorters) {
+            if (!sorter.mCurrentRun.isEmpty() || !sorter.mRuns.equals(sorter.mCheckpointedRuns)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates the sorters of a bulk insert going on from a checkpoint, made of the runs it
+     * lists. Runs spilled after the checkpoint are deleted.
+     */
+    @NonNull
+    static <T extends IndexTreeEntry> List<IndexTreeBulkSorter<T>> resumePartitions(@NonNull final File workDirectory,
+                                                                                @NonNull final IndexTreeEntryCodec<T> codec,
+                                                                                @NonNull final IndexTreeBulkCheckpoint checkpoint) throws IOException {
+        Preconditions.checkNotNull(checkpoint);
+        final List<IndexTreeBulkSorter<T>> sorters = createPartitions(workDirectory, codec, checkpoint.getPartitions());
+        for (int i = 0; i < sorters.size(); i++) {
+            sorters.get(i).resume(checkpoint.getRuns(i));
+        }
+        return sorters;
+    }
+
+    /**
+     * Merges each sorter into its own sink, on as many threads as sorters.
+     * The runs listed by the last checkpoint are kept, the sorters have to be discarded once
+     * the storage does not need to resume the merge anymore.
+     * @param listener tells the partitions to skip and is told about the ones merged.
+     */
+    static <T extends IndexTreeEntry> void mergePartitions(@NonNull final List<IndexTreeBulkSorter<T>> sorters,
+                                                           @NonNull final List<? extends BinSink<T>> sinks,
+                                                           @NonNull final MergeListener listener) throws IOException {
+        Preconditions.checkArgument(sorters.size() == sinks.size());
+        Preconditions.checkNotNull(listener);
+        if (sorters.size() == 1) {
+            // Merged on the calling thread.
+            mergePartition(sorters, sinks, listener, 0);
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(sorters.size());
+        try {
+            final List<Future<Void>> merges = new ArrayList<>();
+            for (int i = 0; i < sorters.size(); i++) {
+                final int partition = i;
+                merges.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        mergePartition(sorters, sinks, listener, partition);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> merge : merges) {
+                try {
+                    merge.get();
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw new RuntimeException("Cannot merge partition " + e.getCause().getMessage());
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while merging partitions");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T extends IndexTreeEntry> void mergePartition(@NonNull final List<IndexTreeBulkSorter<T>> sorters,
+                                                                  @NonNull final List<? extends BinSink<T>> sinks,
+                                                                  @NonNull final MergeListener listener,
+                                                                  final int partition) throws IOException {
+        final IndexTreeBulkSorter<T> sorter = sorters.get(partition);
+        if (listener.isMerged(partition)) {
+            // The entries added on resume are already in the bins.
+            sorter.mCurrentRun.clear();
+            return;
+        }
+        sorter.merge(sinks.get(partition));
+        listener.onMerged(partition);
+    }
+
+    /**
+     * Adds an entry, spilling the current run to disk if it is full.
+     */
+    void add(@NonNull final String subPath, @NonNull final T entry) throws IOException {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(entry);
+        mCurrentRun.add(new Record<>(subPath, entry));
+        if (mCurrentRun.size() >= mRunMaxEntries) {
+            spillCurrentRun();
+        }
+    }
+
+    /**
+     * Merges everything added so far and streams it, bin by bin, to the sink.
+     * The temporary files are deleted afterwards, except the runs listed by the last checkpoint.
+     */
+    void merge(@NonNull final BinSink<T> sink) throws IOException {
+        Preconditions.checkNotNull(sink);
+        try {
+            Iterator<Record<T>> sorted;
+            final List<RunReader> readers = new ArrayList<>();
+            if (mRuns.isEmpty()) {
+                // Everything fits in memory, no need to touch the disk.
+                Collections.sort(mCurrentRun, mComparator);
+                sorted = mCurrentRun.iterator();
+            } else {
+                spillCurrentRun();
+                reduceRuns();
+                for (final File run : mRuns) {
+                    readers.add(new RunReader(run));
+                }
+                sorted = new MergingIterator(readers);
+            }
+
+            try {
+                final PeekingIterator records = new PeekingIterator(sorted);
+                while (records.hasNext()) {
+                    final String subPath = records.peek().mSubPath;
+                    final BinIterator binIterator = new BinIterator(records, subPath);
+                    sink.writeBin(subPath, binIterator);
+                    // The sink might not have consumed the whole bin.
+                    while (binIterator.hasNext()) binIterator.next();
+                }
+            } finally {
+                for (final RunReader reader : readers) {
+                    reader.close();
+                }
+            }
+        } finally {
+            mCurrentRun.clear();
+            for (final File run : mRuns) {
+                if (!mCheckpointedRuns.contains(run)) run.delete();
+            }
+            mRuns.clear();
+        }
+    }
+
+    /**
+     * Drops all the entries and deletes the temporary files.
+     */
+    void discard() {
+        mCurrentRun.clear();
+        mRuns.clear();
+        mCheckpointedRuns.clear();
+        FsUtils.deleteDirectory(mWorkDirectory);
+    }
+
+    /**
+     * Spills the current run, if any.
+     * @return the names of all the runs, relative to the work directory.
+     */
+    @NonNull
+    List<String> checkpoint() throws IOException {
+        spillCurrentRun();
+        final List<String> runs = new ArrayList<>(mRuns.size());
+        for (final File run : mRuns) {
+            runs.add(run.getName());
+        }
+        mCheckpointedRuns.clear();
+        mCheckpointedRuns.addAll(mRuns);
+        return runs;
+    }
+
+    /**
+     * Replaces everything added so far with the specified runs, as listed by {@link #checkpoint()},
+     * deleting the other files found in the work directory.
+     */
+    void resume(@NonNull final List<String> runs) throws IOException {
+        Preconditions.checkNotNull(runs);
+        mCurrentRun.clear();
+        mRuns.clear();
+        mNextRunNumber = 0;
+        for (final String name : runs) {
+            final File run = new File(mWorkDirectory, name);
+            if (!run.isFile()) {
+                throw new IOException("Missing bulk insert run " + run.getAbsolutePath());
+            }
+            mRuns.add(run);
+            mNextRunNumber = Math.max(mNextRunNumber, Integer.parseInt(name.substring(RUN_FILE_PREFIX.length())) + 1);
+        }
+        final File[] files = mWorkDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (!mRuns.contains(file) && !file.delete()) {
+                    throw new IOException("Cannot delete bulk insert run " + file.getAbsolutePath());
+                }
+            }
+        }
+        mCheckpointedRuns.clear();
+        mCheckpointedRuns.addAll(mRuns);
+    }
+
+    private void spillCurrentRun() throws IOException {
+        if (mCurrentRun.isEmpty()) return;
+        Collections.sort(mCurrentRun, mComparator);
+        mRuns.add(writeRun(mCurrentRun.iterator(), mCurrentRun.size()));
+        mCurrentRun.clear();
+    }
+
+    /**
+     * Merges runs together until they can all be opened at once.
+     */
+    private void reduceRuns() throws IOException {
+        while (mRuns.size() > MERGE_MAX_FAN_IN) {
+            final List<File> toMerge = new ArrayList<>(mRuns.subList(0, MERGE_MAX_FAN_IN));
+            final List<RunReader> readers = new ArrayList<>();
+            int count = 0;
+            try {
+                for (final File run : toMerge) {
+                    final RunReader reader = new RunReader(run);
+                    count += reader.mRemaining;
+                    readers.add(reader);
+                }
+                mRuns.add(writeRun(new MergingIterator(readers), count));
+            } finally {
+                for (final RunReader reader : readers) {
+                    reader.close();
+                }
+            }
+            for (final File run : toMerge) {
+                mRuns.remove(run);
+                // Still needed if the merge is resumed from the checkpoint.
+                if (!mCheckpointedRuns.contains(run)) run.delete();
+            }
+        }
+    }
+
+    private File writeRun(@NonNull final Iterator<Record<T>> records, final int count) throws IOException {
+        if (!mWorkDirectory.exists() && !mWorkDirectory.mkdirs()) {
+            throw new IOException("Unable to create bulk insert directory " + mWorkDirectory.getAbsolutePath());
+        }
+        final File run = new File(mWorkDirectory, RUN_FILE_PREFIX + mNextRunNumber++);
+        // Checkpoints list complete runs only, a run is never seen half written.
+        FsUtils.writeAtomically(run, STREAM_BUFFER_SIZE, new FsUtils.ContentWriter() {
+            @Override
+            public void write(@NonNull final DataOutputStream out) throws IOException {
+                out.writeInt(count);
+                while (records.hasNext()) {
+                    final Record<T> record = records.next();
+                    out.writeUTF(record.mSubPath);
+                    mCodec.write(out, record.mEntry);
+                }
+            }
+        });
+        return run;
+    }
+
+    /**
+     * Sequentially reads the records of a run.
+     */
+    private class RunReader {
+        private final FileInputStream mInputStream;
+        private final DataInputStream mIn;
+        private int mRemaining;
+
+        RunReader(@NonNull final File run) throws IOException {
+            mInputStream = new FileInputStream(run);
+            mIn = new DataInputStream(new BufferedInputStream(mInputStream, STREAM_BUFFER_SIZE));
+            mRemaining = mIn.readInt();
+        }
+
+        Record<T> next() throws IOException {
+            if (mRemaining == 0) return null;
+            mRemaining--;
+            final String subPath = mIn.readUTF();
+            return new Record<>(subPath, mCodec.read(mIn, null));
+        }
+
+        void close() {
+            StreamUtils.closeInputStreamNoThrow(mInputStream);
+        }
+    }
+
+    /**
+     * k-way merge of sorted runs.
+     */
+    private class MergingIterator implements Iterator<Record<T>> {
+        private class Head {
+            final RunReader mReader;
+            Record<T> mRecord;
+
+            Head(final RunReader reader, final Record<T> record) {
+                mReader = reader;
+                mRecord = record;
+            }
+        }
+
+        private final PriorityQueue<Head> mHeads;
+
+        MergingIterator(@NonNull final List<RunReader> readers) throws IOException {
+            mHeads = new PriorityQueue<>(Math.max(1, readers.size()), new Comparator<Head>() {
+                @Override
+                public int compare(final Head first, final Head second) {
+                    return mComparator.compare(first.mRecord, second.mRecord);
+                }
+            });
+            for (final RunReader reader : readers) {
+                final Record<T> record = reader.next();
+                if (record != null) mHeads.add(new Head(reader, record));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !mHeads.isEmpty();
+        }
+
+        @Override
+        public Record<T> next() {
+            final Head head = mHeads.poll();
+            if (head == null) throw new NoSuchElementException();
+            final Record<T> record = head.mRecord;
+            try {
+                head.mRecord = head.mReader.next();
+            } catch (final IOException e) {
+                throw new RuntimeException("Cannot read bulk insert run " + e.getMessage());
+            }
+            if (head.mRecord != null) mHeads.add(head);
+            return record;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private class PeekingIterator {
+        private final Iterator<Record<T>> mIterator;
+        private Record<T> mPeeked;
+
+        PeekingIterator(@NonNull final Iterator<Record<T>> iterator) {
+            mIterator = iterator;
+        }
+
+        boolean hasNext() {
+            return mPeeked != null || mIterator.hasNext();
+        }
+
+        Record<T> peek() {
+            if (mPeeked == null) mPeeked = mIterator.next();
+            return mPeeked;
+        }
+
+        Record<T> next() {
+            final Record<T> record = peek();
+            mPeeked = null;
+            return record;
+        }
+    }
+
+    /**
+     * Iterates over the entries belonging to a single bin, dropping duplicates the same way
+     * a sorted set would.
+     */
+    private class BinIterator implements Iterator<T> {
+        private final PeekingIterator mRecords;
+        private final String mSubPath;
+        private T mLast;
+
+        BinIterator(@NonNull final PeekingIterator records, @NonNull final String subPath) {
+            mRecords = records;
+            mSubPath = subPath;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean hasNext() {
+            while (mRecords.hasNext() && mRecords.peek().mSubPath.equals(mSubPath)) {
+                if (mLast == null || ((Comparable<T>) mLast).compareTo(mRecords.peek().mEntry) != 0) {
+                    return true;
+                }
+                // Duplicate, skip it.
+                mRecords.next();
+            }
+            return false;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            mLast = mRecords.next().mEntry;
+            return mLast;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
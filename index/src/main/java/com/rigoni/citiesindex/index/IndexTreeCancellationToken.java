@@ -0,0 +1,43 @@
+package com.rigoni.citiesindex.index;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Lets a query be abandoned while it runs, for example when the user has typed another
+ * character. The token is passed down to the storage, whose loops check it between entries
+ * and bins: once {@link #cancel()} is called, from any thread, the query stops soon after
+ * with an {@link IndexTreeCancelledException}.
+ */
+public final class IndexTreeCancellationToken {
+    /**
+     * A token which is never cancelled, for queries which always run to the end.
+     */
+    public static final IndexTreeCancellationToken NONE = new IndexTreeCancellationToken();
+
+    private volatile boolean mCancelled;
+
+    /**
+     * Cancels the queries running with this token, and the ones started with it later on.
+     */
+    public void cancel() {
+        Preconditions.checkState(this != NONE, "The NONE token cannot be cancelled");
+        mCancelled = true;
+    }
+
+    /**
+     * @return true if {@link #cancel()} was called.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Stops the calling query if the token was cancelled.
+     * @throws IndexTreeCancelledException if {@link #cancel()} was called.
+     */
+    public void throwIfCancelled() {
+        if (mCancelled) {
+            throw new IndexTreeCancelledException();
+        }
+    }
+}
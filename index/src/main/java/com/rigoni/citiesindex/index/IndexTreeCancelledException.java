@@ -0,0 +1,13 @@
+package com.rigoni.citiesindex.index;
+
+/**
+ * Thrown by queries whose {@link IndexTreeCancellationToken} was cancelled.
+ * Nothing is wrong with the index, the results are simply not wanted anymore.
+ */
+public class IndexTreeCancelledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public IndexTreeCancelledException() {
+        super("Query cancelled");
+    }
+}
@@ -0,0 +1,56 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+
+/**
+ * An opaque cursor pointing between two entries, right after the last entry or right before
+ * the first entry of an {@link IndexTreePage}.
+ * Passing it back to {@link IndexTree#filterForward(IndexTreeContinuation, int)} or
+ * {@link IndexTree#filterBackwards(IndexTreeContinuation, int)} resumes the filtering without
+ * listing the subpaths again nor scanning the bins for the last read entry.
+ * A continuation is only valid as long as the index it was obtained from is not modified.
+ */
+public final class IndexTreeContinuation {
+    @NonNull
+    final String mFilter;
+
+    /**
+     * The subpaths being walked, as listed when the first page was read.
+     */
+    @NonNull
+    final List<String> mSubPaths;
+
+    /**
+     * The subpath the cursor is in.
+     */
+    final int mSubPathIndex;
+
+    /**
+     * The position inside the bin of the entry following the cursor.
+     */
+    final int mBinPosition;
+
+    IndexTreeContinuation(@NonNull final String filter,
+                          @NonNull final List<String> subPaths,
+                          final int subPathIndex,
+                          final int binPosition) {
+        Preconditions.checkNotNull(filter);
+        Preconditions.checkNotNull(subPaths);
+        mFilter = filter;
+        mSubPaths = subPaths;
+        mSubPathIndex = subPathIndex;
+        mBinPosition = binPosition;
+    }
+
+    /**
+     * @return the filter the continuation belongs to.
+     */
+    @NonNull
+    public String getFilter() {
+        return mFilter;
+    }
+}
@@ -0,0 +1,32 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts entries to and from a compact binary representation.
+ * Storage implementations use codecs whenever entries have to leave the heap, for instance
+ * when spilling sorted runs to disk during a bulk insert.
+ */
+public interface IndexTreeEntryCodec<T extends IndexTreeEntry> {
+    /**
+     * Writes the entry to the output.
+     * @param out the output to write to.
+     * @param entry the entry to write.
+     */
+    void write(@NonNull final DataOutput out, @NonNull final T entry) throws IOException;
+
+    /**
+     * Reads an entry previously written with {@link #write(DataOutput, IndexTreeEntry)}.
+     * @param in the input to read from.
+     * @param indexTreeKey the key of the entry if the caller already knows it, null otherwise.
+     *                     Codecs can use it to avoid computing the key again.
+     * @return the decoded entry.
+     */
+    @NonNull
+    T read(@NonNull final DataInput in, @Nullable final String indexTreeKey) throws IOException;
+}
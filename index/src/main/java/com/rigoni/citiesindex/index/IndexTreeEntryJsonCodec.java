@@ -0,0 +1,38 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Converts entries to and from the json documents stored in the bins of
+ * {@link IndexTreeStorageFs}. Entries are streamed, one json value each.
+ */
+public interface IndexTreeEntryJsonCodec<T extends IndexTreeEntry> {
+    /**
+     * Writes the entry as a single json value.
+     * @param out the writer, positioned where the value goes.
+     * @param entry the entry to write.
+     */
+    void write(@NonNull final JsonWriter out, @NonNull final T entry) throws IOException;
+
+    /**
+     * Reads an entry previously written with {@link #write(JsonWriter, IndexTreeEntry)}.
+     * @param in the reader, positioned at the value.
+     * @return the decoded entry.
+     */
+    @NonNull
+    T read(@NonNull final JsonReader in) throws IOException;
+
+    /**
+     * Consumes an entry like {@link #read(JsonReader)}, decoding only what is needed to know its key.
+     * Used when looking for a position inside a bin.
+     * @param in the reader, positioned at the value.
+     * @return the key of the entry, see {@link IndexTreeEntry#getIndexTreeKey()}.
+     */
+    @NonNull
+    String readKey(@NonNull final JsonReader in) throws IOException;
+}
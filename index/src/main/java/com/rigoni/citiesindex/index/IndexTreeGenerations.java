@@ -0,0 +1,179 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.rigoni.citiesindex.utils.BinaryUtils;
+import com.rigoni.citiesindex.utils.FsUtils;
+import com.rigoni.citiesindex.utils.StreamUtils;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Keeps the successive builds of an index side by side, so that it can be rebuilt while the
+ * current one keeps serving queries.
+ *
+ * <pre>
+ * root/current   the name of the published generation
+ * root/gen_N/    a generation, the base directory of one build of the index
+ * root/gen_N/complete   written once the build of the generation is finalized
+ * </pre>
+ *
+ * A build goes into a new staging generation, see {@link #createStaging()}, which nobody reads.
+ * Once it is finalized {@link #publish(File)} marks it as complete and then replaces the
+ * pointer with a rename, which is atomic: readers find either the old generation or the new one,
+ * never a half built index. The generation published before stays on disk until the following
+ * swap, so an {@link IndexTree} opened on it keeps working while its owner moves to the new one.
+ */
+public final class IndexTreeGenerations {
+    private static final String POINTER_FILE_NAME = "current";
+    private static final String COMPLETION_MARKER_FILE_NAME = "complete";
+    private static final String GENERATION_PREFIX = "gen_";
+
+    @NonNull
+    private final File mRoot;
+
+    /**
+     * Constructor.
+     * @param root the directory holding the generations, nothing else should be stored inside.
+     */
+    public IndexTreeGenerations(@NonNull final File root) {
+        Preconditions.checkNotNull(root);
+        mRoot = root;
+    }
+
+    /**
+     * @return the base directory of the published generation, null if none was published yet.
+     */
+    @Nullable
+    public File getPublished() {
+        final String name = readPointer();
+        if (name == null) return null;
+        final File generation = new File(mRoot, name);
+        return new File(generation, COMPLETION_MARKER_FILE_NAME).exists() ? generation : null;
+    }
+
+    /**
+     * @return the base directory of the staging generation whose build was interrupted after
+     * a checkpoint, see {@link IndexTreeBulkCheckpoint}, null if there is none.
+     */
+    @Nullable
+    public File getInterrupted() {
+        final File staging = getNewestGeneration();
+        if (staging == null || isComplete(staging)) return null;
+        return IndexTreeBulkCheckpoint.isPresent(staging) ? staging : null;
+    }
+
+    /**
+     * Creates an empty generation to build a new index into. Staging generations left by
+     * builds that never completed are deleted.
+     * @return the base directory of the generation.
+     */
+    @NonNull
+    public File createStaging() throws IOException {
+        final File newest = getNewestGeneration();
+        if (newest != null && !isComplete(newest)) {
+            FsUtils.deleteDirectory(newest);
+        }
+        final File staging = new File(mRoot, GENERATION_PREFIX + (getGenerationNumber(getNewestGeneration()) + 1));
+        if (!staging.mkdirs()) {
+            throw new IOException("Cannot create generation " + staging.getAbsolutePath());
+        }
+        return staging;
+    }
+
+    /**
+     * Makes the generation the published one. The generation published before is kept, older
+     * ones are deleted.
+     * @param generation the staging generation, its build must be finalized.
+     */
+    public void publish(@NonNull final File generation) throws IOException {
+        Preconditions.checkNotNull(generation);
+        Preconditions.checkArgument(mRoot.equals(generation.getParentFile()));
+        final File previous = getPublished();
+
+        writeFile(new File(generation, COMPLETION_MARKER_FILE_NAME), new byte[0]);
+        final File pointerFile = new File(mRoot, POINTER_FILE_NAME);
+        writeFile(pointerFile, generation.getName().getBytes(BinaryUtils.UTF_8));
+
+        final File[] files = mRoot.listFiles();
+        if (files == null) return;
+        for (final File file : files) {
+            if (file.equals(generation) || file.equals(previous) || file.equals(pointerFile)) continue;
+            // Older generations, or files left by indexes built before generations existed.
+            if (file.isDirectory()) {
+                FsUtils.deleteDirectory(file);
+            } else {
+                file.delete();
+            }
+        }
+    }
+
+    private boolean isComplete(@NonNull final File generation) {
+        return new File(generation, COMPLETION_MARKER_FILE_NAME).exists();
+    }
+
+    /**
+     * @return the generation with the highest number, published or not, null if there are none.
+     */
+    @Nullable
+    private File getNewestGeneration() {
+        final File[] files = mRoot.listFiles();
+        File newest = null;
+        if (files != null) {
+            for (final File file : files) {
+                if (file.isDirectory() && getGenerationNumber(file) > getGenerationNumber(newest)) {
+                    newest = file;
+                }
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * @return the number of the generation, -1 if the file is not a generation.
+     */
+    private static int getGenerationNumber(@Nullable final File file) {
+        if (file == null || !file.getName().startsWith(GENERATION_PREFIX)) return -1;
+        try {
+            return Integer.parseInt(file.getName().substring(GENERATION_PREFIX.length()));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Nullable
+    private String readPointer() {
+        final File pointerFile = new File(mRoot, POINTER_FILE_NAME);
+        if (!pointerFile.exists()) return null;
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(pointerFile);
+            final byte[] content = new byte[(int) pointerFile.length()];
+            int read = 0;
+            while (read < content.length) {
+                final int chunk = inputStream.read(content, read, content.length - read);
+                if (chunk < 0) break;
+                read += chunk;
+            }
+            return new String(content, 0, read, BinaryUtils.UTF_8);
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot read published generation " + e.getMessage());
+        } finally {
+            StreamUtils.closeInputStreamNoThrow(inputStream);
+        }
+    }
+
+    private static void writeFile(@NonNull final File file, @NonNull final byte[] content) throws IOException {
+        FsUtils.writeAtomically(file, new FsUtils.ContentWriter() {
+            @Override
+            public void write(@NonNull final DataOutputStream out) throws IOException {
+                out.write(content);
+            }
+        });
+    }
+}
@@ -0,0 +1,192 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.rigoni.citiesindex.utils.BinaryUtils;
+import com.rigoni.citiesindex.utils.FsUtils;
+import com.rigoni.citiesindex.utils.StreamUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sorted list of the subpaths holding at least one entry, together with their entries count.
+ *
+ * <pre>
+ * magic (4 bytes) | version (1 byte) | subpaths count (int)
+ * for each subpath, sorted: subPath (length prefixed UTF-8) | entries count (varint)
+ * </pre>
+ *
+ * It is written once the index is built and loaded in memory when queried, so the subpaths
+ * under a prefix are found with a binary search instead of walking the directory tree.
+ * Counts are rolled up in memory for every node of the tree, from the root to the bins.
+ */
+final class IndexTreeManifest {
+    private static final byte[] MAGIC = {'C', 'I', 'M', 'F'};
+    private static final int VERSION = 1;
+
+    /**
+     * Sorted.
+     */
+    @NonNull
+    private final String[] mSubPaths;
+    @NonNull
+    private final int[] mCounts;
+
+    /**
+     * The amount of entries in the subpaths before each one, plus the total at the end.
+     */
+    @NonNull
+    private final int[] mStarts;
+
+    /**
+     * The amount of entries at and below each node of the tree, at every depth.
+     */
+    @NonNull
+    private final Map<String, Integer> mNodeCounts = new HashMap<>();
+
+    /**
+     * @param subPaths the subpaths in canonical form, see {@link #normalizeSubPath(String)}, sorted.
+     * @param counts the entries count of each subpath.
+     */
+    IndexTreeManifest(@NonNull final String[] subPaths, @NonNull final int[] counts) {
+        Preconditions.checkNotNull(subPaths);
+        Preconditions.checkNotNull(counts);
+        Preconditions.checkArgument(subPaths.length == counts.length);
+        mSubPaths = subPaths;
+        mCounts = counts;
+        mStarts = new int[subPaths.length + 1];
+        for (int i = 0; i < subPaths.length; i++) {
+            mStarts[i + 1] = mStarts[i] + counts[i];
+            // Every prefix ending with a separator is a node: the root, then one per depth.
+            int end = 0;
+            do {
+                final String node = subPaths[i].substring(0, end);
+                final Integer nodeCount = mNodeCounts.get(node);
+                mNodeCounts.put(node, (nodeCount != null ? nodeCount : 0) + counts[i]);
+                end = subPaths[i].indexOf(File.separator, end) + 1;
+            } while (end > 0);
+        }
+    }
+
+    /**
+     * @return the subpaths equal to or below the specified one, sorted.
+     */
+    @NonNull
+    List<String> getSubPathsFrom(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+        final String prefix = normalizeSubPath(subPath);
+        int from = Arrays.binarySearch(mSubPaths, prefix);
+        if (from < 0) from = -from - 1;
+        int to = from;
+        while (to < mSubPaths.length && mSubPaths[to].startsWith(prefix)) {
+            to++;
+        }
+        return Collections.unmodifiableList(Arrays.asList(mSubPaths).subList(from, to));
+    }
+
+    /**
+     * @return the entries count at the specified subpath, zero if it is not in the manifest.
+     */
+    int getCount(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+        final int index = Arrays.binarySearch(mSubPaths, normalizeSubPath(subPath));
+        return index < 0 ? 0 : mCounts[index];
+    }
+
+    /**
+     * @return the entries count at the specified subpath and below it.
+     */
+    int getCountFrom(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+        final Integer count = mNodeCounts.get(normalizeSubPath(subPath));
+        return count != null ? count : 0;
+    }
+
+    /**
+     * @return the amount of entries in the subpaths sorting before the specified one, which
+     * does not need to exist. This is the position of its first entry in the whole index.
+     */
+    int getCountBefore(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+        int index = Arrays.binarySearch(mSubPaths, normalizeSubPath(subPath));
+        if (index < 0) index = -index - 1;
+        return mStarts[index];
+    }
+
+    /**
+     * Replaces the manifest stored in the file, see {@link FsUtils#writeAtomically(File, FsUtils.ContentWriter)}.
+     */
+    void write(@NonNull final File file) throws IOException {
+        Preconditions.checkNotNull(file);
+        FsUtils.writeAtomically(file, new FsUtils.ContentWriter() {
+            @Override
+            public void write(@NonNull final DataOutputStream out) throws IOException {
+                out.write(MAGIC);
+                out.writeByte(VERSION);
+                out.writeInt(mSubPaths.length);
+                for (int i = 0; i < mSubPaths.length; i++) {
+                    BinaryUtils.writeString(out, mSubPaths[i]);
+                    BinaryUtils.writeVarInt(out, mCounts[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the manifest stored in the file, null if the file does not exist.
+     */
+    @Nullable
+    static IndexTreeManifest read(@NonNull final File file) throws IOException {
+        Preconditions.checkNotNull(file);
+        if (!file.exists()) return null;
+
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+            for (final byte b : MAGIC) {
+                if (in.readByte() != b) throw new IOException("Not a manifest file");
+            }
+            final int version = in.readByte();
+            if (version != VERSION) throw new IOException("Unsupported manifest version " + version);
+            final int subPathsCount = in.readInt();
+            final String[] subPaths = new String[subPathsCount];
+            final int[] counts = new int[subPathsCount];
+            for (int i = 0; i < subPathsCount; i++) {
+                subPaths[i] = BinaryUtils.readString(in);
+                counts[i] = BinaryUtils.readVarInt(in);
+            }
+            return new IndexTreeManifest(subPaths, counts);
+        } finally {
+            StreamUtils.closeInputStreamNoThrow(inputStream);
+        }
+    }
+
+    /**
+     * Subpaths are compared as strings, so they are brought to the canonical form used by
+     * {@link IndexTreePartitionMap#getSubPath(String)}: no empty components and a
+     * trailing separator.
+     */
+    @NonNull
+    static String normalizeSubPath(@NonNull final String subPath) {
+        final StringBuilder normalized = new StringBuilder(subPath.length() + 1);
+        for (final String component : subPath.split(File.separator)) {
+            if (!component.isEmpty()) {
+                normalized.append(component).append(File.separator);
+            }
+        }
+        return normalized.toString();
+    }
+}
@@ -0,0 +1,58 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+
+/**
+ * A page of entries read from an {@link IndexTree}, together with the continuations
+ * needed to read the preceding and the following ones.
+ */
+public final class IndexTreePage {
+    @NonNull
+    private final List<IndexTreeEntry> mEntries;
+
+    @Nullable
+    private final IndexTreeContinuation mPreviousContinuation;
+
+    @Nullable
+    private final IndexTreeContinuation mContinuation;
+
+    IndexTreePage(@NonNull final List<IndexTreeEntry> entries,
+                  @Nullable final IndexTreeContinuation previousContinuation,
+                  @Nullable final IndexTreeContinuation continuation) {
+        Preconditions.checkNotNull(entries);
+        mEntries = entries;
+        mPreviousContinuation = previousContinuation;
+        mContinuation = continuation;
+    }
+
+    /**
+     * @return the entries of the page, sorted.
+     */
+    @NonNull
+    public List<IndexTreeEntry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @return the continuation to read the preceding page, null if there are no more
+     * matching entries before this page.
+     */
+    @Nullable
+    public IndexTreeContinuation getPreviousContinuation() {
+        return mPreviousContinuation;
+    }
+
+    /**
+     * @return the continuation to read the following page, null if there are no more
+     * matching entries.
+     */
+    @Nullable
+    public IndexTreeContinuation getContinuation() {
+        return mContinuation;
+    }
+}
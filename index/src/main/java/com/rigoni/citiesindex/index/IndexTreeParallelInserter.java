@@ -0,0 +1,227 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Feeds a bulk insert from more threads, in two stages connected by bounded queues:
+ *
+ * <ul>
+ * <li>key workers compute the key of each entry, which is the expensive part since it
+ * involves normalizing the name, and route the entry to the queue of its partition;</li>
+ * <li>partition workers add the entries to the storage, each of them owning one partition,
+ * see {@link IndexTreeStorage#initiateBulkInsert(int)}.</li>
+ * </ul>
+ *
+ * Queues are bounded, so a slow stage blocks the one feeding it instead of piling up entries
+ * in memory. The first failure of any worker is reported by the following {@link #add} or by
+ * {@link #finish()}.
+ */
+final class IndexTreeParallelInserter {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    /**
+     * Tells a key worker there are no more entries.
+     */
+    private static final IndexTreeEntry END_OF_ENTRIES = new IndexTreeEntry() {
+        @Override
+        public String getIndexTreeKey() {
+            return null;
+        }
+    };
+
+    /**
+     * Tells a partition worker there are no more entries.
+     */
+    private static final RoutedEntry END_OF_PARTITION = new RoutedEntry(null, null);
+
+    @NonNull
+    private final IndexTreeStorage<? extends IndexTreeEntry> mStorage;
+    @NonNull
+    private final IndexTreePartitionMap.Builder mPartitionMapBuilder;
+    @NonNull
+    private final BlockingQueue<IndexTreeEntry> mEntries = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    @NonNull
+    private final List<BlockingQueue<RoutedEntry>> mPartitions = new ArrayList<>();
+    @NonNull
+    private final List<Thread> mKeyWorkers = new ArrayList<>();
+    @NonNull
+    private final List<Thread> mPartitionWorkers = new ArrayList<>();
+    @NonNull
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+
+    /**
+     * Constructor, starts the workers.
+     * @param storage the storage, in a bulk insert initiated with the same amount of partitions.
+     * @param partitionMapBuilder gives the subpath of each entry.
+     * @param workers the amount of workers of each stage, also the amount of partitions.
+     */
+    IndexTreeParallelInserter(@NonNull final IndexTreeStorage<? extends IndexTreeEntry> storage,
+                              @NonNull final IndexTreePartitionMap.Builder partitionMapBuilder,
+                              final int workers) {
+        Preconditions.checkNotNull(storage);
+        Preconditions.checkNotNull(partitionMapBuilder);
+        Preconditions.checkArgument(workers > 0);
+        mStorage = storage;
+        mPartitionMapBuilder = partitionMapBuilder;
+        for (int i = 0; i < workers; i++) {
+            mPartitions.add(new ArrayBlockingQueue<RoutedEntry>(QUEUE_CAPACITY));
+        }
+        for (int i = 0; i < workers; i++) {
+            final BlockingQueue<RoutedEntry> partition = mPartitions.get(i);
+            mPartitionWorkers.add(startWorker("IndexPartitionWorker-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    runPartitionWorker(partition);
+                }
+            }));
+            mKeyWorkers.add(startWorker("IndexKeyWorker-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    runKeyWorker();
+                }
+            }));
+        }
+    }
+
+    /**
+     * Queues an entry, blocks while the workers are behind.
+     */
+    void add(@NonNull final IndexTreeEntry entry) {
+        Preconditions.checkNotNull(entry);
+        put(mEntries, entry);
+    }
+
+    /**
+     * @return the amount of workers of each stage, also the amount of partitions.
+     */
+    int getWorkers() {
+        return mPartitions.size();
+    }
+
+    /**
+     * Waits for all the queued entries to reach the storage and stops the workers.
+     */
+    void finish() {
+        try {
+            for (int i = 0; i < mKeyWorkers.size(); i++) {
+                put(mEntries, END_OF_ENTRIES);
+            }
+            join(mKeyWorkers);
+            for (final BlockingQueue<RoutedEntry> partition : mPartitions) {
+                put(partition, END_OF_PARTITION);
+            }
+            join(mPartitionWorkers);
+            throwIfFailed();
+        } catch (final RuntimeException e) {
+            cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the workers, queued entries are dropped.
+     */
+    void cancel() {
+        for (final Thread worker : mKeyWorkers) {
+            worker.interrupt();
+        }
+        for (final Thread worker : mPartitionWorkers) {
+            worker.interrupt();
+        }
+    }
+
+    private void runKeyWorker() {
+        try {
+            final int partitions = mPartitions.size();
+            while (mFailure.get() == null) {
+                final IndexTreeEntry entry = mEntries.take();
+                if (entry == END_OF_ENTRIES) return;
+                final String subPath = mPartitionMapBuilder.add(entry.getIndexTreeKey());
+                put(mPartitions.get(IndexTreeBulkSorter.getPartition(subPath, partitions)),
+                        new RoutedEntry(entry, subPath));
+            }
+        } catch (final InterruptedException e) {
+            // Cancelled
+        } catch (final Throwable t) {
+            mFailure.compareAndSet(null, t);
+        }
+    }
+
+    private void runPartitionWorker(@NonNull final BlockingQueue<RoutedEntry> partition) {
+        try {
+            while (mFailure.get() == null) {
+                final RoutedEntry routedEntry = partition.take();
+                if (routedEntry == END_OF_PARTITION) return;
+                IndexTree.addEntryToStorage(mStorage, routedEntry.mSubPath, routedEntry.mEntry);
+            }
+        } catch (final InterruptedException e) {
+            // Cancelled
+        } catch (final Throwable t) {
+            mFailure.compareAndSet(null, t);
+        }
+    }
+
+    /**
+     * Like {@link BlockingQueue#put(Object)}, but gives up as soon as a worker fails, since
+     * nobody might be left to take from the queue.
+     */
+    private <E> void put(@NonNull final BlockingQueue<E> queue, @NonNull final E element) {
+        try {
+            while (!queue.offer(element, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throwIfFailed();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while adding entries");
+        }
+    }
+
+    private void join(@NonNull final List<Thread> workers) {
+        try {
+            for (final Thread worker : workers) {
+                worker.join();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while adding entries");
+        }
+    }
+
+    private void throwIfFailed() {
+        final Throwable failure = mFailure.get();
+        if (failure != null) {
+            throw new RuntimeException("Cannot add entries " + failure.getMessage());
+        }
+    }
+
+    @NonNull
+    private static Thread startWorker(@NonNull final String name, @NonNull final Runnable runnable) {
+        final Thread worker = new Thread(runnable, name);
+        worker.setDaemon(true);
+        worker.start();
+        return worker;
+    }
+
+    /**
+     * An entry together with the subPath it goes to.
+     */
+    private static class RoutedEntry {
+        final IndexTreeEntry mEntry;
+        final String mSubPath;
+
+        RoutedEntry(final IndexTreeEntry entry, final String subPath) {
+            mEntry = entry;
+            mSubPath = subPath;
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.rigoni.citiesindex.utils.BinaryUtils;
+import com.rigoni.citiesindex.utils.FsUtils;
+import com.rigoni.citiesindex.utils.StreamUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Tells the bin each key is stored in, both while building the index and while querying it.
+ *
+ * Indexes used to be laid out with a fixed depth, see {@link #FIXED_DEPTH}: one bin for each
+ * distinct prefix of {@link #MAX_DEPTH} characters. With real names this makes a few huge bins,
+ * like "san" or "new", that every longer filter has to scan, next to thousands of bins holding
+ * one or two entries each.
+ * Maps made by a {@link Builder} split the keys in ranges chosen from the keys actually stored
+ * instead. Each bin starts at a boundary, the shortest prefix of its first key sorting after the
+ * last key of the bin before, and holds all the keys up to the following boundary: hot prefixes
+ * are split among more bins, cold ones share a bin with their neighbours.
+ *
+ * <pre>
+ * magic (4 bytes) | version (1 byte) | boundaries count (int)
+ * for each boundary, sorted: boundary (length prefixed UTF-8)
+ * </pre>
+ *
+ * Boundaries sort like the subpaths of their bins, as each path component is a single character.
+ */
+public final class IndexTreePartitionMap {
+    private static final byte[] MAGIC = {'C', 'I', 'P', 'M'};
+    private static final int VERSION = 1;
+
+    /**
+     * Depth of the tree in the {@link #FIXED_DEPTH} layout.
+     */
+    static final int MAX_DEPTH = 3;
+
+    /**
+     * The layout of indexes built entry by entry, or before partition maps existed.
+     */
+    public static final IndexTreePartitionMap FIXED_DEPTH = new IndexTreePartitionMap(null);
+
+    /**
+     * Sorted, null in the fixed depth layout.
+     */
+    @Nullable
+    private final String[] mBoundaries;
+
+    /**
+     * The subpath of the bin starting at each boundary, in canonical form.
+     */
+    @Nullable
+    private final String[] mSubPaths;
+
+    private IndexTreePartitionMap(@Nullable final String[] boundaries) {
+        mBoundaries = boundaries;
+        if (boundaries == null) {
+            mSubPaths = null;
+            return;
+        }
+        mSubPaths = new String[boundaries.length];
+        for (int i = 0; i < boundaries.length; i++) {
+            mSubPaths[i] = toSubPath(boundaries[i]);
+        }
+    }
+
+    /**
+     * @param subPaths the subpaths of the bins of an index built with a {@link Builder}, sorted.
+     * @return the map the index was built with.
+     */
+    @NonNull
+    static IndexTreePartitionMap fromSubPaths(@NonNull final String[] subPaths) {
+        Preconditions.checkNotNull(subPaths);
+        final String[] boundaries = new String[subPaths.length];
+        for (int i = 0; i < subPaths.length; i++) {
+            boundaries[i] = subPaths[i].replace(File.separator, "");
+        }
+        return new IndexTreePartitionMap(boundaries);
+    }
+
+    /**
+     * @return true for the fixed depth layout, where bins are not known upfront and are looked
+     * up in the storage instead.
+     */
+    public boolean isFixedDepth() {
+        return mBoundaries == null;
+    }
+
+    /**
+     * @param key the key of an entry.
+     * @return the subpath of the bin the entry is stored in.
+     */
+    @NonNull
+    public String getSubPath(@NonNull final String key) {
+        Preconditions.checkNotNull(key);
+        if (mBoundaries == null) {
+            return toSubPath(key.substring(0, Math.min(MAX_DEPTH, key.length())));
+        }
+        return mSubPaths[getBin(key)];
+    }
+
+    /**
+     * Not available in the fixed depth layout.
+     * @return the subpaths of the bins holding the keys between the specified ones, both
+     * included, sorted.
+     */
+    @NonNull
+    List<String> getSubPathsBetween(@NonNull final String fromKey, @NonNull final String toKey) {
+        Preconditions.checkNotNull(fromKey);
+        Preconditions.checkNotNull(toKey);
+        Preconditions.checkState(mSubPaths != null);
+        if (mSubPaths.length == 0) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(
+                Arrays.asList(mSubPaths).subList(getBin(fromKey), Math.max(getBin(fromKey), getBin(toKey)) + 1));
+    }
+
+    /**
+     * @return the position of the last boundary not greater than the key, keys before the
+     * first boundary belong to the first bin.
+     */
+    private int getBin(@NonNull final String key) {
+        final int index = Arrays.binarySearch(mBoundaries, key);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    /**
+     * Writes the map to a temporary file first, the file is then replaced with a rename.
+     * Nothing is written for the fixed depth layout, the file is deleted instead.
+     */
+    void write(@NonNull final File file) throws IOException {
+        Preconditions.checkNotNull(file);
+        if (mBoundaries == null) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot delete partition map " + file.getAbsolutePath());
+            }
+            return;
+        }
+
+        final String[] boundaries = mBoundaries;
+        FsUtils.writeAtomically(file, new FsUtils.ContentWriter() {
+            @Override
+            public void write(@NonNull final DataOutputStream out) throws IOException {
+                out.write(MAGIC);
+                out.writeByte(VERSION);
+                out.writeInt(boundaries.length);
+                for (final String boundary : boundaries) {
+                    BinaryUtils.writeString(out, boundary);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the map stored in the file, {@link #FIXED_DEPTH} if the file does not exist.
+     */
+    @NonNull
+    static IndexTreePartitionMap read(@NonNull final File file) throws IOException {
+        Preconditions.checkNotNull(file);
+        if (!file.exists()) return FIXED_DEPTH;
+
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+            for (final byte b : MAGIC) {
+                if (in.readByte() != b) throw new IOException("Not a partition map file");
+            }
+            final int version = in.readByte();
+            if (version != VERSION) throw new IOException("Unsupported partition map version " + version);
+            final String[] boundaries = new String[in.readInt()];
+            for (int i = 0; i < boundaries.length; i++) {
+                boundaries[i] = BinaryUtils.readString(in);
+            }
+            return new IndexTreePartitionMap(boundaries);
+        } finally {
+            StreamUtils.closeInputStreamNoThrow(inputStream);
+        }
+    }
+
+    /**
+     * @return the subpath made of one component per character of the prefix, in canonical form.
+     */
+    @NonNull
+    static String toSubPath(@NonNull final String prefix) {
+        final StringBuilder subPath = new StringBuilder(prefix.length() * 2);
+        for (int i = 0; i < prefix.length(); i++) {
+            subPath.append(prefix.charAt(i)).append(File.separator);
+        }
+        return subPath.toString();
+    }
+
+    /**
+     * Chooses the bins of a bulk insert, in two passes.
+     *
+     * <ul>
+     * <li>While entries are added, {@link #add(String)} counts the keys of each group, made of
+     * the keys starting with the same character, and sends all the entries of a group to the
+     * same bin of the storage, so that the group ends up in a single partition.</li>
+     * <li>When the bulk insert is finalized, the storage streams each group through the sink
+     * returned by {@link #split(IndexTreeBulkSorter.BinSink, int)}, which cuts it into bins of about
+     * the target size, never bigger than the maximum unless the keys at the cut are equal.</li>
+     * </ul>
+     *
+     * Bins are cut only when the index is built from scratch: when entries are added to an
+     * existing one they are sent to the bins of its current map, which is kept.
+     */
+    public static final class Builder {
+        /**
+         * Bins of this size are read in a few milliseconds even as json, and are still large
+         * enough for a single one to fill the first page of most filters.
+         */
+        public static final int DEFAULT_TARGET_BIN_SIZE = 256;
+        public static final int DEFAULT_MAX_BIN_SIZE = 512;
+
+        @NonNull
+        private final IndexTreePartitionMap mMap;
+        private final boolean mSplitting;
+        private final int mTargetBinSize;
+        private final int mMaxBinSize;
+
+        /**
+         * The amount of keys of each group, by subpath of the group.
+         */
+        private final Map<String, Integer> mGroupCounts = new HashMap<>();
+
+        /**
+         * The boundaries of the bins written so far, by partition.
+         */
+        private final Map<Integer, List<String>> mBoundaries = new HashMap<>();
+
+        /**
+         * Constructor for a bulk insert into an existing index, entries go to the bins of its map.
+         * @param map the map of the index.
+         */
+        Builder(@NonNull final IndexTreePartitionMap map) {
+            Preconditions.checkNotNull(map);
+            mMap = map;
+            mSplitting = false;
+            mTargetBinSize = 0;
+            mMaxBinSize = 0;
+        }
+
+        /**
+         * Constructor for a bulk insert building the index from scratch.
+         * @param targetBinSize the amount of entries bins are cut at.
+         * @param maxBinSize the amount of entries bins can grow to, to avoid leaving a small
+         * bin at the end of a group.
+         */
+        Builder(final int targetBinSize, final int maxBinSize) {
+            Preconditions.checkArgument(targetBinSize > 0);
+            Preconditions.checkArgument(maxBinSize >= targetBinSize);
+            mMap = FIXED_DEPTH;
+            mSplitting = true;
+            mTargetBinSize = targetBinSize;
+            mMaxBinSize = maxBinSize;
+        }
+
+        /**
+         * Counts the key, can be called from more threads at the same time.
+         * @param key the key of an entry being bulk inserted.
+         * @return the subpath the entry has to be added at.
+         */
+        @NonNull
+        String add(@NonNull final String key) {
+            Preconditions.checkNotNull(key);
+            if (!mSplitting) {
+                return mMap.getSubPath(key);
+            }
+            final String group = toSubPath(key.substring(0, Math.min(1, key.length())));
+            synchronized (mGroupCounts) {
+                final Integer count = mGroupCounts.get(group);
+                mGroupCounts.put(group, (count != null ? count : 0) + 1);
+            }
+            return group;
+        }
+
+        /**
+         * @param sink the sink writing the bins of a partition.
+         * @param partition the partition, its boundaries can be checkpointed once it is written,
+         * see {@link #writeState(DataOutputStream, Collection)}.
+         * @return a sink cutting the groups it receives into bins written by the specified one,
+         * or the sink itself when the index is not built from scratch.
+         */
+        @NonNull
+        <T extends IndexTreeEntry> IndexTreeBulkSorter.BinSink<T> split(@NonNull final IndexTreeBulkSorter.BinSink<T> sink,
+                                                                        final int partition) {
+            Preconditions.checkNotNull(sink);
+            Preconditions.checkArgument(partition >= 0);
+            if (!mSplitting) return sink;
+
+            return new IndexTreeBulkSorter.BinSink<T>() {
+                @Override
+                public void writeBin(@NonNull final String subPath, @NonNull final Iterator<T> entries) throws IOException {
+                    final PeekingIterator<T> groupEntries = Iterators.peekingIterator(entries);
+                    int remaining = getGroupCount(subPath);
+                    String boundary = subPath.replace(File.separator, "");
+                    while (groupEntries.hasNext()) {
+                        final BinIterator<T> bin = new BinIterator<>(groupEntries, getBinSize(remaining));
+                        sink.writeBin(toSubPath(boundary), bin);
+                        // The sink might not have consumed the whole bin.
+                        while (bin.hasNext()) bin.next();
+                        synchronized (mBoundaries) {
+                            getBoundaries(partition).add(boundary);
+                        }
+                        remaining -= bin.mTaken;
+                        if (groupEntries.hasNext()) {
+                            boundary = separate(bin.mLastKey, groupEntries.peek().getIndexTreeKey());
+                        }
+                    }
+                }
+            };
+        }
+
+        /**
+         * @return the map of the index, once all the bins are written.
+         */
+        @NonNull
+        IndexTreePartitionMap build() {
+            if (!mSplitting) return mMap;
+            final List<String> allBoundaries = new ArrayList<>();
+            synchronized (mBoundaries) {
+                for (final List<String> boundaries : mBoundaries.values()) {
+                    allBoundaries.addAll(boundaries);
+                }
+            }
+            if (allBoundaries.isEmpty()) return FIXED_DEPTH;
+            final String[] boundaries = allBoundaries.toArray(new String[allBoundaries.size()]);
+            Arrays.sort(boundaries);
+            return new IndexTreePartitionMap(boundaries);
+        }
+
+        /**
+         * Writes what was counted so far, to be stored in a {@link IndexTreeBulkCheckpoint}.
+         * Keys must not be added meanwhile.
+         * @param partitions the partitions whose bins are all written, their boundaries are
+         * written as well. The bins of the other partitions are written again on resume.
+         */
+        void writeState(@NonNull final DataOutputStream out, @NonNull final Collection<Integer> partitions) throws IOException {
+            Preconditions.checkNotNull(out);
+            Preconditions.checkNotNull(partitions);
+            out.writeBoolean(mSplitting);
+            out.writeInt(mTargetBinSize);
+            out.writeInt(mMaxBinSize);
+            synchronized (mGroupCounts) {
+                out.writeInt(mGroupCounts.size());
+                for (final Map.Entry<String, Integer> groupCount : mGroupCounts.entrySet()) {
+                    BinaryUtils.writeString(out, groupCount.getKey());
+                    out.writeInt(groupCount.getValue());
+                }
+            }
+            synchronized (mBoundaries) {
+                out.writeInt(partitions.size());
+                for (final int partition : partitions) {
+                    final List<String> boundaries = getBoundaries(partition);
+                    out.writeInt(partition);
+                    out.writeInt(boundaries.size());
+                    for (final String boundary : boundaries) {
+                        BinaryUtils.writeString(out, boundary);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param map the map of the index, used if the builder was not building it from scratch.
+         * @param hasBoundaries false for the states written before boundaries were checkpointed.
+         * @return a builder going on from the state written by {@link #writeState(DataOutputStream, Collection)}.
+         */
+        @NonNull
+        static Builder readState(@NonNull final DataInputStream in,
+                                 @NonNull final IndexTreePartitionMap map,
+                                 final boolean hasBoundaries) throws IOException {
+            Preconditions.checkNotNull(in);
+            Preconditions.checkNotNull(map);
+            final boolean splitting = in.readBoolean();
+            final int targetBinSize = in.readInt();
+            final int maxBinSize = in.readInt();
+            final Builder builder = splitting ? new Builder(targetBinSize, maxBinSize) : new Builder(map);
+            final int groups = in.readInt();
+            for (int i = 0; i < groups; i++) {
+                builder.mGroupCounts.put(BinaryUtils.readString(in), in.readInt());
+            }
+            if (hasBoundaries) {
+                final int partitions = in.readInt();
+                for (int i = 0; i < partitions; i++) {
+                    final List<String> boundaries = builder.getBoundaries(in.readInt());
+                    final int count = in.readInt();
+                    for (int j = 0; j < count; j++) {
+                        boundaries.add(BinaryUtils.readString(in));
+                    }
+                }
+            }
+            return builder;
+        }
+
+        /**
+         * @return the boundaries of the partition, to be accessed holding the lock on them.
+         */
+        @NonNull
+        private List<String> getBoundaries(final int partition) {
+            List<String> boundaries = mBoundaries.get(partition);
+            if (boundaries == null) {
+                boundaries = new ArrayList<>();
+                mBoundaries.put(partition, boundaries);
+            }
+            return boundaries;
+        }
+
+        private int getGroupCount(@NonNull final String subPath) {
+            synchronized (mGroupCounts) {
+                final Integer count = mGroupCounts.get(subPath);
+                // Entries added to the storage directly are not counted.
+                return count != null ? count : Integer.MAX_VALUE;
+            }
+        }
+
+        /**
+         * Whole groups up to the maximum, otherwise bins of the target size; the last two bins
+         * share what remains if it is not enough for both.
+         */
+        private int getBinSize(final int remaining) {
+            if (remaining <= mMaxBinSize) return Integer.MAX_VALUE;
+            if (remaining < 2 * mTargetBinSize) return (remaining + 1) / 2;
+            return mTargetBinSize;
+        }
+
+        /**
+         * @return the shortest prefix of the next key sorting after the previous one.
+         */
+        @NonNull
+        private static String separate(@NonNull final String previousKey, @NonNull final String nextKey) {
+            int common = 0;
+            while (common < previousKey.length() && previousKey.charAt(common) == nextKey.charAt(common)) {
+                common++;
+            }
+            return nextKey.substring(0, common + 1);
+        }
+    }
+
+    /**
+     * Iterates over the entries of one bin, up to its size, then on while the keys are the
+     * same as the last one, since equal keys cannot be told apart by a boundary.
+     */
+    private static class BinIterator<T extends IndexTreeEntry> implements Iterator<T> {
+        @NonNull
+        private final PeekingIterator<T> mEntries;
+        private final int mSize;
+        int mTaken;
+        @Nullable
+        String mLastKey;
+
+        BinIterator(@NonNull final PeekingIterator<T> entries, final int size) {
+            mEntries = entries;
+            mSize = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!mEntries.hasNext()) return false;
+            return mTaken < mSize || mEntries.peek().getIndexTreeKey().equals(mLastKey);
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final T entry = mEntries.next();
+            mTaken++;
+            mLastKey = entry.getIndexTreeKey();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+import java.util.Set;
+
+public interface IndexTreeStorage<T extends IndexTreeEntry> {
+    /**
+     * Fetches the list of entries at the specified subpath.
+     * @param subPath the subpath to fetch the list from.
+     * @param start the position where to start reading cities.
+     * @param count how many cities to read, the returned list might contain less items.
+     * @return a sorted {@link Set} of {@link IndexTreeEntry},
+     * an empty list if no entries are found at subPath.
+     */
+    Set<T> getEntriesListAtSubPath(@NonNull final String subPath, int start, int count);
+
+    /**
+     * Like {@link #getEntriesListAtSubPath(String, int, int)}, but stops reading as soon as
+     * the token is cancelled.
+     * @param token checked while reading, between entries.
+     * @throws IndexTreeCancelledException if the token is cancelled.
+     */
+    Set<T> getEntriesListAtSubPath(@NonNull final String subPath, int start, int count,
+                                   @NonNull final IndexTreeCancellationToken token);
+
+    /**
+     * Finds the first entry at the specified subpath whose key is not smaller than the specified one.
+     * @param subPath the subpath to search.
+     * @param key the key to look for.
+     * @return the position of the entry, to be used as start in
+     * {@link #getEntriesListAtSubPath(String, int, int)}. The count of entries at subPath if all of
+     * them have smaller keys.
+     */
+    int seek(@NonNull final String subPath, @NonNull final String key);
+
+    /**
+     * Adds an {@link IndexTreeEntry} at the specified subPath.
+     * @param subPath the path where the entry has to be added.
+     * @param entry the entry to add.
+     */
+    void addEntryAtSubPath(@NonNull final String subPath, @NonNull final T entry);
+
+    /**
+     * Returns a {@link List} of subpaths that contain at least one entry, starting from the
+     * specified subPath.
+     * @param subPath the subPath where to start scanning for entries.
+     * @returns a {@link List} of subPaths that can be used to fetch entries, an empty {@link List}
+     * if none are found.
+     */
+    List<String> getSubPathsContainingEntriesFrom(@Nullable final String subPath);
+
+    /**
+     * Like {@link #getSubPathsContainingEntriesFrom(String)}, but stops scanning as soon as
+     * the token is cancelled.
+     * @param token checked while scanning, between subpaths.
+     * @throws IndexTreeCancelledException if the token is cancelled.
+     */
+    List<String> getSubPathsContainingEntriesFrom(@Nullable final String subPath,
+                                                  @NonNull final IndexTreeCancellationToken token);
+
+    /**
+     * Returns the number of items contained in the specified subPath.
+     * @param subPath the subPath to scan.
+     * @return the number of entries found.
+     */
+    int getEntriesCountAtSubPath(final String subPath);
+
+    /**
+     * Returns the number of items contained in the specified subPath and in all the subPaths
+     * below it, implementors should keep these counts aggregated rather than scanning.
+     * @param subPath the subPath to count from.
+     * @return the number of entries found.
+     */
+    int getEntriesCountFrom(@NonNull final String subPath);
+
+    /**
+     * Returns the number of items contained in the subPaths which sort before the specified one,
+     * that is the position of its first entry in the whole index.
+     * @param subPath the subPath, it does not need to contain entries.
+     * @return the number of entries found.
+     */
+    int getEntriesCountBefore(@NonNull final String subPath);
+
+    /**
+     * Delete the index structure.
+     */
+    void deleteIndex();
+
+    /**
+     * Can be used to inform the storage that a lot of data is about to be inserted.
+     * Implementors can use this method to initialize optimization.
+     */
+    void initiateBulkInsert();
+
+    /**
+     * Like {@link #initiateBulkInsert()}, but entries can then be added from more threads at the
+     * same time. Implementors split the subpaths among the specified amount of partitions, which
+     * are then written independently; for the best throughput all the entries of a subpath
+     * should be added from the same thread.
+     * @param partitions the amount of threads expected to add entries.
+     */
+    void initiateBulkInsert(final int partitions);
+
+    /**
+     * Makes the entries added since the bulk insert was initiated durable, so that it can be
+     * resumed with {@link #resumeBulkInsert()} after the process dies. Entries must not be added
+     * meanwhile.
+     * @param partitions the builder the subpaths of the entries were obtained from, stored with them.
+     * @param position where the input of the bulk insert was read up to, the storage only keeps it.
+     */
+    void checkpointBulkInsert(@NonNull final IndexTreePartitionMap.Builder partitions, final long position);
+
+    /**
+     * Goes on with the bulk insert interrupted after its last checkpoint: the entries added up
+     * to the checkpoint are restored, the ones added after it are dropped.
+     * @return the checkpoint, null if there is none, in which case no bulk insert is initiated.
+     */
+    @Nullable
+    IndexTreeBulkCheckpoint resumeBulkInsert();
+
+    /**
+     * Can be used to inform the storage that a lot of data is about to be inserted.
+     * Implementors can use this method to finalize optimization.
+     * The last checkpoint, if any, is deleted only once everything is written: an interrupted
+     * finalization is resumed from it, without merging again the partitions it records.
+     */
+    void finalizeBulkInsert();
+
+    /**
+     * Like {@link #finalizeBulkInsert()}, but the bins written are chosen by the builder:
+     * implementors pass the bins they merge through {@link IndexTreePartitionMap.Builder#split},
+     * then persist the map returned by {@link IndexTreePartitionMap.Builder#build()}.
+     * @param partitions the builder the subpaths of the entries were obtained from.
+     */
+    void finalizeBulkInsert(@NonNull final IndexTreePartitionMap.Builder partitions);
+
+    /**
+     * @return the map the index was built with, {@link IndexTreePartitionMap#FIXED_DEPTH} if
+     * it was built entry by entry or none was persisted.
+     */
+    @NonNull
+    IndexTreePartitionMap getPartitionMap();
+}
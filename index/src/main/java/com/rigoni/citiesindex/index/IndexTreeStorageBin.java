@@ -0,0 +1,166 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A file system based storage, like {@link IndexTreeStorageFs}, using a compact binary format
+ * for the bins instead of json. Each bin is a single file carrying its own count in the header,
+ * see {@link IndexTreeBinFormat}. Entries are encoded by an {@link IndexTreeEntryCodec}, so no
+ * reflection is involved.
+ * Pages and seeks read the header and the key index of the bin, then only the entries between
+ * the restart points around the page or the key.
+ */
+public class IndexTreeStorageBin<T extends IndexTreeEntry> extends IndexTreeStorageFs<T> {
+    private static final String ENTRIES_BIN_FILE_NAME = "entries.bin";
+
+    private final IndexTreeEntryCodec<T> mCodec;
+
+    /**
+     * Constructor.
+     * @param codec the codec used to encode and decode entries.
+     * @param basePath the base path for the storage, absolute.
+     * @param wipeExistingTree if the index already exists, delete it.
+     */
+    public IndexTreeStorageBin(@NonNull final IndexTreeEntryCodec<T> codec,
+                               @NonNull final String basePath,
+                               final boolean wipeExistingTree) {
+        super(codec, basePath, wipeExistingTree);
+        mCodec = codec;
+    }
+
+    @NonNull
+    @Override
+    protected String getEntriesBinFileName() {
+        return ENTRIES_BIN_FILE_NAME;
+    }
+
+    @Override
+    protected int getEntriesCountNotRecursive(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+
+        final File entriesBinFile = new File(getEntriesFileAbsolutePath(subPath));
+        if (!entriesBinFile.exists()) {
+            // No file, no entries.
+            return 0;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(entriesBinFile, "r");
+            // Older bins have a shorter header.
+            final byte[] header = new byte[(int) Math.min(file.length(), IndexTreeBinFormat.HEADER_SIZE)];
+            file.readFully(header);
+            return IndexTreeBinFormat.readHeader(ByteBuffer.wrap(header));
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot read entries count at " + entriesBinFile.getAbsolutePath() + " " + e.getMessage());
+        } finally {
+            if (file != null) {
+                try { file.close(); } catch (final IOException e) {}
+            }
+        }
+    }
+
+    @Override
+    protected Set<T> getEntriesAtPath(@NonNull final String subPath, int start, int count,
+                                      @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(subPath);
+
+        final Set<T> entries = new TreeSet<>();
+        final File entriesBinFile = new File(getEntriesFileAbsolutePath(subPath));
+        if (!entriesBinFile.exists()) {
+            return entries;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(entriesBinFile, "r");
+            // Only the entries around the page are read, not the whole bin.
+            final IndexTreeBinFormat.Reader<T> reader
+                    = IndexTreeBinFormat.readPage(file.getChannel(), mCodec, start, count);
+            reader.skipTo(start);
+            while (reader.hasNext() && count > 0) {
+                token.throwIfCancelled();
+                entries.add(reader.next());
+                count--;
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot read entries file at " + entriesBinFile.getAbsolutePath() + " " + e.getMessage());
+        } finally {
+            if (file != null) {
+                try { file.close(); } catch (final IOException e) {}
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    protected int seekAtPath(@NonNull final String subPath, @NonNull final String key) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(key);
+
+        final File entriesBinFile = new File(getEntriesFileAbsolutePath(subPath));
+        if (!entriesBinFile.exists()) {
+            return 0;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(entriesBinFile, "r");
+            return IndexTreeBinFormat.readSeek(file.getChannel(), mCodec, key).seek(key);
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot read entries file at " + entriesBinFile.getAbsolutePath() + " " + e.getMessage());
+        } finally {
+            if (file != null) {
+                try { file.close(); } catch (final IOException e) {}
+            }
+        }
+    }
+
+    @Override
+    protected void storeOnFileSystem(@NonNull final String subPath, @NonNull final Iterator<T> entries) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(entries);
+
+        final File entriesBinFile = new File(getEntriesFileAbsolutePath(subPath));
+        // Bins are written in parallel by bulk inserts, the directory might be created meanwhile.
+        if (!entriesBinFile.getParentFile().mkdirs() && !entriesBinFile.getParentFile().isDirectory()) {
+            throw new RuntimeException("Unable to create directory for bin file " + entriesBinFile.getAbsolutePath());
+        }
+
+        final File tempFile = getTempFile(entriesBinFile);
+        RandomAccessFile file = null;
+        boolean isWritten = false;
+        try {
+            file = new RandomAccessFile(tempFile, "rw");
+            file.setLength(0);
+            final IndexTreeBinFormat.Writer<T> writer = new IndexTreeBinFormat.Writer<>(file, mCodec);
+            while (entries.hasNext()) {
+                writer.add(entries.next());
+            }
+            writer.finish();
+            // The writer seeks back to the header, so the bin is synced here rather than through FsUtils.
+            file.getFD().sync();
+            isWritten = true;
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot store entries file at " + entriesBinFile.getAbsolutePath() + " " + e.getMessage());
+        } finally {
+            if (file != null) {
+                try { file.close(); } catch (final IOException e) {}
+            }
+            if (!isWritten) {
+                tempFile.delete();
+            }
+        }
+        replaceWithTempFile(tempFile, entriesBinFile);
+    }
+}
@@ -0,0 +1,293 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A storage decorator keeping the most recently used bins decoded in memory.
+ * Bins are evicted in least recently used order once their estimated size goes over the
+ * specified amount of bytes. Bins too big to ever fit are not decoded whole, their reads go
+ * straight to the decorated storage. Writes go straight to the decorated storage, invalidating
+ * the bins they touch.
+ *
+ * Bins are decoded outside of the lock of the cache, so that reads of cached bins do not wait
+ * for them.
+ */
+public class IndexTreeStorageCache<T extends IndexTreeEntry> implements IndexTreeStorage<T> {
+    /**
+     * A rough estimate of the heap taken by an entry, besides the characters of its key:
+     * object headers, the key and the other fields.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    @NonNull
+    private final IndexTreeStorage<T> mStorage;
+    private final long mMaxBytes;
+
+    /**
+     * Access ordered, the eldest entry is the least recently used one.
+     */
+    private final LinkedHashMap<String, CachedBin<T>> mBins = new LinkedHashMap<>(16, 0.75f, true);
+    private long mBytes;
+
+    /**
+     * Incremented whenever bins are invalidated, a bin decoded meanwhile is not cached as it
+     * might be stale.
+     */
+    private long mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * Constructor.
+     * @param storage the storage to decorate.
+     * @param maxBytes the estimated amount of heap the cached bins can take.
+     */
+    public IndexTreeStorageCache(@NonNull final IndexTreeStorage<T> storage, final long maxBytes) {
+        Preconditions.checkNotNull(storage);
+        Preconditions.checkArgument(maxBytes > 0);
+        mStorage = storage;
+        mMaxBytes = maxBytes;
+    }
+
+    @Override
+    public Set<T> getEntriesListAtSubPath(@NonNull final String subPath, int start, int count) {
+        return getEntriesListAtSubPath(subPath, start, count, IndexTreeCancellationToken.NONE);
+    }
+
+    /**
+     * The token is checked before the bin is looked up, then passed to the decorated storage,
+     * which checks it while decoding a bin missing from the cache, or reading a page of a bin
+     * too big to be cached. A bin whose decoding is cancelled is not cached.
+     */
+    @Override
+    public Set<T> getEntriesListAtSubPath(@NonNull final String subPath, int start, int count,
+                                          @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(token);
+        token.throwIfCancelled();
+        final List<T> bin = getBin(subPath, token);
+        if (bin == null) {
+            return mStorage.getEntriesListAtSubPath(subPath, start, count, token);
+        }
+        final Set<T> entries = new TreeSet<>();
+        final int end = (int) Math.min(bin.size(), (long) Math.max(start, 0) + Math.max(count, 0));
+        for (int i = Math.max(start, 0); i < end; i++) {
+            entries.add(bin.get(i));
+        }
+        return entries;
+    }
+
+    @Override
+    public int seek(@NonNull final String subPath, @NonNull final String key) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(key);
+        final List<T> bin = getBin(subPath, IndexTreeCancellationToken.NONE);
+        if (bin == null) {
+            return mStorage.seek(subPath, key);
+        }
+        int low = 0;
+        int high = bin.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (bin.get(middle).getIndexTreeKey().compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public synchronized void addEntryAtSubPath(@NonNull final String subPath, @NonNull final T entry) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(entry);
+        remove(IndexTreeManifest.normalizeSubPath(subPath));
+        mStorage.addEntryAtSubPath(subPath, entry);
+    }
+
+    @Override
+    public List<String> getSubPathsContainingEntriesFrom(@Nullable final String subPath) {
+        return mStorage.getSubPathsContainingEntriesFrom(subPath);
+    }
+
+    @Override
+    public List<String> getSubPathsContainingEntriesFrom(@Nullable final String subPath,
+                                                         @NonNull final IndexTreeCancellationToken token) {
+        return mStorage.getSubPathsContainingEntriesFrom(subPath, token);
+    }
+
+    @Override
+    public synchronized int getEntriesCountAtSubPath(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+        final CachedBin<T> bin = mBins.get(IndexTreeManifest.normalizeSubPath(subPath));
+        return bin != null ? bin.mEntries.size() : mStorage.getEntriesCountAtSubPath(subPath);
+    }
+
+    @Override
+    public int getEntriesCountFrom(@NonNull final String subPath) {
+        return mStorage.getEntriesCountFrom(subPath);
+    }
+
+    @Override
+    public int getEntriesCountBefore(@NonNull final String subPath) {
+        return mStorage.getEntriesCountBefore(subPath);
+    }
+
+    @Override
+    public synchronized void deleteIndex() {
+        clear();
+        mStorage.deleteIndex();
+    }
+
+    @Override
+    public synchronized void initiateBulkInsert() {
+        mStorage.initiateBulkInsert();
+    }
+
+    @Override
+    public synchronized void initiateBulkInsert(final int partitions) {
+        mStorage.initiateBulkInsert(partitions);
+    }
+
+    @Override
+    public synchronized void checkpointBulkInsert(@NonNull final IndexTreePartitionMap.Builder partitions, final long position) {
+        mStorage.checkpointBulkInsert(partitions, position);
+    }
+
+    @Nullable
+    @Override
+    public synchronized IndexTreeBulkCheckpoint resumeBulkInsert() {
+        return mStorage.resumeBulkInsert();
+    }
+
+    @Override
+    public synchronized void finalizeBulkInsert() {
+        clear();
+        mStorage.finalizeBulkInsert();
+    }
+
+    @Override
+    public synchronized void finalizeBulkInsert(@NonNull final IndexTreePartitionMap.Builder partitions) {
+        clear();
+        mStorage.finalizeBulkInsert(partitions);
+    }
+
+    @NonNull
+    @Override
+    public IndexTreePartitionMap getPartitionMap() {
+        return mStorage.getPartitionMap();
+    }
+
+    /**
+     * @return how many times a bin was found in the cache.
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return how many times a bin had to be read from the decorated storage.
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the estimated heap taken by the cached bins.
+     */
+    public synchronized long getSizeBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Drops all the cached bins.
+     */
+    public synchronized void clear() {
+        mBins.clear();
+        mBytes = 0;
+        mGeneration++;
+    }
+
+    /**
+     * @param token passed to the decorated storage if the bin has to be decoded.
+     * @return the entries of the bin, decoded now if not cached, or null if the bin is too
+     * big to be cached.
+     */
+    @Nullable
+    private List<T> getBin(@NonNull final String subPath, @NonNull final IndexTreeCancellationToken token) {
+        final String normalizedSubPath = IndexTreeManifest.normalizeSubPath(subPath);
+        final long generation;
+        synchronized (this) {
+            final CachedBin<T> bin = mBins.get(normalizedSubPath);
+            if (bin != null) {
+                mHitCount++;
+                return bin.mEntries;
+            }
+            mMissCount++;
+            generation = mGeneration;
+        }
+
+        // The overhead alone tells the bins which cannot fit, without decoding them.
+        if ((long) mStorage.getEntriesCountAtSubPath(subPath) * ENTRY_OVERHEAD_BYTES > mMaxBytes) {
+            return null;
+        }
+        final CachedBin<T> bin = new CachedBin<>(
+                new ArrayList<>(mStorage.getEntriesListAtSubPath(subPath, 0, Integer.MAX_VALUE, token)));
+        synchronized (this) {
+            if (bin.mBytes <= mMaxBytes && generation == mGeneration && !mBins.containsKey(normalizedSubPath)) {
+                mBins.put(normalizedSubPath, bin);
+                mBytes += bin.mBytes;
+                evict();
+            }
+        }
+        return bin.mEntries;
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, CachedBin<T>>> iterator = mBins.entrySet().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            mBytes -= iterator.next().getValue().mBytes;
+            iterator.remove();
+        }
+    }
+
+    private void remove(@NonNull final String normalizedSubPath) {
+        mGeneration++;
+        final CachedBin<T> bin = mBins.remove(normalizedSubPath);
+        if (bin != null) {
+            mBytes -= bin.mBytes;
+        }
+    }
+
+    /**
+     * A decoded bin with its estimated size.
+     */
+    private static class CachedBin<T extends IndexTreeEntry> {
+        @NonNull
+        final List<T> mEntries;
+        final long mBytes;
+
+        CachedBin(@NonNull final List<T> entries) {
+            mEntries = entries;
+            long bytes = 0;
+            for (final T entry : entries) {
+                final String key = entry.getIndexTreeKey();
+                bytes += ENTRY_OVERHEAD_BYTES + (key != null ? 2 * key.length() : 0);
+            }
+            mBytes = bytes;
+        }
+    }
+}
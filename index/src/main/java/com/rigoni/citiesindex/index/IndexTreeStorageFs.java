@@ -0,0 +1,792 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.rigoni.citiesindex.utils.FsUtils;
+import com.rigoni.citiesindex.utils.Logging;
+import com.rigoni.citiesindex.utils.StreamUtils;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An alphabetically sorted, file system based storage implementation for the IndexTreeStorage.
+ * Bins are stored as json by default, entries are converted by an {@link IndexTreeEntryJsonCodec}.
+ * Subclasses can provide a different bin format by overriding
+ * {@link #getEntriesCountNotRecursive(String)}, {@link #getEntriesAtPath(String, int, int, IndexTreeCancellationToken)},
+ * {@link #storeOnFileSystem(String, Iterator)} and {@link #getEntriesBinFileName()}.
+ */
+public class IndexTreeStorageFs<T extends IndexTreeEntry> implements IndexTreeStorage<T> {
+    private static final String TAG = IndexTreeStorageFs.class.getSimpleName();
+
+    /**
+     * Entries are split inside bins residing at specific paths inside the index tree.
+     */
+    private static final String ENTRIES_BIN_FILE_NAME = "entries.json";
+
+    /**
+     * Each entries bin file has a count file associated, this is useful to quickly lookup
+     * how many entries are in the bin without looping over it.
+     */
+    private static final String ENTRIES_COUNT_FILE_NAME = "count.json";
+
+    /**
+     * Temporary directory used while bulk inserting, runs of sorted entries are spilled here.
+     */
+    private static final String BULK_INSERT_DIRECTORY_NAME = ".bulk";
+
+    /**
+     * The sorted list of non empty subpaths, see {@link IndexTreeManifest}.
+     */
+    private static final String MANIFEST_FILE_NAME = "manifest.bin";
+
+    /**
+     * The bins the index was built with, see {@link IndexTreePartitionMap}.
+     */
+    private static final String PARTITION_MAP_FILE_NAME = "partitions.bin";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final boolean DEBUG = false;
+
+    /**
+     * The base index path. The directory tree will start from here.
+     */
+    private final String mBasePath;
+
+    /**
+     * While a bulk insert is in progress entries are handed over to the sorters, one per
+     * partition, which take care of writing every bin exactly once when the bulk insert
+     * is finalized.
+     */
+    @Nullable
+    private volatile List<IndexTreeBulkSorter<T>> mBulkSorters;
+
+    /**
+     * The last checkpoint of the bulk insert in progress, it records the partitions merged
+     * while the bulk insert is finalized.
+     */
+    @Nullable
+    private volatile IndexTreeBulkCheckpoint mCheckpoint;
+
+    /**
+     * Used to read and write the json bins, null when a subclass provides its own bin format.
+     */
+    @Nullable
+    private final IndexTreeEntryJsonCodec<T> mJsonCodec;
+
+    /**
+     * Used to spill entries to disk during bulk inserts.
+     */
+    private final IndexTreeEntryCodec<T> mRunCodec;
+
+    /**
+     * Loaded on first use. Indexes built without a manifest, or modified outside of a bulk
+     * insert, are walked on the file system instead.
+     */
+    @Nullable
+    private IndexTreeManifest mManifest;
+    private boolean mManifestLoaded;
+
+    /**
+     * Loaded on first use, single inserts keep it valid since they follow it.
+     */
+    @Nullable
+    private IndexTreePartitionMap mPartitionMap;
+
+    /**
+     * Constructor, entries are converted through Gson reflection.
+     * @param entryClass the class representing the entry.
+     * @param basePath the base path for the storage, absolute.
+     * @param wipeExistingTree if the index already exists, delete it.
+     */
+    public IndexTreeStorageFs(@NonNull Class<T> entryClass, @NonNull final String basePath, final boolean wipeExistingTree) {
+        this(new GsonEntryJsonCodec<T>(entryClass), new GsonEntryCodec<T>(entryClass), basePath, wipeExistingTree);
+    }
+
+    /**
+     * Constructor for entries providing their own codecs.
+     * @param jsonCodec the codec used to read and write the json bins.
+     * @param runCodec the codec used to spill entries to disk during bulk inserts.
+     * @param basePath the base path for the storage, absolute.
+     * @param wipeExistingTree if the index already exists, delete it.
+     */
+    public IndexTreeStorageFs(@NonNull final IndexTreeEntryJsonCodec<T> jsonCodec,
+                              @NonNull final IndexTreeEntryCodec<T> runCodec,
+                              @NonNull final String basePath,
+                              final boolean wipeExistingTree) {
+        this(runCodec, basePath, wipeExistingTree, Preconditions.checkNotNull(jsonCodec));
+    }
+
+    /**
+     * Constructor for subclasses providing their own bin format.
+     * @param runCodec the codec used to spill entries to disk during bulk inserts.
+     * @param basePath the base path for the storage, absolute.
+     * @param wipeExistingTree if the index already exists, delete it.
+     */
+    protected IndexTreeStorageFs(@NonNull final IndexTreeEntryCodec<T> runCodec,
+                                 @NonNull final String basePath,
+                                 final boolean wipeExistingTree) {
+        this(runCodec, basePath, wipeExistingTree, null);
+    }
+
+    private IndexTreeStorageFs(@NonNull final IndexTreeEntryCodec<T> runCodec,
+                               @NonNull final String basePath,
+                               final boolean wipeExistingTree,
+                               @Nullable final IndexTreeEntryJsonCodec<T> jsonCodec) {
+        Preconditions.checkNotNull(basePath);
+        Preconditions.checkNotNull(runCodec);
+        mBasePath = basePath;
+        mJsonCodec = jsonCodec;
+        mRunCodec = runCodec;
+        final File basePathDirectory = new File(mBasePath);
+        if (!basePathDirectory.exists()) {
+            Logging.i(TAG, "Creating directory " + basePath);
+            if (!basePathDirectory.mkdirs()) {
+                // This is a very bad condition. And there is no easy way to recover.
+                throw new RuntimeException("Index tree directory cannot not be created");
+            }
+        } else if (wipeExistingTree) {
+            deleteIndex();
+        }
+    }
+
+    @Override
+    public void deleteIndex() {
+        discardBulkInsert();
+        synchronized (this) {
+            mManifest = null;
+            mManifestLoaded = false;
+            mPartitionMap = null;
+        }
+        FsUtils.deleteDirectory(new File(mBasePath));
+    }
+
+    @Override
+    public void initiateBulkInsert() {
+        initiateBulkInsert(1);
+    }
+
+    @Override
+    public void initiateBulkInsert(final int partitions) {
+        Preconditions.checkArgument(partitions > 0);
+        discardBulkInsert();
+        try {
+            IndexTreeBulkCheckpoint.delete(getCheckpointFile());
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot initiate bulk insert " + e.getMessage());
+        }
+        // Whatever an interrupted bulk insert left behind.
+        FsUtils.deleteDirectory(new File(mBasePath, BULK_INSERT_DIRECTORY_NAME));
+        mBulkSorters = IndexTreeBulkSorter.createPartitions(
+                new File(mBasePath, BULK_INSERT_DIRECTORY_NAME), mRunCodec, partitions);
+    }
+
+    @Override
+    public void checkpointBulkInsert(@NonNull final IndexTreePartitionMap.Builder partitions, final long position) {
+        Preconditions.checkNotNull(partitions);
+        final List<IndexTreeBulkSorter<T>> sorters = mBulkSorters;
+        if (sorters == null) {
+            throw new IllegalStateException("No bulk insert in progress");
+        }
+        try {
+            // Partitions merged by an interrupted finalization stay merged.
+            final IndexTreeBulkCheckpoint previous = mCheckpoint;
+            final IndexTreeBulkCheckpoint checkpoint = IndexTreeBulkSorter.checkpointPartitions(sorters, position, partitions,
+                    previous != null ? previous.getMerged() : Collections.<Integer>emptySet());
+            checkpoint.write(getCheckpointFile());
+            mCheckpoint = checkpoint;
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot checkpoint bulk insert " + e.getMessage());
+        }
+    }
+
+    /**
+     * Bins are only written once the bulk insert is finalized, the ones found are the ones
+     * the bulk insert was initiated on.
+     */
+    @Nullable
+    @Override
+    public IndexTreeBulkCheckpoint resumeBulkInsert() {
+        try {
+            final IndexTreeBulkCheckpoint checkpoint = IndexTreeBulkCheckpoint.read(getCheckpointFile(), getPartitionMap());
+            if (checkpoint == null) return null;
+            // The sorters in use, if any, are not discarded: their runs are the ones listed.
+            mBulkSorters = IndexTreeBulkSorter.resumePartitions(
+                    new File(mBasePath, BULK_INSERT_DIRECTORY_NAME), mRunCodec, checkpoint);
+            mCheckpoint = checkpoint;
+            return checkpoint;
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot resume bulk insert " + e.getMessage());
+        }
+    }
+
+    /**
+     * Entries added during the bulk insert become visible only once this method returns.
+     * Partitions hold disjoint sets of bins, so they are written in parallel. Each of them is
+     * recorded in the checkpoint once its bins are written, if the checkpoint lists all the
+     * entries, and the checkpoint is only deleted together with the runs at the end.
+     */
+    @Override
+    public void finalizeBulkInsert() {
+        finalizeBulkInsert(new IndexTreePartitionMap.Builder(getPartitionMap()));
+    }
+
+    @Override
+    public void finalizeBulkInsert(@NonNull final IndexTreePartitionMap.Builder partitions) {
+        Preconditions.checkNotNull(partitions);
+        final List<IndexTreeBulkSorter<T>> sorters = mBulkSorters;
+        if (sorters == null) return;
+        mBulkSorters = null;
+        final IndexTreeBulkCheckpoint checkpoint = mCheckpoint;
+        mCheckpoint = null;
+        final IndexTreeBulkSorter.BinSink<T> sink = new IndexTreeBulkSorter.BinSink<T>() {
+            @Override
+            public void writeBin(@NonNull final String subPath, @NonNull final Iterator<T> entries) {
+                storeBin(subPath, entries);
+            }
+        };
+        final List<IndexTreeBulkSorter.BinSink<T>> sinks = new ArrayList<>(sorters.size());
+        for (int i = 0; i < sorters.size(); i++) {
+            sinks.add(partitions.split(sink, i));
+        }
+        final IndexTreeBulkSorter.MergeListener listener = createMergeListener(checkpoint,
+                checkpoint != null && IndexTreeBulkSorter.isCheckpointed(sorters));
+        boolean isFinalized = false;
+        try {
+            IndexTreeBulkSorter.mergePartitions(sorters, sinks, listener);
+            final IndexTreePartitionMap partitionMap = partitions.build();
+            partitionMap.write(new File(mBasePath, PARTITION_MAP_FILE_NAME));
+            synchronized (this) {
+                mPartitionMap = partitionMap;
+            }
+            writeManifest();
+            IndexTreeBulkCheckpoint.delete(getCheckpointFile());
+            isFinalized = true;
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot finalize bulk insert " + e.getMessage());
+        } finally {
+            // The runs are kept as long as a checkpoint lists them, to resume the finalization.
+            if (isFinalized || checkpoint == null) {
+                for (final IndexTreeBulkSorter<T> sorter : sorters) {
+                    sorter.discard();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param checkpoint the last checkpoint of the bulk insert being finalized, if any.
+     * @param isCheckpointCurrent true if the checkpoint lists all the entries, only then it
+     * can record the partitions merged.
+     */
+    @NonNull
+    private IndexTreeBulkSorter.MergeListener createMergeListener(@Nullable final IndexTreeBulkCheckpoint checkpoint,
+                                                                  final boolean isCheckpointCurrent) {
+        return new IndexTreeBulkSorter.MergeListener() {
+            @Override
+            public boolean isMerged(final int partition) {
+                return checkpoint != null && checkpoint.isMerged(partition);
+            }
+
+            @Override
+            public void onMerged(final int partition) throws IOException {
+                if (isCheckpointCurrent) {
+                    checkpoint.setMerged(partition, getCheckpointFile());
+                }
+            }
+        };
+    }
+
+    @NonNull
+    @Override
+    public synchronized IndexTreePartitionMap getPartitionMap() {
+        if (mPartitionMap == null) {
+            try {
+                mPartitionMap = IndexTreePartitionMap.read(new File(mBasePath, PARTITION_MAP_FILE_NAME));
+            } catch (final IOException e) {
+                throw new RuntimeException("Cannot read partition map " + e.getMessage());
+            }
+        }
+        return mPartitionMap;
+    }
+
+    @Override
+    public Set<T> getEntriesListAtSubPath(@NonNull final String subPath, int start, int count) {
+        return getEntriesListAtSubPath(subPath, start, count, IndexTreeCancellationToken.NONE);
+    }
+
+    @Override
+    public Set<T> getEntriesListAtSubPath(@NonNull final String subPath, int start, int count,
+                                          @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(token);
+        return getEntriesAtPath(subPath, start, count, token);
+    }
+
+    @Override
+    public int seek(@NonNull final String subPath, @NonNull final String key) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(key);
+        return seekAtPath(subPath, key);
+    }
+
+    @Override
+    public void addEntryAtSubPath(@NonNull String subPath, @NonNull T entry) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(entry);
+
+        final List<IndexTreeBulkSorter<T>> sorters = mBulkSorters;
+        if (sorters != null) {
+            final IndexTreeBulkSorter<T> sorter = sorters.get(IndexTreeBulkSorter.getPartition(subPath, sorters.size()));
+            try {
+                // Uncontended as long as each partition is fed by a single thread.
+                synchronized (sorter) {
+                    sorter.add(subPath, entry);
+                }
+            } catch (final IOException e) {
+                throw new RuntimeException("Cannot add entry during bulk insert " + e.getMessage());
+            }
+            return;
+        }
+
+        invalidateManifest();
+        final int entriesCountAtPath = getEntriesCountNotRecursive(subPath);
+        final Set<T> entries = getEntriesAtPath(subPath, 0, entriesCountAtPath, IndexTreeCancellationToken.NONE);
+        if (DEBUG) {
+            Logging.i(TAG, "Adding entry: " + entry.getIndexTreeKey());
+            Logging.i(TAG, "  At path: " + getEntriesFileAbsolutePath(subPath));
+            Logging.i(TAG, "  Which already contains: " + entriesCountAtPath + " entries");
+        }
+        entries.add(entry);
+        storeOnFileSystem(subPath, entries.iterator());
+    }
+
+    @Override
+    public List<String> getSubPathsContainingEntriesFrom(@Nullable String subPath) {
+        return getSubPathsContainingEntriesFrom(subPath, IndexTreeCancellationToken.NONE);
+    }
+
+    @Override
+    public List<String> getSubPathsContainingEntriesFrom(@Nullable String subPath,
+                                                         @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(token);
+
+        final IndexTreeManifest manifest = getManifest();
+        if (manifest != null) {
+            return manifest.getSubPathsFrom(subPath);
+        }
+
+        final List<String> subPathsContainingEntries = new ArrayList<>();
+        walkSubPathsContainingEntries(IndexTreeManifest.normalizeSubPath(subPath), subPathsContainingEntries, token);
+        Collections.sort(subPathsContainingEntries);
+        return subPathsContainingEntries;
+    }
+
+    @Override
+    public int getEntriesCountAtSubPath(@NonNull String subPath) {
+        Preconditions.checkNotNull(subPath);
+
+        final IndexTreeManifest manifest = getManifest();
+        if (manifest != null) {
+            return manifest.getCount(subPath);
+        }
+        return getEntriesCountNotRecursive(subPath);
+    }
+
+    @Override
+    public int getEntriesCountFrom(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+
+        final IndexTreeManifest manifest = getManifest();
+        if (manifest != null) {
+            return manifest.getCountFrom(subPath);
+        }
+        int count = 0;
+        for (final String subPathWithEntries : getSubPathsContainingEntriesFrom(subPath)) {
+            count += getEntriesCountNotRecursive(subPathWithEntries);
+        }
+        return count;
+    }
+
+    @Override
+    public int getEntriesCountBefore(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+
+        final IndexTreeManifest manifest = getManifest();
+        if (manifest != null) {
+            return manifest.getCountBefore(subPath);
+        }
+        final String normalizedSubPath = IndexTreeManifest.normalizeSubPath(subPath);
+        int count = 0;
+        for (final String subPathWithEntries : getSubPathsContainingEntriesFrom("")) {
+            if (subPathWithEntries.compareTo(normalizedSubPath) >= 0) break;
+            count += getEntriesCountNotRecursive(subPathWithEntries);
+        }
+        return count;
+    }
+
+    /**
+     * Recursively collects the subpaths containing entries, the slow way.
+     */
+    private void walkSubPathsContainingEntries(@NonNull final String subPath, @NonNull final List<String> subPaths,
+                                               @NonNull final IndexTreeCancellationToken token) {
+        token.throwIfCancelled();
+        final File entriesCountFile = new File(getEntriesFileAbsolutePath(subPath));
+        if (getEntriesCountNotRecursive(subPath) > 0) {
+            subPaths.add(subPath);
+        }
+
+        final File currentDir = entriesCountFile.getParentFile();
+        final File[] files = currentDir.listFiles();
+        if (files != null && files.length > 0) {
+            for (final File f : files) {
+                if (f.isDirectory() && !f.getName().equals(BULK_INSERT_DIRECTORY_NAME)) {
+                    walkSubPathsContainingEntries(subPath + f.getName() + File.separator, subPaths, token);
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private File getCheckpointFile() {
+        return new File(mBasePath, IndexTreeBulkCheckpoint.FILE_NAME);
+    }
+
+    private void discardBulkInsert() {
+        final List<IndexTreeBulkSorter<T>> sorters = mBulkSorters;
+        mBulkSorters = null;
+        mCheckpoint = null;
+        if (sorters != null) {
+            for (final IndexTreeBulkSorter<T> sorter : sorters) {
+                sorter.discard();
+            }
+        }
+    }
+
+    @Nullable
+    private synchronized IndexTreeManifest getManifest() {
+        if (!mManifestLoaded) {
+            mManifestLoaded = true;
+            try {
+                mManifest = IndexTreeManifest.read(new File(mBasePath, MANIFEST_FILE_NAME));
+            } catch (final IOException e) {
+                Logging.w(TAG, "Cannot read manifest, falling back to walking the tree " + e.getMessage());
+                mManifest = null;
+            }
+        }
+        return mManifest;
+    }
+
+    /**
+     * Walks the tree once and stores the manifest, so that queries do not need to.
+     */
+    private void writeManifest() throws IOException {
+        invalidateManifest();
+        final List<String> subPaths = new ArrayList<>();
+        walkSubPathsContainingEntries("", subPaths, IndexTreeCancellationToken.NONE);
+        Collections.sort(subPaths);
+        final int[] counts = new int[subPaths.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = getEntriesCountNotRecursive(subPaths.get(i));
+        }
+        final IndexTreeManifest manifest = new IndexTreeManifest(subPaths.toArray(new String[subPaths.size()]), counts);
+        manifest.write(new File(mBasePath, MANIFEST_FILE_NAME));
+        synchronized (this) {
+            mManifest = manifest;
+            mManifestLoaded = true;
+        }
+    }
+
+    /**
+     * The manifest is not kept up to date by single inserts, they remove it instead.
+     */
+    private synchronized void invalidateManifest() {
+        if (mManifest != null || !mManifestLoaded) {
+            final File manifestFile = new File(mBasePath, MANIFEST_FILE_NAME);
+            if (manifestFile.exists() && !manifestFile.delete()) {
+                throw new RuntimeException("Cannot delete manifest " + manifestFile.getAbsolutePath());
+            }
+        }
+        mManifest = null;
+        mManifestLoaded = true;
+    }
+
+    /**
+     * Non-recursive means that this method only returns the entries count at the
+     * specified path, no looping through subdirectories is done.
+     */
+    protected int getEntriesCountNotRecursive(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+
+        final File entriesCountFile = new File(getEntriesCountFileAbsolutePath(subPath));
+        if (!entriesCountFile.exists()) {
+            // No file, no entries.
+            return 0;
+        }
+
+        // Everything failed so far, read the count file.
+        return readIntFromJsonFile(entriesCountFile.getAbsolutePath());
+    }
+
+    /**
+     * Json bins cannot be searched, they are scanned decoding only the keys, up to the position.
+     */
+    protected int seekAtPath(@NonNull final String subPath, @NonNull final String key) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(key);
+
+        final File entriesBinFile = new File(getEntriesFileAbsolutePath(subPath));
+        if (!entriesBinFile.exists()) {
+            return 0;
+        }
+
+        int position = 0;
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(entriesBinFile);
+            final JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+            if (reader.peek().equals(JsonToken.BEGIN_ARRAY)) {
+                reader.beginArray();
+                while (reader.hasNext() && mJsonCodec.readKey(reader).compareTo(key) < 0) {
+                    position++;
+                }
+            }
+        } catch (final Exception e) {
+            throw new RuntimeException("Cannot read entries file at " + entriesBinFile.getAbsolutePath() + " " + e.getMessage());
+        } finally {
+            StreamUtils.closeInputStreamNoThrow(inputStream);
+        }
+        return position;
+    }
+
+    /**
+     * Reads the entries of a bin, checking the token between entries.
+     */
+    protected Set<T> getEntriesAtPath(@NonNull final String subPath, int start, int count,
+                                      @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(subPath);
+
+        final File entriesBinFile = new File(getEntriesFileAbsolutePath(subPath));
+
+        Set<T> entries = new TreeSet<>();
+        // If the file does not exist we abstract this problem by creating an empty file
+        // and returning an empty queue.
+        if (!entriesBinFile.exists()) {
+            try {
+                if (!entriesBinFile.getParentFile().mkdirs()) throw new RuntimeException("Unable to create directory for bin file");
+                if (!entriesBinFile.createNewFile()) throw new RuntimeException("Unable to create bin file");
+            } catch (final IOException e) {
+                throw new RuntimeException("Cannot create entries bin file at " + entriesBinFile.getAbsolutePath() + " (" + e.getMessage()+ ")");
+            }
+        } else {
+            FileInputStream inputStream = null;
+            try {
+                inputStream = new FileInputStream(entriesBinFile);
+                final JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+                if (reader.peek().equals(JsonToken.BEGIN_ARRAY)) {
+                    reader.beginArray();
+                    while (reader.hasNext() && count > 0) {
+                        token.throwIfCancelled();
+                        if (start == 0) {
+                            // Read data
+                            entries.add(mJsonCodec.read(reader));
+                            count--;
+                        } else {
+                            // When start reaches zero we start reading values.
+                            start--;
+                            reader.skipValue();
+                        }
+                    }
+                    reader.close();
+                }
+            } catch (final IndexTreeCancelledException e) {
+                throw e;
+            } catch (final Exception e) {
+                throw new RuntimeException("Cannot read entries file at " + entriesBinFile.getAbsolutePath() + " " + e.getMessage());
+            } finally {
+                StreamUtils.closeInputStreamNoThrow(inputStream);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Writes a bin produced by a bulk insert. Existing entries, if any, are merged in.
+     */
+    private void storeBin(@NonNull final String subPath, @NonNull final Iterator<T> entries) {
+        if (getEntriesCountNotRecursive(subPath) == 0) {
+            storeOnFileSystem(subPath, entries);
+            return;
+        }
+        final Set<T> merged = getEntriesAtPath(subPath, 0, Integer.MAX_VALUE, IndexTreeCancellationToken.NONE);
+        while (entries.hasNext()) {
+            merged.add(entries.next());
+        }
+        storeOnFileSystem(subPath, merged.iterator());
+    }
+
+    /**
+     * Writes the whole bin at subPath, replacing its previous content.
+     * @param entries the sorted entries of the bin.
+     */
+    protected void storeOnFileSystem(@NonNull final String subPath, @NonNull final Iterator<T> entries) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(entries);
+
+        final File entriesBinFile = new File(getEntriesFileAbsolutePath(subPath));
+        final String entriesBinFilePath = entriesBinFile.getAbsolutePath();
+        final String entriesCountFilePath = getEntriesCountFileAbsolutePath(subPath);
+        // Bins are written in parallel by bulk inserts, the directory might be created meanwhile.
+        if (!entriesBinFile.getParentFile().mkdirs() && !entriesBinFile.getParentFile().isDirectory()) {
+            throw new RuntimeException("Unable to create directory for bin file " + entriesBinFilePath);
+        }
+
+        // An interrupted write never leaves a truncated bin behind.
+        final JsonBinWriter writer = new JsonBinWriter(entries);
+        try {
+            FsUtils.writeAtomically(entriesBinFile, writer);
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot store entries file at " + entriesBinFilePath + " " + e.getMessage());
+        }
+
+        // Save the entries count, the bin is streamed so it is only known now.
+        saveIntToJsonFile(entriesCountFilePath, writer.mCount);
+    }
+
+    /**
+     * Bins written in place of the json ones, see {@link IndexTreeStorageBin}, go to a temporary
+     * file next to them, which is synced and then replaces the bin, like with
+     * {@link FsUtils#writeAtomically(File, FsUtils.ContentWriter)}.
+     */
+    @NonNull
+    protected static File getTempFile(@NonNull final File file) {
+        return new File(file.getAbsolutePath() + TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * @param tempFile the temporary file of the bin, synced. Deleted if it cannot replace the bin.
+     */
+    protected static void replaceWithTempFile(@NonNull final File tempFile, @NonNull final File file) {
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new RuntimeException("Cannot replace " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @param path
+     * @return the path of the entries bin file at the specified path
+     */
+    @NonNull
+    protected String getEntriesFileAbsolutePath(@NonNull final String path) {
+        return mBasePath + File.separator + path + File.separator + getEntriesBinFileName();
+    }
+
+    /**
+     * @return the name of the file holding the entries inside each directory of the tree.
+     */
+    @NonNull
+    protected String getEntriesBinFileName() {
+        return ENTRIES_BIN_FILE_NAME;
+    }
+
+    /**
+     * @param path
+     * @return the path of the entries count file at the specified path
+     */
+    @NonNull
+    private String getEntriesCountFileAbsolutePath(@NonNull final String path) {
+        return mBasePath + File.separator + path + File.separator + ENTRIES_COUNT_FILE_NAME;
+    }
+
+    /**
+     * Read a single int value from a json file.
+     * @param filePath
+     */
+    private int readIntFromJsonFile(@NonNull final String filePath) {
+        Preconditions.checkNotNull(filePath);
+
+        JsonReader reader = null;
+        try {
+            reader = new JsonReader(new FileReader(filePath));
+            reader.beginObject();
+            reader.nextName();
+            int value = reader.nextInt();
+            reader.endObject();
+            return value;
+        } catch (final Exception e) {
+            throw new RuntimeException("Cannot read entries count file " + filePath + " " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try { reader.close(); } catch (final Exception e) {}
+            }
+        }
+    }
+
+    /**
+     * Saves a single int value to a json file.
+     * @param filePath
+     */
+    private boolean saveIntToJsonFile(@NonNull final String filePath, final int value) {
+        Preconditions.checkNotNull(filePath);
+
+        try {
+            FsUtils.writeAtomically(new File(filePath), new FsUtils.ContentWriter() {
+                @Override
+                public void write(@NonNull final DataOutputStream out) throws IOException {
+                    final JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+                    writer.beginObject();
+                    writer.name("count").value(value);
+                    writer.endObject();
+                    writer.flush();
+                }
+            });
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot write entries count file " + filePath + " " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Writes the entries of a json bin as an array, counting them.
+     */
+    private class JsonBinWriter implements FsUtils.ContentWriter {
+        @NonNull
+        private final Iterator<T> mEntries;
+        private int mCount;
+
+        JsonBinWriter(@NonNull final Iterator<T> entries) {
+            mEntries = entries;
+        }
+
+        @Override
+        public void write(@NonNull final DataOutputStream out) throws IOException {
+            final JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+            writer.beginArray();
+            while (mEntries.hasNext()) {
+                mJsonCodec.write(writer, mEntries.next());
+                mCount++;
+            }
+            writer.endArray();
+            // The stream is synced and closed by the caller.
+            writer.flush();
+        }
+    }
+}
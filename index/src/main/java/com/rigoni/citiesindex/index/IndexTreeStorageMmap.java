@@ -0,0 +1,777 @@
+package com.rigoni.citiesindex.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.rigoni.citiesindex.utils.BinaryUtils;
+import com.rigoni.citiesindex.utils.FsUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A storage packing the whole index into a single memory mapped file.
+ *
+ * <pre>
+ * header: magic (4 bytes) | version (1 byte) | bins count (int) | data offset (long) | partitioned (1 byte)
+ * table:  for each bin, sorted by subPath:
+ *         subPath (length prefixed UTF-8) | offset from data (long) | length (int) | entries count (int)
+ * data:   the bins, one after the other, in the {@link IndexTreeBinFormat}, grouped by partition
+ * </pre>
+ *
+ * The table is loaded in memory when the storage is opened and the data is mapped, so
+ * queries are served from the page cache without opening files or issuing reads.
+ * Both are held by a {@link Snapshot}, replaced as a whole when a bulk insert rewrites the file,
+ * so queries take no lock and never wait for each other, nor for a bulk insert.
+ * The file is written by bulk inserts only, single entries cannot be added outside of them.
+ * Bins cut by an {@link IndexTreePartitionMap.Builder} are flagged as partitioned, the table
+ * then holds the partition map as well: the boundaries are the subpaths of the bins.
+ */
+public class IndexTreeStorageMmap<T extends IndexTreeEntry> implements IndexTreeStorage<T> {
+    private static final String INDEX_FILE_NAME = "index.bin";
+    private static final String INDEX_TEMP_FILE_NAME = "index.bin.tmp";
+    private static final String DATA_TEMP_FILE_PREFIX = "data.";
+    private static final String DATA_TEMP_FILE_SUFFIX = ".tmp";
+    private static final String ROWS_TEMP_FILE_SUFFIX = ".rows.tmp";
+    private static final String BULK_INSERT_DIRECTORY_NAME = ".bulk";
+    private static final int INSTALL_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] MAGIC = {'C', 'I', 'M', 'M'};
+    private static final int VERSION = 2;
+
+    /**
+     * Files without the partitioned flag, always laid out with a fixed depth.
+     */
+    private static final int VERSION_FIXED_DEPTH = 1;
+
+    /**
+     * A single mapping cannot be bigger than this, bigger files are mapped in more segments.
+     * Bins never span two segments.
+     */
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * The base index path, the index file lives inside.
+     */
+    private final String mBasePath;
+    private final IndexTreeEntryCodec<T> mCodec;
+
+    /**
+     * The table and the data of the index file being served, only replaced under the lock.
+     */
+    @NonNull
+    private volatile Snapshot mSnapshot = Snapshot.EMPTY;
+
+    /**
+     * The sorters of the bulk insert in progress, one per partition.
+     */
+    @Nullable
+    private volatile List<IndexTreeBulkSorter<T>> mBulkSorters;
+
+    /**
+     * The last checkpoint of the bulk insert in progress, it records the partitions whose data
+     * file is written while the bulk insert is finalized.
+     */
+    @Nullable
+    private volatile IndexTreeBulkCheckpoint mCheckpoint;
+
+    /**
+     * Constructor.
+     * @param codec the codec used to encode and decode entries.
+     * @param basePath the base path for the storage, absolute. The index file is created inside.
+     * @param wipeExistingTree if the index already exists, delete it.
+     */
+    public IndexTreeStorageMmap(@NonNull final IndexTreeEntryCodec<T> codec,
+                                @NonNull final String basePath,
+                                final boolean wipeExistingTree) {
+        Preconditions.checkNotNull(codec);
+        Preconditions.checkNotNull(basePath);
+        mCodec = codec;
+        mBasePath = basePath;
+        if (wipeExistingTree) {
+            deleteIndex();
+        }
+        final File basePathDirectory = new File(mBasePath);
+        if (!basePathDirectory.exists() && !basePathDirectory.mkdirs()) {
+            // This is a very bad condition. And there is no easy way to recover.
+            throw new RuntimeException("Index directory cannot not be created");
+        }
+        if (getIndexFile().exists()) {
+            try {
+                mSnapshot = load();
+            } catch (final IOException e) {
+                throw new RuntimeException("Cannot load index file " + getIndexFile().getAbsolutePath() + " " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public Set<T> getEntriesListAtSubPath(@NonNull final String subPath, int start, int count) {
+        return getEntriesListAtSubPath(subPath, start, count, IndexTreeCancellationToken.NONE);
+    }
+
+    @Override
+    public Set<T> getEntriesListAtSubPath(@NonNull final String subPath, int start, int count,
+                                          @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(token);
+        final Set<T> entries = new TreeSet<>();
+        final Snapshot snapshot = mSnapshot;
+        final int bin = Arrays.binarySearch(snapshot.mSubPaths, IndexTreeManifest.normalizeSubPath(subPath));
+        if (bin < 0) {
+            return entries;
+        }
+
+        try {
+            final IndexTreeBinFormat.Reader<T> reader = new IndexTreeBinFormat.Reader<>(snapshot.getBin(bin), mCodec);
+            reader.skipTo(start);
+            while (reader.hasNext() && count > 0) {
+                token.throwIfCancelled();
+                entries.add(reader.next());
+                count--;
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot read bin " + subPath + " " + e.getMessage());
+        }
+        return entries;
+    }
+
+    @Override
+    public int seek(@NonNull final String subPath, @NonNull final String key) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(key);
+        final Snapshot snapshot = mSnapshot;
+        final int bin = Arrays.binarySearch(snapshot.mSubPaths, IndexTreeManifest.normalizeSubPath(subPath));
+        if (bin < 0) {
+            return 0;
+        }
+
+        try {
+            return new IndexTreeBinFormat.Reader<>(snapshot.getBin(bin), mCodec).seek(key);
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot read bin " + subPath + " " + e.getMessage());
+        }
+    }
+
+    /**
+     * Outside of bulk inserts the index is read only.
+     * Only the sorter of the partition the subPath belongs to is locked, so entries of
+     * different partitions can be added at the same time.
+     */
+    @Override
+    public void addEntryAtSubPath(@NonNull final String subPath, @NonNull final T entry) {
+        Preconditions.checkNotNull(subPath);
+        Preconditions.checkNotNull(entry);
+        final List<IndexTreeBulkSorter<T>> sorters = mBulkSorters;
+        if (sorters == null) {
+            throw new IllegalStateException("Entries can only be added during a bulk insert");
+        }
+        final String normalizedSubPath = IndexTreeManifest.normalizeSubPath(subPath);
+        final IndexTreeBulkSorter<T> sorter = sorters.get(IndexTreeBulkSorter.getPartition(normalizedSubPath, sorters.size()));
+        try {
+            synchronized (sorter) {
+                sorter.add(normalizedSubPath, entry);
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot add entry during bulk insert " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<String> getSubPathsContainingEntriesFrom(@Nullable final String subPath) {
+        Preconditions.checkNotNull(subPath);
+        return mSnapshot.mManifest.getSubPathsFrom(subPath);
+    }
+
+    /**
+     * The subpaths come from the table loaded in memory, there is nothing worth cancelling.
+     */
+    @Override
+    public List<String> getSubPathsContainingEntriesFrom(@Nullable final String subPath,
+                                                         @NonNull final IndexTreeCancellationToken token) {
+        Preconditions.checkNotNull(token);
+        token.throwIfCancelled();
+        return getSubPathsContainingEntriesFrom(subPath);
+    }
+
+    @Override
+    public int getEntriesCountAtSubPath(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+        return mSnapshot.mManifest.getCount(subPath);
+    }
+
+    @Override
+    public int getEntriesCountFrom(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+        return mSnapshot.mManifest.getCountFrom(subPath);
+    }
+
+    @Override
+    public int getEntriesCountBefore(@NonNull final String subPath) {
+        Preconditions.checkNotNull(subPath);
+        return mSnapshot.mManifest.getCountBefore(subPath);
+    }
+
+    @NonNull
+    @Override
+    public IndexTreePartitionMap getPartitionMap() {
+        return mSnapshot.mPartitionMap;
+    }
+
+    @Override
+    public synchronized void deleteIndex() {
+        discardBulkInsert();
+        mSnapshot = Snapshot.EMPTY;
+        FsUtils.deleteDirectory(new File(mBasePath));
+    }
+
+    @Override
+    public synchronized void initiateBulkInsert() {
+        initiateBulkInsert(1);
+    }
+
+    @Override
+    public synchronized void initiateBulkInsert(final int partitions) {
+        Preconditions.checkArgument(partitions > 0);
+        discardBulkInsert();
+        try {
+            IndexTreeBulkCheckpoint.delete(getCheckpointFile());
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot initiate bulk insert " + e.getMessage());
+        }
+        // Whatever an interrupted bulk insert left behind.
+        FsUtils.deleteDirectory(new File(mBasePath, BULK_INSERT_DIRECTORY_NAME));
+        mBulkSorters = IndexTreeBulkSorter.createPartitions(
+                new File(mBasePath, BULK_INSERT_DIRECTORY_NAME), mCodec, partitions);
+    }
+
+    @Override
+    public synchronized void checkpointBulkInsert(@NonNull final IndexTreePartitionMap.Builder partitions,
+                                                  final long position) {
+        Preconditions.checkNotNull(partitions);
+        final List<IndexTreeBulkSorter<T>> sorters = mBulkSorters;
+        if (sorters == null) {
+            throw new IllegalStateException("No bulk insert in progress");
+        }
+        try {
+            // Partitions merged by an interrupted finalization stay merged.
+            final IndexTreeBulkCheckpoint previous = mCheckpoint;
+            final IndexTreeBulkCheckpoint checkpoint = IndexTreeBulkSorter.checkpointPartitions(sorters, position, partitions,
+                    previous != null ? previous.getMerged() : Collections.<Integer>emptySet());
+            checkpoint.write(getCheckpointFile());
+            mCheckpoint = checkpoint;
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot checkpoint bulk insert " + e.getMessage());
+        }
+    }
+
+    /**
+     * The index file is only replaced once the bulk insert is finalized, so the one found is
+     * the one the bulk insert was initiated on.
+     */
+    @Nullable
+    @Override
+    public synchronized IndexTreeBulkCheckpoint resumeBulkInsert() {
+        try {
+            final IndexTreeBulkCheckpoint checkpoint = IndexTreeBulkCheckpoint.read(getCheckpointFile(), mSnapshot.mPartitionMap);
+            if (checkpoint == null) return null;
+            // The sorters in use, if any, are not discarded: their runs are the ones listed.
+            mBulkSorters = IndexTreeBulkSorter.resumePartitions(
+                    new File(mBasePath, BULK_INSERT_DIRECTORY_NAME), mCodec, checkpoint);
+            mCheckpoint = checkpoint;
+            return checkpoint;
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot resume bulk insert " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites the whole index file, entries added during the bulk insert become visible
+     * only once this method returns. The data file of each partition is recorded in the
+     * checkpoint once written, if the checkpoint lists all the entries, and the checkpoint is
+     * only deleted together with the runs and the data files once the index file is replaced.
+     */
+    @Override
+    public synchronized void finalizeBulkInsert() {
+        finalizeBulkInsert(new IndexTreePartitionMap.Builder(mSnapshot.mPartitionMap));
+    }
+
+    @Override
+    public synchronized void finalizeBulkInsert(@NonNull final IndexTreePartitionMap.Builder partitions) {
+        Preconditions.checkNotNull(partitions);
+        final List<IndexTreeBulkSorter<T>> sorters = mBulkSorters;
+        if (sorters == null) return;
+        mBulkSorters = null;
+        final IndexTreeBulkCheckpoint checkpoint = mCheckpoint;
+        mCheckpoint = null;
+        // Taken before the existing entries are added, they are not listed by the checkpoint.
+        final boolean isCheckpointCurrent = checkpoint != null && IndexTreeBulkSorter.isCheckpointed(sorters);
+        boolean isFinalized = false;
+        try {
+            // The file is rewritten from scratch, existing entries have to be merged in.
+            for (final String subPath : mSnapshot.mSubPaths) {
+                final int partition = IndexTreeBulkSorter.getPartition(subPath, sorters.size());
+                // Already in the data file of the partition.
+                if (checkpoint != null && checkpoint.isMerged(partition)) continue;
+                for (final T entry : getEntriesListAtSubPath(subPath, 0, Integer.MAX_VALUE)) {
+                    sorters.get(partition).add(subPath, entry);
+                }
+            }
+            writeIndexFile(sorters, partitions, checkpoint, isCheckpointCurrent);
+            // Queries in progress go on with the previous mapping, it stays valid.
+            mSnapshot = load();
+            IndexTreeBulkCheckpoint.delete(getCheckpointFile());
+            isFinalized = true;
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot finalize bulk insert " + e.getMessage());
+        } finally {
+            // Kept as long as a checkpoint lists them, to resume the finalization.
+            if (isFinalized || checkpoint == null) {
+                for (final IndexTreeBulkSorter<T> sorter : sorters) {
+                    sorter.discard();
+                }
+                for (int i = 0; i < sorters.size(); i++) {
+                    getDataTempFile(i).delete();
+                    getRowsTempFile(i).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the bins of each partition to a temporary data file, in parallel, then the header,
+     * the table and the data files one after the other to a temporary index file which finally
+     * replaces the current one.
+     * @param checkpoint the last checkpoint of the bulk insert, the data files of the partitions
+     * it records as merged are used as they are.
+     * @param isCheckpointCurrent true if the checkpoint lists all the entries, only then the
+     * partitions merged are recorded.
+     */
+    private void writeIndexFile(@NonNull final List<IndexTreeBulkSorter<T>> sorters,
+                                @NonNull final IndexTreePartitionMap.Builder partitions,
+                                @Nullable final IndexTreeBulkCheckpoint checkpoint,
+                                final boolean isCheckpointCurrent) throws IOException {
+        final File indexTempFile = new File(mBasePath, INDEX_TEMP_FILE_NAME);
+        final List<DataFileSink> sinks = new ArrayList<>(sorters.size());
+        final List<IndexTreeBulkSorter.BinSink<T>> splittingSinks = new ArrayList<>(sorters.size());
+        for (int i = 0; i < sorters.size(); i++) {
+            final boolean isMerged = checkpoint != null && checkpoint.isMerged(i);
+            sinks.add(new DataFileSink(getDataTempFile(i), getRowsTempFile(i), isMerged));
+            splittingSinks.add(partitions.split(sinks.get(i), i));
+        }
+        final IndexTreeBulkSorter.MergeListener listener = new IndexTreeBulkSorter.MergeListener() {
+            @Override
+            public boolean isMerged(final int partition) {
+                return checkpoint != null && checkpoint.isMerged(partition);
+            }
+
+            @Override
+            public void onMerged(final int partition) throws IOException {
+                if (isCheckpointCurrent) {
+                    sinks.get(partition).finish();
+                    checkpoint.setMerged(partition, getCheckpointFile());
+                }
+            }
+        };
+        try {
+            IndexTreeBulkSorter.mergePartitions(sorters, splittingSinks, listener);
+        } finally {
+            for (final DataFileSink sink : sinks) {
+                sink.mData.close();
+            }
+        }
+
+        // Partitions are laid out in order, the table is sorted across all of them.
+        final List<TableRow> rows = new ArrayList<>();
+        long partitionOffset = 0;
+        for (final DataFileSink sink : sinks) {
+            for (final TableRow row : sink.mRows) {
+                row.mOffset += partitionOffset;
+                rows.add(row);
+            }
+            partitionOffset += sink.mFile.length();
+        }
+        Collections.sort(rows);
+
+        final ByteArrayOutputStream table = new ByteArrayOutputStream();
+        final DataOutputStream tableOut = new DataOutputStream(table);
+        for (final TableRow row : rows) {
+            if (row.mLength > MAX_SEGMENT_SIZE) throw new IOException("Bin too big " + row.mSubPath);
+            BinaryUtils.writeString(tableOut, row.mSubPath);
+            tableOut.writeLong(row.mOffset);
+            tableOut.writeInt((int) row.mLength);
+            tableOut.writeInt(row.mCount);
+        }
+        final int headerSize = MAGIC.length + 1 + 4 + 8 + 1;
+
+        final FileOutputStream outputStream = new FileOutputStream(indexTempFile);
+        try {
+            final DataOutputStream out = new DataOutputStream(outputStream);
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(rows.size());
+            out.writeLong(headerSize + table.size());
+            out.writeBoolean(!partitions.build().isFixedDepth());
+            table.writeTo(out);
+            out.flush();
+
+            final FileChannel destination = outputStream.getChannel();
+            for (final DataFileSink sink : sinks) {
+                transferFile(sink.mFile, destination);
+            }
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+
+        if (!indexTempFile.renameTo(getIndexFile())) {
+            throw new IOException("Cannot replace the index file");
+        }
+    }
+
+    /**
+     * Loads the table and maps the data.
+     */
+    @NonNull
+    private Snapshot load() throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(getIndexFile(), "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1 + 4 + 8 + 1);
+            // The partitioned flag is missing from the files of the first version.
+            header.limit(header.capacity() - 1);
+            readFully(channel, header);
+            if (header.get(MAGIC.length) != VERSION_FIXED_DEPTH) {
+                header.limit(header.capacity());
+                readFully(channel, header);
+            }
+            header.flip();
+            for (final byte b : MAGIC) {
+                if (header.get() != b) throw new IOException("Not an index file");
+            }
+            final int version = header.get();
+            if (version != VERSION && version != VERSION_FIXED_DEPTH) {
+                throw new IOException("Unsupported index version " + version);
+            }
+            final int binsCount = header.getInt();
+            final long dataOffset = header.getLong();
+            final boolean partitioned = version != VERSION_FIXED_DEPTH && header.get() != 0;
+            final int headerSize = header.position();
+
+            final ByteBufferDataInput table = new ByteBufferDataInput(
+                    channel.map(FileChannel.MapMode.READ_ONLY, headerSize, dataOffset - headerSize));
+            final String[] subPaths = new String[binsCount];
+            final long[] offsets = new long[binsCount];
+            final int[] lengths = new int[binsCount];
+            final int[] counts = new int[binsCount];
+            for (int i = 0; i < binsCount; i++) {
+                subPaths[i] = BinaryUtils.readString(table);
+                offsets[i] = dataOffset + table.readLong();
+                lengths[i] = table.readInt();
+                counts[i] = table.readInt();
+            }
+
+            // Map the data in as few segments as possible, without splitting bins.
+            // Bins are laid out by partition, so they are walked in the order they are stored.
+            final Integer[] byOffset = new Integer[binsCount];
+            for (int i = 0; i < binsCount; i++) {
+                byOffset[i] = i;
+            }
+            Arrays.sort(byOffset, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer first, final Integer second) {
+                    return Long.compare(offsets[first], offsets[second]);
+                }
+            });
+            final int[] segmentIndexes = new int[binsCount];
+            final int[] segmentOffsets = new int[binsCount];
+            final List<MappedByteBuffer> segments = new ArrayList<>();
+            int first = 0;
+            while (first < binsCount) {
+                final long segmentStart = offsets[byOffset[first]];
+                int last = first;
+                while (last + 1 < binsCount
+                        && offsets[byOffset[last + 1]] + lengths[byOffset[last + 1]] - segmentStart <= MAX_SEGMENT_SIZE) {
+                    last++;
+                }
+                for (int i = first; i <= last; i++) {
+                    segmentIndexes[byOffset[i]] = segments.size();
+                    segmentOffsets[byOffset[i]] = (int) (offsets[byOffset[i]] - segmentStart);
+                }
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart,
+                        offsets[byOffset[last]] + lengths[byOffset[last]] - segmentStart));
+                first = last + 1;
+            }
+
+            return new Snapshot(subPaths, lengths, segmentIndexes, segmentOffsets,
+                    segments.toArray(new MappedByteBuffer[segments.size()]),
+                    new IndexTreeManifest(subPaths, counts),
+                    partitioned ? IndexTreePartitionMap.fromSubPaths(subPaths) : IndexTreePartitionMap.FIXED_DEPTH);
+        } finally {
+            // Mappings stay valid after the file is closed.
+            file.close();
+        }
+    }
+
+    private static void readFully(@NonNull final FileChannel channel, @NonNull final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) throw new IOException("Index file too short");
+        }
+    }
+
+    private static void transferFile(@NonNull final File file, @NonNull final FileChannel destination) throws IOException {
+        final FileInputStream inputStream = new FileInputStream(file);
+        try {
+            final FileChannel source = inputStream.getChannel();
+            long transferred = 0;
+            final long size = source.size();
+            while (transferred < size) {
+                transferred += source.transferTo(transferred, size - transferred, destination);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void discardBulkInsert() {
+        final List<IndexTreeBulkSorter<T>> sorters = mBulkSorters;
+        mBulkSorters = null;
+        mCheckpoint = null;
+        if (sorters != null) {
+            for (final IndexTreeBulkSorter<T> sorter : sorters) {
+                sorter.discard();
+            }
+        }
+    }
+
+    /**
+     * @return the file holding the whole index, it can be shipped elsewhere and installed
+     * with {@link #installIndexFile(InputStream, String)}.
+     */
+    @NonNull
+    public File getIndexFile() {
+        return new File(mBasePath, INDEX_FILE_NAME);
+    }
+
+    /**
+     * The whole index lives in a single file, so it can be built somewhere else, for instance
+     * at build time, and shipped. Writes the file into the base directory of a storage, which
+     * serves it once opened. The index found there, if any, is replaced.
+     * @param indexFile the content of the index file of another storage, see {@link #getIndexFile()}.
+     * @param basePath the base path of the storage, absolute.
+     */
+    public static void installIndexFile(@NonNull final InputStream indexFile, @NonNull final String basePath) throws IOException {
+        Preconditions.checkNotNull(indexFile);
+        Preconditions.checkNotNull(basePath);
+        final File basePathDirectory = new File(basePath);
+        if (!basePathDirectory.isDirectory() && !basePathDirectory.mkdirs()) {
+            throw new IOException("Cannot create index directory " + basePath);
+        }
+        final File indexTempFile = new File(basePathDirectory, INDEX_TEMP_FILE_NAME);
+        final FileOutputStream outputStream = new FileOutputStream(indexTempFile);
+        try {
+            final byte[] buffer = new byte[INSTALL_BUFFER_SIZE];
+            int read;
+            while ((read = indexFile.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, read);
+            }
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if (!indexTempFile.renameTo(new File(basePathDirectory, INDEX_FILE_NAME))) {
+            throw new IOException("Cannot replace the index file");
+        }
+    }
+
+    @NonNull
+    private File getCheckpointFile() {
+        return new File(mBasePath, IndexTreeBulkCheckpoint.FILE_NAME);
+    }
+
+    @NonNull
+    private File getDataTempFile(final int partition) {
+        return new File(mBasePath, DATA_TEMP_FILE_PREFIX + partition + DATA_TEMP_FILE_SUFFIX);
+    }
+
+    @NonNull
+    private File getRowsTempFile(final int partition) {
+        return new File(mBasePath, DATA_TEMP_FILE_PREFIX + partition + ROWS_TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * Writes the bins of a partition one after the other into a data file, keeping track of
+     * where each of them lies. Once finished the rows are stored next to the data file, so
+     * that a resumed finalization can use it as it is.
+     */
+    private class DataFileSink implements IndexTreeBulkSorter.BinSink<T> {
+        @NonNull
+        final File mFile;
+        @NonNull
+        final File mRowsFile;
+        @NonNull
+        final RandomAccessFile mData;
+        final List<TableRow> mRows = new ArrayList<>();
+
+        /**
+         * @param isFinished true if the data file and the rows were written by {@link #finish()},
+         * they are read back, otherwise the data file is emptied.
+         */
+        DataFileSink(@NonNull final File file, @NonNull final File rowsFile, final boolean isFinished) throws IOException {
+            mFile = file;
+            mRowsFile = rowsFile;
+            mData = new RandomAccessFile(file, "rw");
+            if (isFinished) {
+                readRows();
+            } else {
+                mData.setLength(0);
+            }
+        }
+
+        /**
+         * Syncs the data file and stores the rows.
+         */
+        void finish() throws IOException {
+            mData.getFD().sync();
+            FsUtils.writeAtomically(mRowsFile, new FsUtils.ContentWriter() {
+                @Override
+                public void write(@NonNull final DataOutputStream out) throws IOException {
+                    out.writeInt(mRows.size());
+                    for (final TableRow row : mRows) {
+                        BinaryUtils.writeString(out, row.mSubPath);
+                        out.writeLong(row.mOffset);
+                        out.writeLong(row.mLength);
+                        out.writeInt(row.mCount);
+                    }
+                }
+            });
+        }
+
+        private void readRows() throws IOException {
+            final FileInputStream inputStream = new FileInputStream(mRowsFile);
+            try {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+                final int rows = in.readInt();
+                for (int i = 0; i < rows; i++) {
+                    mRows.add(new TableRow(BinaryUtils.readString(in), in.readLong(), in.readLong(), in.readInt()));
+                }
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        @Override
+        public void writeBin(@NonNull final String subPath, @NonNull final Iterator<T> entries) throws IOException {
+            final long offset = mData.getFilePointer();
+            final IndexTreeBinFormat.Writer<T> writer = new IndexTreeBinFormat.Writer<>(mData, mCodec);
+            while (entries.hasNext()) {
+                writer.add(entries.next());
+            }
+            final int count = writer.finish();
+            mRows.add(new TableRow(subPath, offset, mData.getFilePointer() - offset, count));
+        }
+    }
+
+    /**
+     * The table and the mapped data of an index file. Never modified, the buffers are
+     * duplicated by each read, so any amount of threads can read at the same time.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new String[0], new int[0], new int[0], new int[0],
+                new MappedByteBuffer[0], new IndexTreeManifest(new String[0], new int[0]),
+                IndexTreePartitionMap.FIXED_DEPTH);
+
+        /**
+         * The table, sorted by subPath.
+         */
+        @NonNull
+        final String[] mSubPaths;
+        @NonNull
+        final int[] mLengths;
+        @NonNull
+        final int[] mSegmentIndexes;
+        @NonNull
+        final int[] mSegmentOffsets;
+        @NonNull
+        final MappedByteBuffer[] mSegments;
+
+        /**
+         * Built from the table, answers the subpaths and counts queries.
+         */
+        @NonNull
+        final IndexTreeManifest mManifest;
+        @NonNull
+        final IndexTreePartitionMap mPartitionMap;
+
+        Snapshot(@NonNull final String[] subPaths,
+                 @NonNull final int[] lengths,
+                 @NonNull final int[] segmentIndexes,
+                 @NonNull final int[] segmentOffsets,
+                 @NonNull final MappedByteBuffer[] segments,
+                 @NonNull final IndexTreeManifest manifest,
+                 @NonNull final IndexTreePartitionMap partitionMap) {
+            mSubPaths = subPaths;
+            mLengths = lengths;
+            mSegmentIndexes = segmentIndexes;
+            mSegmentOffsets = segmentOffsets;
+            mSegments = segments;
+            mManifest = manifest;
+            mPartitionMap = partitionMap;
+        }
+
+        /**
+         * @return a buffer holding only the bin at the specified position of the table, with
+         * its own position, so it can be read by a single thread.
+         */
+        @NonNull
+        ByteBuffer getBin(final int bin) {
+            final ByteBuffer segment = mSegments[mSegmentIndexes[bin]].duplicate();
+            segment.position(mSegmentOffsets[bin]);
+            segment.limit(mSegmentOffsets[bin] + mLengths[bin]);
+            return segment.slice();
+        }
+    }
+
+    /**
+     * A bin location, offsets are relative to the data section.
+     */
+    private static class TableRow implements Comparable<TableRow> {
+        @NonNull
+        final String mSubPath;
+        long mOffset;
+        final long mLength;
+        final int mCount;
+
+        TableRow(@NonNull final String subPath, final long offset, final long length, final int count) {
+            mSubPath = subPath;
+            mOffset = offset;
+            mLength = length;
+            mCount = count;
+        }
+
+        @Override
+        public int compareTo(@NonNull final TableRow other) {
+            return mSubPath.compareTo(other.mSubPath);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.rigoni.citiesindex.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Helpers to read and write compact binary data: variable length integers and
+ * length prefixed UTF-8 strings.
+ */
+public class BinaryUtils {
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes an unsigned variable length integer, 7 bits per byte.
+     * @param value must not be negative.
+     */
+    public static void writeVarLong(@NonNull final DataOutput out, long value) throws IOException {
+        if (value < 0) throw new IllegalArgumentException("Negative values are not supported: " + value);
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads an unsigned variable length integer written with {@link #writeVarLong(DataOutput, long)}.
+     */
+    public static long readVarLong(@NonNull final DataInput in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) throw new IOException("Malformed variable length integer");
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    public static void writeVarInt(@NonNull final DataOutput out, final int value) throws IOException {
+        writeVarLong(out, value);
+    }
+
+    public static int readVarInt(@NonNull final DataInput in) throws IOException {
+        final long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) throw new IOException("Variable length integer too big: " + value);
+        return (int) value;
+    }
+
+    /**
+     * Writes a string as its UTF-8 length followed by its UTF-8 bytes, null is written as empty.
+     */
+    public static void writeString(@NonNull final DataOutput out, @Nullable final String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        final byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written with {@link #writeString(DataOutput, String)}.
+     */
+    @NonNull
+    public static String readString(@NonNull final DataInput in) throws IOException {
+        final int length = readVarInt(in);
+        if (length == 0) return "";
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Skips a string written with {@link #writeString(DataOutput, String)}.
+     */
+    public static void skipString(@NonNull final DataInput in) throws IOException {
+        final int length = readVarInt(in);
+        if (in.skipBytes(length) != length) throw new IOException("Unexpected end of input");
+    }
+}
@@ -0,0 +1,91 @@
+package com.rigoni.citiesindex.utils;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class FsUtils {
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Writes the content of a file, see {@link #writeAtomically(File, ContentWriter)}.
+     */
+    public interface ContentWriter {
+        void write(@NonNull DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Deletes a directory and all of its content.
+     * @param directory the directory to delete.
+     */
+    public static void deleteDirectory(@NonNull final File directory) {
+        Preconditions.checkNotNull(directory);
+
+        if (directory.exists() && directory.isDirectory()) {
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        deleteDirectory(file);
+                    }
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Writes a file so that it is never seen half written: the content goes to a temporary file
+     * next to it, which is synced to the disk and then renamed over the file.
+     * @param file the file to create or replace.
+     * @param writer writes the content.
+     * @throws IOException if the content cannot be written, the file is left as it was and the
+     * temporary file is deleted.
+     */
+    public static void writeAtomically(@NonNull final File file, @NonNull final ContentWriter writer)
+            throws IOException {
+        writeAtomically(file, DEFAULT_BUFFER_SIZE, writer);
+    }
+
+    /**
+     * Same as {@link #writeAtomically(File, ContentWriter)}, for big files.
+     * @param bufferSize the size of the buffer in front of the temporary file.
+     */
+    public static void writeAtomically(@NonNull final File file,
+                                       final int bufferSize,
+                                       @NonNull final ContentWriter writer) throws IOException {
+        Preconditions.checkNotNull(file);
+        Preconditions.checkArgument(bufferSize > 0);
+        Preconditions.checkNotNull(writer);
+
+        final File tempFile = new File(file.getAbsolutePath() + TEMP_FILE_SUFFIX);
+        boolean isReplaced = false;
+        try {
+            final FileOutputStream outputStream = new FileOutputStream(tempFile);
+            try {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream, bufferSize));
+                writer.write(out);
+                out.flush();
+                outputStream.getFD().sync();
+            } finally {
+                outputStream.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Cannot replace " + file.getAbsolutePath());
+            }
+            isReplaced = true;
+        } finally {
+            if (!isReplaced) {
+                tempFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.rigoni.citiesindex.utils;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives the messages logged by the index code, see {@link Logging}.
+ */
+public interface Logger {
+    void info(@NonNull final String tag, @NonNull final String message);
+    void warning(@NonNull final String tag, @NonNull final String message);
+    void error(@NonNull final String tag, @NonNull final String message);
+}
@@ -0,0 +1,54 @@
+package com.rigoni.citiesindex.utils;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The index code runs on a plain JVM as well as on Android, so it does not log through
+ * android.util.Log directly. Messages go to the standard error until the app plugs its own
+ * {@link Logger} in with {@link #setLogger(Logger)}.
+ */
+public final class Logging {
+    private static final Logger STANDARD_ERROR_LOGGER = new Logger() {
+        @Override
+        public void info(@NonNull final String tag, @NonNull final String message) {
+            System.err.println("I/" + tag + ": " + message);
+        }
+
+        @Override
+        public void warning(@NonNull final String tag, @NonNull final String message) {
+            System.err.println("W/" + tag + ": " + message);
+        }
+
+        @Override
+        public void error(@NonNull final String tag, @NonNull final String message) {
+            System.err.println("E/" + tag + ": " + message);
+        }
+    };
+
+    private static volatile Logger sLogger = STANDARD_ERROR_LOGGER;
+
+    private Logging() {
+    }
+
+    /**
+     * @param logger receives all the messages logged from now on.
+     */
+    public static void setLogger(@NonNull final Logger logger) {
+        Preconditions.checkNotNull(logger);
+        sLogger = logger;
+    }
+
+    public static void i(@NonNull final String tag, @NonNull final String message) {
+        sLogger.info(tag, message);
+    }
+
+    public static void w(@NonNull final String tag, @NonNull final String message) {
+        sLogger.warning(tag, message);
+    }
+
+    public static void e(@NonNull final String tag, @NonNull final String message) {
+        sLogger.error(tag, message);
+    }
+}
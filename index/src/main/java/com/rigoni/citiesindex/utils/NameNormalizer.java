@@ -0,0 +1,155 @@
+package com.rigoni.citiesindex.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes names to make them suitable for insertion in the index tree: they are lower cased,
+ * and each run of spaces and of the punctuation not allowed in the keys is replaced by an underscore.
+ *
+ * Names are normalized once per city at build time and the filter at every keystroke, so the
+ * characters are looked up in a table computed once, and written in a buffer reused by the
+ * following calls. The few characters whose lower case depends on the ones around them, and the
+ * locales with their own rules, go through {@link String#toLowerCase()} and the regular
+ * expression instead, the result is the same either way. Instances are not thread safe.
+ */
+public class NameNormalizer {
+    private static final String EXCLUDED_CHARS_REGEXP = "[\\[|?*.,<>\":+\\]'/’ ]+";
+    private static final Pattern EXCLUDED_CHARS_PATTERN = Pattern.compile(EXCLUDED_CHARS_REGEXP);
+    private static final String EXCLUDED_CHARS = "[|?*.,<>\":+]'/’ ";
+    private static final char REPLACEMENT_CHAR = '_';
+
+    /**
+     * The characters below this one are looked up in the table: Latin, Greek, Cyrillic and
+     * the other alphabets most names are written in.
+     */
+    private static final int TABLE_SIZE = 0x800;
+
+    /**
+     * In the table, marks the characters a run of which is replaced.
+     */
+    private static final char EXCLUDED = '\uFFFF';
+
+    /**
+     * In the table, marks the characters whose lower case is not a single character, or depends
+     * on the ones around them.
+     */
+    private static final char SPECIAL_CASE = '\uFFFE';
+
+    private static final char CAPITAL_I_WITH_DOT = '\u0130';
+    private static final char CAPITAL_SIGMA = '\u03A3';
+
+    /**
+     * The only excluded character not in the table.
+     */
+    private static final char RIGHT_SINGLE_QUOTATION_MARK = '\u2019';
+
+    /**
+     * For each character below {@link #TABLE_SIZE}, its lower case, {@link #EXCLUDED} or
+     * {@link #SPECIAL_CASE}.
+     */
+    private static final char[] sTable = createTable();
+
+    private static final int DEFAULT_BUFFER_SIZE = 64;
+
+    @NonNull
+    private char[] mBuffer = new char[DEFAULT_BUFFER_SIZE];
+
+    /**
+     * Normalizes the name to make it suitable for insertion in the index tree.
+     */
+    @NonNull
+    public String normalize(@NonNull final CharSequence name) {
+        final int length = fillBuffer(name);
+        if (length < 0) {
+            return normalizeWithPattern(name.toString());
+        }
+        return new String(mBuffer, 0, length);
+    }
+
+    /**
+     * Like {@link #normalize(CharSequence)}, but appends the normalized name to the builder.
+     */
+    public void normalize(@NonNull final CharSequence name, @NonNull final StringBuilder normalized) {
+        final int length = fillBuffer(name);
+        if (length < 0) {
+            normalized.append(normalizeWithPattern(name.toString()));
+            return;
+        }
+        normalized.append(mBuffer, 0, length);
+    }
+
+    /**
+     * Writes the normalized name in the buffer.
+     * @return the length of the normalized name, -1 if it has to be normalized with the pattern.
+     */
+    private int fillBuffer(@NonNull final CharSequence name) {
+        if (hasLocaleRules()) return -1;
+        final int length = name.length();
+        // Lower casing characters one by one never makes a name longer.
+        if (mBuffer.length < length) {
+            mBuffer = new char[Math.max(length, mBuffer.length * 2)];
+        }
+        final char[] buffer = mBuffer;
+        final char[] table = sTable;
+        int normalizedLength = 0;
+        boolean isExcluding = false;
+        for (int i = 0; i < length; i++) {
+            final char c = name.charAt(i);
+            final char lowerCase;
+            final boolean isExcluded;
+            if (c < TABLE_SIZE) {
+                lowerCase = table[c];
+                if (lowerCase == SPECIAL_CASE) return -1;
+                isExcluded = lowerCase == EXCLUDED;
+            } else {
+                if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) return -1;
+                // The markers of the table are valid characters out of it.
+                lowerCase = Character.toLowerCase(c);
+                isExcluded = lowerCase == RIGHT_SINGLE_QUOTATION_MARK;
+            }
+            if (isExcluded) {
+                if (!isExcluding) {
+                    buffer[normalizedLength++] = REPLACEMENT_CHAR;
+                    isExcluding = true;
+                }
+            } else {
+                buffer[normalizedLength++] = lowerCase;
+                isExcluding = false;
+            }
+        }
+        return normalizedLength;
+    }
+
+    /**
+     * @return true if the default locale lower cases some characters its own way, like the
+     * dotted and dotless i of Turkish.
+     */
+    private static boolean hasLocaleRules() {
+        final String language = Locale.getDefault().getLanguage();
+        return "tr".equals(language) || "az".equals(language) || "lt".equals(language);
+    }
+
+    @NonNull
+    private static String normalizeWithPattern(@NonNull final String name) {
+        return EXCLUDED_CHARS_PATTERN.matcher(name.toLowerCase()).replaceAll(String.valueOf(REPLACEMENT_CHAR));
+    }
+
+    @NonNull
+    private static char[] createTable() {
+        final char[] table = new char[TABLE_SIZE];
+        for (char c = 0; c < TABLE_SIZE; c++) {
+            final char lowerCase = Character.toLowerCase(c);
+            if (c == CAPITAL_I_WITH_DOT || c == CAPITAL_SIGMA) {
+                table[c] = SPECIAL_CASE;
+            } else if (EXCLUDED_CHARS.indexOf(lowerCase) >= 0) {
+                table[c] = EXCLUDED;
+            } else {
+                table[c] = lowerCase;
+            }
+        }
+        return table;
+    }
+}
@@ -1,7 +1,6 @@
 package com.rigoni.citiesindex.utils;
 
 import android.support.annotation.Nullable;
-import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -20,7 +19,7 @@ public class StreamUtils {
             try {
                 stream.close();
             } catch (final IOException e) {
-                Log.e(TAG, "Failed to close InputStream, ignoring");
+                Logging.e(TAG, "Failed to close InputStream, ignoring");
             }
         }
     }
@@ -0,0 +1,193 @@
+package com.rigoni.citiesindex;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.data.CityCodec;
+import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.index.IndexTreeEntry;
+import com.rigoni.citiesindex.index.IndexTreePage;
+import com.rigoni.citiesindex.index.IndexTreeStorageMmap;
+import com.rigoni.citiesindex.tools.CitiesGenerator;
+import com.rigoni.citiesindex.utils.BinaryUtils;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Builds and queries indexes of millions of generated cities, see {@link CitiesGenerator},
+ * within a fixed heap: run with ./gradlew :index:scaleTest, which caps it at
+ * {@link #MEMORY_BUDGET_BYTES}. The sizes come from the scale.sizes system property.
+ *
+ * While the cities are added the keys are counted by prefix, the index must then agree with
+ * those counts, and walking it must give back every city in order.
+ */
+@RunWith(Parameterized.class)
+public class IndexTreeScaleTest {
+    private static final long MEMORY_BUDGET_BYTES = 256L * 1024 * 1024;
+    private static final String DEFAULT_SIZES = "1000000,5000000,10000000";
+    private static final long SEED = 42;
+    private static final int PAGE_SIZE = 200;
+
+    /**
+     * Every prefix up to this length is counted, the longer ones are the probes below.
+     */
+    private static final int COUNTED_PREFIX_LENGTH = 2;
+    private static final List<String> PROBES = Arrays.asList(
+            "san_", "saint-", "sainte-", "new_", "bad_", "ust_-", "são_", "mama", "berlin", "zzz");
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final int mSize;
+
+    public IndexTreeScaleTest(final int size) {
+        mSize = size;
+    }
+
+    @Parameterized.Parameters(name = "{0} cities")
+    public static List<Object[]> sizes() {
+        final List<Object[]> sizes = new ArrayList<>();
+        for (final String size : System.getProperty("scale.sizes", DEFAULT_SIZES).split(",")) {
+            sizes.add(new Object[]{Integer.parseInt(size.trim())});
+        }
+        return sizes;
+    }
+
+    @BeforeClass
+    public static void checkMemoryBudget() {
+        assertTrue("The heap must be capped at the budget, run with ./gradlew :index:scaleTest",
+                Runtime.getRuntime().maxMemory() <= MEMORY_BUDGET_BYTES);
+    }
+
+    @Test
+    public void testBuildAndQuery() throws IOException {
+        // Given the generated cities
+        final File citiesFile = mTemporaryFolder.newFile("cities.json");
+        final OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(citiesFile));
+        try {
+            new CitiesGenerator(SEED).generate(mSize, outputStream);
+        } finally {
+            outputStream.close();
+        }
+
+        // When the index is built from them, counting the keys by prefix meanwhile
+        final File indexDirectory = mTemporaryFolder.newFolder("index");
+        final IndexTree indexTree = new IndexTree(
+                new IndexTreeStorageMmap<City>(new CityCodec(), indexDirectory.getAbsolutePath(), true));
+        final Map<String, int[]> expectedCounts = buildIndex(indexTree, citiesFile);
+
+        // Then every prefix should match the amount of cities counted
+        for (final Map.Entry<String, int[]> expected : expectedCounts.entrySet()) {
+            assertEquals("Prefix " + expected.getKey(), expected.getValue()[0], indexTree.countMatching(expected.getKey()));
+        }
+
+        // And the first page of the probes should hold only matching keys, in order
+        for (final String probe : PROBES) {
+            final List<IndexTreeEntry> entries = indexTree.filterForward(probe, PAGE_SIZE).getEntries();
+            assertEquals("Probe " + probe, Math.min(PAGE_SIZE, expectedCounts.get(probe)[0]), entries.size());
+            assertOrderedAndMatching(probe, entries, null);
+        }
+
+        // And walking the whole index should give back every city in order
+        final int middle = mSize / 2;
+        String middleKey = null;
+        int walked = 0;
+        String previousKey = null;
+        IndexTreePage page = indexTree.filterForward("", PAGE_SIZE);
+        while (true) {
+            final List<IndexTreeEntry> entries = page.getEntries();
+            assertOrderedAndMatching("", entries, previousKey);
+            if (middleKey == null && walked + entries.size() > middle) {
+                middleKey = entries.get(middle - walked).getIndexTreeKey();
+            }
+            walked += entries.size();
+            if (!entries.isEmpty()) {
+                previousKey = entries.get(entries.size() - 1).getIndexTreeKey();
+            }
+            if (page.getContinuation() == null) break;
+            page = indexTree.filterForward(page.getContinuation(), PAGE_SIZE);
+        }
+        assertEquals(mSize, walked);
+
+        // And a page deep in the index should start where the walk found it
+        if (mSize > 0) {
+            assertEquals(middleKey, indexTree.filterForwardAt("", middle, PAGE_SIZE).getEntries().get(0).getIndexTreeKey());
+        }
+    }
+
+    /**
+     * @return for each counted prefix and each probe, the amount of keys it matches.
+     */
+    private Map<String, int[]> buildIndex(final IndexTree indexTree, final File citiesFile) throws IOException {
+        final Map<String, int[]> counts = new HashMap<>();
+        for (final String probe : PROBES) {
+            counts.put(probe, new int[1]);
+        }
+        final JsonReader reader = new JsonReader(new InputStreamReader(
+                new BufferedInputStream(new FileInputStream(citiesFile)), BinaryUtils.UTF_8));
+        try {
+            final Gson gson = new GsonBuilder().create();
+            indexTree.initiateBulkInsert(Runtime.getRuntime().availableProcessors());
+            reader.beginArray();
+            while (reader.hasNext()) {
+                final City city = gson.fromJson(reader, City.class);
+                final String key = city.getIndexTreeKey();
+                for (int length = 0; length <= Math.min(COUNTED_PREFIX_LENGTH, key.length()); length++) {
+                    increment(counts, key.substring(0, length));
+                }
+                for (final String probe : PROBES) {
+                    if (key.startsWith(probe)) increment(counts, probe);
+                }
+                indexTree.addEntry(city);
+            }
+            reader.endArray();
+            indexTree.finalizeBulkInsert();
+        } finally {
+            reader.close();
+        }
+        return counts;
+    }
+
+    private static void increment(final Map<String, int[]> counts, final String prefix) {
+        int[] count = counts.get(prefix);
+        if (count == null) {
+            count = new int[1];
+            counts.put(prefix, count);
+        }
+        count[0]++;
+    }
+
+    private static void assertOrderedAndMatching(final String filter, final List<IndexTreeEntry> entries,
+                                                 final String previousKey) {
+        String previous = previousKey;
+        for (final IndexTreeEntry entry : entries) {
+            final String key = entry.getIndexTreeKey();
+            assertTrue(key + " does not match " + filter, key.startsWith(filter));
+            assertTrue(key + " sorts before " + previous, previous == null || previous.compareTo(key) <= 0);
+            previous = key;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.rigoni.citiesindex;
+
+import com.google.gson.Gson;
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.data.CityCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class CityCodecTest {
+    private static final String TEST_JSON_CITY =
+            "{\"country\":\"RU\",\"name\":\"Mar’ina Roshcha\",\"_id\":529334,\"coord\":{\"lon\":37.611111,\"lat\":55.796391}}";
+    private static final String TEST_JSON_CITY_NO_COORDINATES =
+            "{\"country\":\"TR\",\"name\":\"İstanbul\",\"_id\":745042}";
+
+    private CityCodec mCodec;
+
+    @Before
+    public void createCodec() {
+        mCodec = new CityCodec();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final City city = new Gson().fromJson(TEST_JSON_CITY, City.class);
+        final City decoded = roundTrip(city, null);
+        assertEquals(city.getName(), decoded.getName());
+        assertEquals(city.getCountry(), decoded.getCountry());
+        assertEquals(city.getId(), decoded.getId());
+        assertEquals(city.getLat(), decoded.getLat(), 0);
+        assertEquals(city.getLon(), decoded.getLon(), 0);
+        assertEquals(city.getIndexTreeKey(), decoded.getIndexTreeKey());
+    }
+
+    @Test
+    public void testRoundTripWithoutCoordinates() throws Exception {
+        final City city = new Gson().fromJson(TEST_JSON_CITY_NO_COORDINATES, City.class);
+        final City decoded = roundTrip(city, null);
+        assertEquals(city.getName(), decoded.getName());
+        assertEquals(0, decoded.getLat(), 0);
+        assertEquals(0, decoded.getLon(), 0);
+    }
+
+    @Test
+    public void testKnownKeyIsUsed() throws Exception {
+        final City city = new Gson().fromJson(TEST_JSON_CITY, City.class);
+        final City decoded = roundTrip(city, "known_key");
+        assertEquals("known_key", decoded.getIndexTreeKey());
+    }
+
+    private City roundTrip(final City city, final String key) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        mCodec.write(new DataOutputStream(bytes), city);
+        return mCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), key);
+    }
+}
@@ -0,0 +1,88 @@
+package com.rigoni.citiesindex;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.data.CityJsonCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+
+public class CityJsonCodecTest {
+    private static final String TEST_JSON_CITY =
+            "{\"country\":\"RU\",\"name\":\"Mar’ina Roshcha\",\"_id\":529334,\"coord\":{\"lon\":37.611111,\"lat\":55.796391}}";
+    private static final String TEST_JSON_CITY_NO_COORDINATES =
+            "{\"country\":\"TR\",\"name\":\"İstanbul\",\"_id\":745042}";
+
+    private CityJsonCodec mCodec;
+
+    @Before
+    public void createCodec() {
+        mCodec = new CityJsonCodec();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final City city = new Gson().fromJson(TEST_JSON_CITY, City.class);
+        final City decoded = mCodec.read(reader(write(city)));
+        assertEquals(city.getName(), decoded.getName());
+        assertEquals(city.getCountry(), decoded.getCountry());
+        assertEquals(city.getId(), decoded.getId());
+        assertEquals(city.getLat(), decoded.getLat(), 0);
+        assertEquals(city.getLon(), decoded.getLon(), 0);
+        assertEquals(city.getIndexTreeKey(), decoded.getIndexTreeKey());
+    }
+
+    @Test
+    public void testReadsDocumentsWrittenByGson() throws Exception {
+        final City city = new Gson().fromJson(TEST_JSON_CITY_NO_COORDINATES, City.class);
+        final City decoded = mCodec.read(reader(TEST_JSON_CITY_NO_COORDINATES));
+        assertEquals(city.getName(), decoded.getName());
+        assertEquals(city.getId(), decoded.getId());
+        assertEquals(0, decoded.getLat(), 0);
+        assertEquals(city.getIndexTreeKey(), decoded.getIndexTreeKey());
+    }
+
+    @Test
+    public void testWritesDocumentsReadByGson() throws Exception {
+        final City city = new Gson().fromJson(TEST_JSON_CITY, City.class);
+        final City decoded = new Gson().fromJson(write(city), City.class);
+        assertEquals(city.toString(), decoded.toString());
+        assertEquals(city.getIndexTreeKey(), decoded.getIndexTreeKey());
+    }
+
+    @Test
+    public void testReadKey() throws Exception {
+        final City city = new Gson().fromJson(TEST_JSON_CITY, City.class);
+
+        // Computed from name and country when the document does not carry it
+        assertEquals(city.getIndexTreeKey(), mCodec.readKey(reader(TEST_JSON_CITY)));
+        // Taken from the document otherwise
+        assertEquals(city.getIndexTreeKey(), mCodec.readKey(reader(write(city))));
+    }
+
+    @Test
+    public void testReadKeyConsumesTheEntry() throws Exception {
+        final JsonReader reader = reader("[" + TEST_JSON_CITY + "," + TEST_JSON_CITY_NO_COORDINATES + "]");
+        reader.beginArray();
+        mCodec.readKey(reader);
+        assertEquals("İstanbul", mCodec.read(reader).getName());
+    }
+
+    private String write(final City city) throws IOException {
+        final StringWriter json = new StringWriter();
+        mCodec.write(new JsonWriter(json), city);
+        return json.toString();
+    }
+
+    private static JsonReader reader(final String json) {
+        return new JsonReader(new StringReader(json));
+    }
+}
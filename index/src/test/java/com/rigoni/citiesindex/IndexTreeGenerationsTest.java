@@ -0,0 +1,121 @@
+package com.rigoni.citiesindex;
+
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.data.CityCodec;
+import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.index.IndexTreeGenerations;
+import com.rigoni.citiesindex.index.IndexTreeStorageMmap;
+import com.rigoni.citiesindex.utils.FsUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IndexTreeGenerationsTest {
+    private static final String TEST_JSON_ONE_ENTRY =
+            "[{\"country\":\"NL\",\"name\":\"Amsterdam\",\"_id\":6455342,\"coord\":{\"lon\":2.33333,\"lat\":48.900002}}]";
+    private static final String TEST_JSON_TWO_ENTRIES_SAME_PREFIX =
+            "[{\"country\":\"NL\",\"name\":\"Amsterdam\",\"_id\":6455342,\"coord\":{\"lon\":2.33333,\"lat\":48.900002}},\n" +
+            "{\"country\":\"NL\",\"name\":\"Amstelveen\",\"_id\":2759879,\"coord\":{\"lon\":4.86389,\"lat\":52.30833}}]";
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+    private File mRoot;
+    // The instance under test
+    private IndexTreeGenerations mGenerations;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = new File(mTemporaryFolder.getRoot(), "test_generations");
+        FsUtils.deleteDirectory(mRoot);
+        mGenerations = new IndexTreeGenerations(mRoot);
+    }
+
+    @After
+    public void tearDown() {
+        FsUtils.deleteDirectory(mRoot);
+    }
+
+    @Test
+    public void testStagingIsNotPublished() throws Exception {
+        // Given a generation being built
+        final File staging = mGenerations.createStaging();
+        buildIndex(staging, TEST_JSON_ONE_ENTRY);
+
+        // When nothing was published yet, then no index should be found
+        assertNull(mGenerations.getPublished());
+
+        // And once published, the generation should be found
+        mGenerations.publish(staging);
+        assertEquals(staging, mGenerations.getPublished());
+    }
+
+    @Test
+    public void testOpenIndexKeepsServingDuringRebuild() throws Exception {
+        // Given a published index opened by a reader
+        final File first = mGenerations.createStaging();
+        buildIndex(first, TEST_JSON_ONE_ENTRY);
+        mGenerations.publish(first);
+        final IndexTree reader = openIndex(mGenerations.getPublished());
+
+        // When a new generation is built and published
+        final File second = mGenerations.createStaging();
+        assertNotEquals(first, second);
+        buildIndex(second, TEST_JSON_TWO_ENTRIES_SAME_PREFIX);
+        assertEquals(first, mGenerations.getPublished());
+        mGenerations.publish(second);
+
+        // Then the reader should still query the old index, while the new one is published
+        assertEquals(1, reader.countMatching("amst"));
+        assertEquals(second, mGenerations.getPublished());
+        assertEquals(2, openIndex(mGenerations.getPublished()).countMatching("amst"));
+    }
+
+    @Test
+    public void testOldGenerationsAreDeleted() throws Exception {
+        // Given three generations published one after the other
+        final File first = mGenerations.createStaging();
+        buildIndex(first, TEST_JSON_ONE_ENTRY);
+        mGenerations.publish(first);
+        final File second = mGenerations.createStaging();
+        buildIndex(second, TEST_JSON_ONE_ENTRY);
+        mGenerations.publish(second);
+        final File third = mGenerations.createStaging();
+        buildIndex(third, TEST_JSON_ONE_ENTRY);
+        mGenerations.publish(third);
+
+        // Then only the last two should be kept
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+        assertTrue(third.exists());
+    }
+
+    private IndexTree openIndex(final File generation) {
+        return new IndexTree(new IndexTreeStorageMmap<City>(new CityCodec(), generation.getAbsolutePath(), false));
+    }
+
+    private void buildIndex(final File generation, final String json) {
+        final IndexTree indexTree = openIndex(generation);
+        final JsonArray array = new JsonParser().parse(json).getAsJsonArray();
+        final Gson gson = new GsonBuilder().create();
+        indexTree.initiateBulkInsert();
+        for (int i = 0; i < array.size(); i++) {
+            indexTree.addEntry(gson.fromJson(array.get(i), City.class));
+        }
+        indexTree.finalizeBulkInsert();
+    }
+}
@@ -0,0 +1,224 @@
+package com.rigoni.citiesindex;
+
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.data.CityCodec;
+import com.rigoni.citiesindex.index.IndexTreeStorage;
+import com.rigoni.citiesindex.index.IndexTreeStorageBin;
+import com.rigoni.citiesindex.utils.BinaryUtils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexTreeStorageBinTest extends IndexTreeStorageContractTest {
+    /**
+     * The layouts written by the previous versions of the format, which can still be read.
+     */
+    private static final byte[] BIN_MAGIC = {'C', 'I', 'B', 'N'};
+    private static final int VERSION_WHOLE_KEYS = 2;
+    private static final int VERSION_NO_KEY_INDEX = 1;
+    private static final int KEY_INDEX_OFFSET_OFFSET = 9;
+
+    /**
+     * Not the interval of the current writer, readers take the positions from the key index.
+     */
+    private static final int LEGACY_KEY_INDEX_INTERVAL = 16;
+
+    @Override
+    protected IndexTreeStorage<City> createStorage(final String path, final boolean create) {
+        return new IndexTreeStorageBin<City>(new CityCodec(), path, create);
+    }
+
+    @Test
+    public void testAddCitiesOutsideBulkInsert() {
+        // Given a storage with two cities added one by one
+        addEntriesFromJson(TEST_JSON_TWO_ENTRIES_SAME_PREFIX, mIndexTreeStorage);
+
+        // When the storage is queried with the corresponding prefix
+        final List<City> cities = new ArrayList<>();
+        cities.addAll(mIndexTreeStorage.getEntriesListAtSubPath("a/m/s", 0, COUNT_ALL));
+
+        // Then the two cities should be returned and should be sorted
+        assertEquals(2, cities.size());
+        assertEquals("Amstelveen", cities.get(0).getName());
+        assertEquals("Amsterdam", cities.get(1).getName());
+    }
+
+    @Test
+    public void testFrontCodedKeysAcrossRestartPoints() throws IOException {
+        // Given a storage with a bin holding hundreds of cities sharing long prefixes
+        bulkInsertFromJson(readAsset("cities_prefix_sain.json"));
+        final List<City> cities = new ArrayList<>();
+        cities.addAll(mIndexTreeStorage.getEntriesListAtSubPath("s/a/i/", 0, COUNT_ALL));
+        assertEquals(mIndexTreeStorage.getEntriesCountAtSubPath("s/a/i/"), cities.size());
+
+        // When entries are read starting around the restart points
+        for (final int position : new int[] {1, 31, 32, 33, 64, 100, cities.size() - 1}) {
+            final List<City> read = new ArrayList<>();
+            read.addAll(mIndexTreeStorage.getEntriesListAtSubPath("s/a/i/", position, 1));
+
+            // Then their keys should be decoded as when reading from the beginning
+            assertEquals(cities.get(position).getIndexTreeKey(), read.get(0).getIndexTreeKey());
+            assertEquals(cities.get(position).getName(), read.get(0).getName());
+        }
+
+        // And seeking a key should find its first occurrence
+        final String key = cities.get(100).getIndexTreeKey();
+        final int position = mIndexTreeStorage.seek("s/a/i/", key);
+        assertEquals(key, cities.get(position).getIndexTreeKey());
+        assertEquals(true, position == 0 || cities.get(position - 1).getIndexTreeKey().compareTo(key) < 0);
+    }
+
+    @Test
+    public void testPagesReadFromRestartPoints() throws IOException {
+        // Given a storage with a bin holding hundreds of cities
+        final List<City> cities = readSaintCities();
+
+        // When pages of any size are read from any position
+        for (final int count : new int[] {1, 2, 31, 32, 33, 100}) {
+            for (int start = 0; start < cities.size() + 2; start += 7) {
+                final List<City> read = new ArrayList<>();
+                read.addAll(mIndexTreeStorage.getEntriesListAtSubPath("s/a/i/", start, count));
+
+                // Then they should hold the same entries as the whole bin
+                final List<City> expected = cities.subList(Math.min(start, cities.size()),
+                        Math.min(start + count, cities.size()));
+                assertEquals(expected.size(), read.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i).getIndexTreeKey(), read.get(i).getIndexTreeKey());
+                    assertEquals(expected.get(i).getName(), read.get(i).getName());
+                }
+            }
+        }
+
+        // And seeking any key should find its first occurrence
+        for (int i = 0; i < cities.size(); i++) {
+            final String key = cities.get(i).getIndexTreeKey();
+            final int position = mIndexTreeStorage.seek("s/a/i/", key);
+            assertEquals(key, cities.get(position).getIndexTreeKey());
+            assertEquals(true, position == 0 || cities.get(position - 1).getIndexTreeKey().compareTo(key) < 0);
+        }
+        assertEquals(0, mIndexTreeStorage.seek("s/a/i/", "sai"));
+        assertEquals(cities.size(), mIndexTreeStorage.seek("s/a/i/", "saj"));
+    }
+
+    @Test
+    public void testReadBinWithWholeKeys() throws IOException {
+        // Given a bin written with whole keys and a key index, as by version 2 of the format
+        final List<City> cities = readSaintCities();
+        writeLegacyBin(new File(mIndexDirectory, "s/a/i/entries.bin"), cities, true);
+
+        // When it is read from positions past the first entry and sought, then it should give
+        // the entries of the current layout
+        assertReadAsCities(cities);
+    }
+
+    @Test
+    public void testReadBinWithoutKeyIndex() throws IOException {
+        // Given a bin written with whole keys, no key index and a shorter header, as by
+        // version 1 of the format
+        final List<City> cities = readSaintCities();
+        writeLegacyBin(new File(mIndexDirectory, "s/a/i/entries.bin"), cities, false);
+
+        // When it is read from positions past the first entry and sought, then it should give
+        // the entries of the current layout
+        assertReadAsCities(cities);
+    }
+
+    /**
+     * Bulk inserts the saint cities, which share the s/a/i/ bin.
+     * @return the cities of the bin, as read from the current layout.
+     */
+    private List<City> readSaintCities() throws IOException {
+        bulkInsertFromJson(readAsset("cities_prefix_sain.json"));
+        final List<City> cities = new ArrayList<>();
+        cities.addAll(mIndexTreeStorage.getEntriesListAtSubPath("s/a/i/", 0, COUNT_ALL));
+        assertEquals(true, cities.size() > 4 * LEGACY_KEY_INDEX_INTERVAL);
+        return cities;
+    }
+
+    private void assertReadAsCities(final List<City> cities) {
+        assertEquals(cities.size(), mIndexTreeStorage.getEntriesCountAtSubPath("s/a/i/"));
+        final List<City> all = new ArrayList<>();
+        all.addAll(mIndexTreeStorage.getEntriesListAtSubPath("s/a/i/", 0, COUNT_ALL));
+        assertEquals(cities.size(), all.size());
+
+        // Skipping to positions around the anchors of the key index
+        for (final int position : new int[] {1, 15, 16, 17, 100, cities.size() - 2}) {
+            final List<City> read = new ArrayList<>();
+            read.addAll(mIndexTreeStorage.getEntriesListAtSubPath("s/a/i/", position, 2));
+            assertEquals(2, read.size());
+            for (int i = 0; i < 2; i++) {
+                assertEquals(cities.get(position + i).getIndexTreeKey(), read.get(i).getIndexTreeKey());
+                assertEquals(cities.get(position + i).getName(), read.get(i).getName());
+            }
+        }
+
+        // Seeking keys in the middle of the bin and past its end
+        final String key = cities.get(150).getIndexTreeKey();
+        final int position = mIndexTreeStorage.seek("s/a/i/", key);
+        assertEquals(key, cities.get(position).getIndexTreeKey());
+        assertEquals(true, cities.get(position - 1).getIndexTreeKey().compareTo(key) < 0);
+        assertEquals(cities.size(), mIndexTreeStorage.seek("s/a/i/", "saj"));
+    }
+
+    /**
+     * Writes the cities in a bin with whole keys, with a key index or, as the first version of
+     * the format, without it.
+     */
+    private static void writeLegacyBin(final File file, final List<City> cities, final boolean hasKeyIndex)
+            throws IOException {
+        final CityCodec codec = new CityCodec();
+        final ByteArrayOutputStream bin = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bin);
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream payloadOut = new DataOutputStream(payload);
+        out.write(BIN_MAGIC);
+        out.writeByte(hasKeyIndex ? VERSION_WHOLE_KEYS : VERSION_NO_KEY_INDEX);
+        out.writeInt(cities.size());
+        if (hasKeyIndex) {
+            // Key index offset, set once known.
+            out.writeInt(0);
+        }
+        final List<Integer> anchorOffsets = new ArrayList<>();
+        for (int i = 0; i < cities.size(); i++) {
+            if (i % LEGACY_KEY_INDEX_INTERVAL == 0) {
+                anchorOffsets.add(out.size());
+            }
+            payload.reset();
+            codec.write(payloadOut, cities.get(i));
+            BinaryUtils.writeString(out, cities.get(i).getIndexTreeKey());
+            BinaryUtils.writeVarInt(out, payload.size());
+            payload.writeTo(out);
+        }
+        final int keyIndexOffset = out.size();
+        if (hasKeyIndex) {
+            BinaryUtils.writeVarInt(out, anchorOffsets.size());
+            for (int i = 0; i < anchorOffsets.size(); i++) {
+                BinaryUtils.writeString(out, cities.get(i * LEGACY_KEY_INDEX_INTERVAL).getIndexTreeKey());
+                BinaryUtils.writeVarInt(out, i * LEGACY_KEY_INDEX_INTERVAL);
+                BinaryUtils.writeVarInt(out, anchorOffsets.get(i));
+            }
+        }
+        out.flush();
+        final byte[] bytes = bin.toByteArray();
+        if (hasKeyIndex) {
+            ByteBuffer.wrap(bytes).putInt(KEY_INDEX_OFFSET_OFFSET, keyIndexOffset);
+        }
+        final FileOutputStream fileOut = new FileOutputStream(file);
+        try {
+            fileOut.write(bytes);
+        } finally {
+            fileOut.close();
+        }
+    }
+}
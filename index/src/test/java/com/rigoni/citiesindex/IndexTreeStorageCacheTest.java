@@ -0,0 +1,159 @@
+package com.rigoni.citiesindex;
+
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.index.IndexTreeCancellationToken;
+import com.rigoni.citiesindex.index.IndexTreeCancelledException;
+import com.rigoni.citiesindex.index.IndexTreeStorage;
+import com.rigoni.citiesindex.index.IndexTreeStorageCache;
+import com.google.gson.Gson;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IndexTreeStorageCacheTest {
+    private static final String[] TEST_JSON_SAINT_CITIES = {
+            "{\"country\":\"FR\",\"name\":\"Saint-Avold\",\"_id\":6454369,\"coord\":{\"lon\":6.7,\"lat\":49.099998}}",
+            "{\"country\":\"FR\",\"name\":\"Saint-Fons\",\"_id\":6441760,\"coord\":{\"lon\":4.86667,\"lat\":45.700001}}",
+            "{\"country\":\"FR\",\"name\":\"Saint-Ouen\",\"_id\":6455342,\"coord\":{\"lon\":2.33333,\"lat\":48.900002}}"
+    };
+
+    private IndexTreeStorage<City> mMockIndexTreeStorage;
+    // The instance under test
+    private IndexTreeStorageCache<City> mIndexTreeStorageCache;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        final Set<City> cities = new TreeSet<>();
+        final Gson gson = new Gson();
+        for (final String json : TEST_JSON_SAINT_CITIES) {
+            cities.add(gson.fromJson(json, City.class));
+        }
+
+        mMockIndexTreeStorage = mock(IndexTreeStorage.class);
+        when(mMockIndexTreeStorage.getEntriesListAtSubPath(eq("s/a/i/"), anyInt(), anyInt(),
+                any(IndexTreeCancellationToken.class))).thenReturn(cities);
+        when(mMockIndexTreeStorage.getEntriesListAtSubPath(eq("a/m/s/"), anyInt(), anyInt(),
+                any(IndexTreeCancellationToken.class))).thenReturn(cities);
+        mIndexTreeStorageCache = new IndexTreeStorageCache<>(mMockIndexTreeStorage, 1024 * 1024);
+    }
+
+    @Test
+    public void testBinIsReadOnce() {
+        // When the same bin is read more times
+        mIndexTreeStorageCache.getEntriesListAtSubPath("s/a/i/", 0, 10);
+        mIndexTreeStorageCache.getEntriesListAtSubPath("s/a/i/", 1, 1);
+        mIndexTreeStorageCache.seek("s/a/i/", "saint-f");
+
+        // Then the decorated storage should be read only once
+        verify(mMockIndexTreeStorage, times(1)).getEntriesListAtSubPath(eq("s/a/i/"), anyInt(), anyInt(),
+                any(IndexTreeCancellationToken.class));
+        assertEquals(1, mIndexTreeStorageCache.getMissCount());
+        assertEquals(2, mIndexTreeStorageCache.getHitCount());
+    }
+
+    @Test
+    public void testPagesAndSeekFromCachedBin() {
+        // When a page is requested from the middle of a cached bin
+        final List<City> cities = new ArrayList<>();
+        cities.addAll(mIndexTreeStorageCache.getEntriesListAtSubPath("s/a/i/", 1, 5));
+
+        // Then only the entries from that position should be returned
+        assertEquals(2, cities.size());
+        assertEquals("Saint-Fons", cities.get(0).getName());
+
+        // And seeking should find the first entry not smaller than the key
+        assertEquals(1, mIndexTreeStorageCache.seek("s/a/i/", "saint-f"));
+        assertEquals(3, mIndexTreeStorageCache.seek("s/a/i/", "saint_"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedBinIsEvicted() {
+        // Given a cache with room for a single bin
+        mIndexTreeStorageCache.getEntriesListAtSubPath("s/a/i/", 0, 10);
+        final IndexTreeStorageCache<City> cache = new IndexTreeStorageCache<>(
+                mMockIndexTreeStorage, mIndexTreeStorageCache.getSizeBytes());
+
+        // When two bins are read alternately
+        cache.getEntriesListAtSubPath("s/a/i/", 0, 10);
+        cache.getEntriesListAtSubPath("a/m/s/", 0, 10);
+        cache.getEntriesListAtSubPath("s/a/i/", 0, 10);
+
+        // Then every read should miss
+        assertEquals(3, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void testAddEntryInvalidatesBin() {
+        // Given a cached bin
+        mIndexTreeStorageCache.getEntriesListAtSubPath("s/a/i/", 0, 10);
+
+        // When an entry is added to it
+        final City city = new Gson().fromJson(TEST_JSON_SAINT_CITIES[0], City.class);
+        mIndexTreeStorageCache.addEntryAtSubPath("s/a/i/", city);
+        mIndexTreeStorageCache.getEntriesListAtSubPath("s/a/i/", 0, 10);
+
+        // Then the entry should reach the decorated storage and the bin should be read again
+        verify(mMockIndexTreeStorage).addEntryAtSubPath("s/a/i/", city);
+        assertEquals(2, mIndexTreeStorageCache.getMissCount());
+    }
+
+    @Test
+    public void testBinTooBigIsReadFromStorage() {
+        // Given a bin whose entries cannot fit in the cache
+        final Set<City> page = new TreeSet<>();
+        page.add(new Gson().fromJson(TEST_JSON_SAINT_CITIES[1], City.class));
+        when(mMockIndexTreeStorage.getEntriesCountAtSubPath("s/a/n/")).thenReturn(1000000);
+        when(mMockIndexTreeStorage.getEntriesListAtSubPath(eq("s/a/n/"), eq(500), eq(1),
+                any(IndexTreeCancellationToken.class))).thenReturn(page);
+        when(mMockIndexTreeStorage.seek("s/a/n/", "san_")).thenReturn(42);
+
+        // When a page is read from it and a key is looked for
+        final Set<City> result = mIndexTreeStorageCache.getEntriesListAtSubPath("s/a/n/", 500, 1);
+        final int position = mIndexTreeStorageCache.seek("s/a/n/", "san_");
+
+        // Then both should go straight to the decorated storage, without decoding the bin
+        assertEquals(page, result);
+        assertEquals(42, position);
+        verify(mMockIndexTreeStorage, never()).getEntriesListAtSubPath(eq("s/a/n/"), eq(0), eq(Integer.MAX_VALUE),
+                any(IndexTreeCancellationToken.class));
+        assertEquals(0, mIndexTreeStorageCache.getSizeBytes());
+    }
+
+    @Test
+    public void testTokenIsPassedWhenDecodingBin() {
+        // Given a token whose query is cancelled while the bin is decoded
+        final IndexTreeCancellationToken token = new IndexTreeCancellationToken();
+        when(mMockIndexTreeStorage.getEntriesListAtSubPath(eq("s/a/o/"), eq(0), eq(Integer.MAX_VALUE), eq(token)))
+                .thenThrow(new IndexTreeCancelledException());
+
+        // When a page is read from the bin missing from the cache
+        try {
+            mIndexTreeStorageCache.getEntriesListAtSubPath("s/a/o/", 0, 10, token);
+            fail("The decoding should have been cancelled");
+        } catch (final IndexTreeCancelledException e) {
+            // Expected
+        }
+
+        // Then the token should have reached the decorated storage, and nothing be cached
+        verify(mMockIndexTreeStorage).getEntriesListAtSubPath("s/a/o/", 0, Integer.MAX_VALUE, token);
+        assertEquals(0, mIndexTreeStorageCache.getSizeBytes());
+    }
+}
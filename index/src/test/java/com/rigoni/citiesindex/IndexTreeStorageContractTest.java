@@ -0,0 +1,364 @@
+package com.rigoni.citiesindex;
+
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.index.IndexTreeBulkCheckpoint;
+import com.rigoni.citiesindex.index.IndexTreeStorage;
+import com.rigoni.citiesindex.utils.FsUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The behaviour every {@link IndexTreeStorage} has to share, each implementation runs it from
+ * a subclass creating its storage, next to the tests of its own format.
+ */
+public abstract class IndexTreeStorageContractTest {
+    /** A reasonably high value to use when we want all entries. */
+    protected static final int COUNT_ALL = Integer.MAX_VALUE;
+
+    protected static final String TEST_JSON_ONE_ENTRY =
+            "[{\"country\":\"NL\",\"name\":\"Amsterdam\",\"_id\":6455342,\"coord\":{\"lon\":2.33333,\"lat\":48.900002}}]";
+
+    protected static final String TEST_JSON_TWO_ENTRIES_SAME_PREFIX =
+            "[{\"country\":\"NL\",\"name\":\"Amstelveen\",\"_id\":6455342,\"coord\":{\"lon\":2.33333,\"lat\":48.900002}},\n" +
+            "{\"country\":\"NL\",\"name\":\"Amsterdam\",\"_id\":6455342,\"coord\":{\"lon\":2.33333,\"lat\":48.900002}}]";
+
+    protected static final int TEST_JSON_SAINT_ENTRIES = 16;
+    protected static final String TEST_JSON_SAINT =
+            "[{\"country\":\"FR\",\"name\":\"Saint-Ouen\",\"_id\":6455342,\"coord\":{\"lon\":2.33333,\"lat\":48.900002}},\n" +
+            "{\"country\":\"FR\",\"name\":\"Saint-Fons\",\"_id\":6441760,\"coord\":{\"lon\":4.86667,\"lat\":45.700001}},\n" +
+            "{\"country\":\"FR\",\"name\":\"Saint-Avold\",\"_id\":6454369,\"coord\":{\"lon\":6.7,\"lat\":49.099998}},\n" +
+            "{\"country\":\"GP\",\"name\":\"Sainte-Anne\",\"_id\":6690393,\"coord\":{\"lon\":-61.366669,\"lat\":16.23333}},\n" +
+            "{\"country\":\"US\",\"name\":\"Saint Charles County\",\"_id\":4406835,\"coord\":{\"lon\":-90.733459,\"lat\":38.76672}},\n" +
+            "{\"country\":\"FR\",\"name\":\"Saint-Jean-de-la-Ruelle\",\"_id\":6434715,\"coord\":{\"lon\":1.86667,\"lat\":47.916672}},\n" +
+            "{\"country\":\"FR\",\"name\":\"Saint-Herblain\",\"_id\":6434515,\"coord\":{\"lon\":-1.65,\"lat\":47.216671}},\n" +
+            "{\"country\":\"FR\",\"name\":\"Saint-Étienne\",\"_id\":6614010,\"coord\":{\"lon\":4.4,\"lat\":45.433331}},\n" +
+            "{\"country\":\"FR\",\"name\":\"Saint-Cyr-sur-Loire\",\"_id\":6433106,\"coord\":{\"lon\":0.66667,\"lat\":47.400002}},\n" +
+            "{\"country\":\"IN\",\"name\":\"Sainthia\",\"_id\":1257751,\"coord\":{\"lon\":87.666672,\"lat\":23.950001}},\n" +
+            "{\"country\":\"RU\",\"name\":\"Saint Petersburg\",\"_id\":498817,\"coord\":{\"lon\":30.264168,\"lat\":59.894444}},\n" +
+            "{\"country\":\"CH\",\"name\":\"Saint-Livres\",\"_id\":2658867,\"coord\":{\"lon\":6.38753,\"lat\":46.507938}},\n" +
+            "{\"country\":\"FR\",\"name\":\"Saint-Laurent\",\"_id\":2978954,\"coord\":{\"lon\":4.77193,\"lat\":49.764488}},\n" +
+            "{\"country\":\"FR\",\"name\":\"Saint-Bris-le-Vineux\",\"_id\":2981274,\"coord\":{\"lon\":3.64922,\"lat\":47.743961}},\n" +
+            "{\"country\":\"CA\",\"name\":\"Saint-Bernard-de-Lacolle\",\"_id\":6137509,\"coord\":{\"lon\":-73.415863,\"lat\":45.083382}},\n" +
+            "{\"country\":\"CA\",\"name\":\"Sainte-Marguerite\",\"_id\":6944114,\"coord\":{\"lon\":-67.083893,\"lat\":48.29998}}]";
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+    protected File mIndexDirectory;
+    // The instance under test
+    protected IndexTreeStorage<City> mIndexTreeStorage;
+
+    /**
+     * @param path the directory of the index.
+     * @param create true to create a new index, deleting the existing one, false to open it.
+     * @return the storage under test.
+     */
+    protected abstract IndexTreeStorage<City> createStorage(final String path, final boolean create);
+
+    @Before
+    public void setUp() throws Exception {
+        mIndexDirectory = new File(mTemporaryFolder.getRoot(), "test_index");
+        mIndexTreeStorage = createStorage(mIndexDirectory.getAbsolutePath(), true);
+    }
+
+    @After
+    public void tearDown() {
+        FsUtils.deleteDirectory(mIndexDirectory);
+    }
+
+    @Test
+    public void testAddSingleCity() {
+        // Given a storage with one single city
+        bulkInsertFromJson(TEST_JSON_ONE_ENTRY);
+
+        // When the storage is queried with the corresponding prefix
+        final List<City> cities = new ArrayList<>();
+        cities.addAll(mIndexTreeStorage.getEntriesListAtSubPath("a/m/s", 0, COUNT_ALL));
+
+        // Then the correct city should be returned
+        assertEquals(1, cities.size());
+        assertEquals("Amsterdam", cities.get(0).getName());
+    }
+
+    @Test
+    public void testAddTwoCitiesSameSubPath() {
+        // Given a storage with two cities sharing the same subpath
+        bulkInsertFromJson(TEST_JSON_TWO_ENTRIES_SAME_PREFIX);
+
+        // When the storage is queried with the corresponding prefix
+        final List<City> cities = new ArrayList<>();
+        cities.addAll(mIndexTreeStorage.getEntriesListAtSubPath("a/m/s", 0, COUNT_ALL));
+        assertEquals(2, cities.size());
+
+        // Then the two cities should be returned and should be sorted
+        assertEquals("Amstelveen", cities.get(0).getName());
+        assertEquals("Amsterdam", cities.get(1).getName());
+    }
+
+    @Test
+    public void testAddMultipleCitiesSamePath() {
+        // Given a storage with a known list of cities sharing the same prefix
+        bulkInsertFromJson(TEST_JSON_SAINT);
+
+        // When the storage is queried using the prefix
+        final List<City> cities = new ArrayList<>();
+        cities.addAll(mIndexTreeStorage.getEntriesListAtSubPath("s/a/i/", 0, COUNT_ALL));
+
+        // Then the size of the returned list should match the size of the known list
+        assertEquals(TEST_JSON_SAINT_ENTRIES, cities.size());
+    }
+
+    @Test
+    public void testGetEntriesCountAtSubpath() {
+        // Given a storage with a known list of cities sharing the same prefix
+        bulkInsertFromJson(TEST_JSON_SAINT);
+        // When the amount of entries sharing the prefix is requested
+        final int count = mIndexTreeStorage.getEntriesCountAtSubPath("s/a/i/");
+        // Then the amount of entries returned should match the size of the known list
+        assertEquals(TEST_JSON_SAINT_ENTRIES, count);
+    }
+
+    @Test
+    public void testEntryFieldsAreRestored() {
+        // Given a storage with one single city
+        bulkInsertFromJson(TEST_JSON_ONE_ENTRY);
+
+        // When the city is read back
+        final List<City> cities = new ArrayList<>();
+        cities.addAll(mIndexTreeStorage.getEntriesListAtSubPath("a/m/s", 0, COUNT_ALL));
+
+        // Then all of its fields should match the original ones
+        assertEquals(1, cities.size());
+        assertEquals("Amsterdam", cities.get(0).getName());
+        assertEquals("NL", cities.get(0).getCountry());
+        assertEquals(6455342, cities.get(0).getId());
+        assertEquals(48.900002f, cities.get(0).getLat(), 0);
+        assertEquals(2.33333f, cities.get(0).getLon(), 0);
+        assertEquals("amsterdam_nl", cities.get(0).getIndexTreeKey());
+    }
+
+    @Test
+    public void testSeek() {
+        // Given a storage with a known list of cities sharing the same prefix
+        bulkInsertFromJson(TEST_JSON_SAINT);
+
+        // When the storage is searched for a key
+        final int position = mIndexTreeStorage.seek("s/a/i/", "saint-c");
+
+        // Then the position of the first entry not smaller than the key should be returned
+        assertEquals(3, position);
+        final List<City> cities = new ArrayList<>();
+        cities.addAll(mIndexTreeStorage.getEntriesListAtSubPath("s/a/i/", position, 1));
+        assertEquals("Saint-Cyr-sur-Loire", cities.get(0).getName());
+
+        // And keys bigger than all of the entries should give the entries count
+        assertEquals(TEST_JSON_SAINT_ENTRIES, mIndexTreeStorage.seek("s/a/i/", "sainz"));
+    }
+
+    @Test
+    public void testReopenedIndexServesEntries() {
+        // Given a storage built with a bulk insert, holding cities under two subpaths
+        mIndexTreeStorage.initiateBulkInsert();
+        addEntriesFromJson(TEST_JSON_SAINT, mIndexTreeStorage);
+        addEntriesFromJson(TEST_JSON_ONE_ENTRY, mIndexTreeStorage);
+        mIndexTreeStorage.finalizeBulkInsert();
+
+        // When the index is opened again by a new storage
+        final IndexTreeStorage<City> reopened = createStorage(mIndexDirectory.getAbsolutePath(), false);
+        final List<String> subPaths = reopened.getSubPathsContainingEntriesFrom("");
+
+        // Then both subpaths should be returned, sorted, with the same entries
+        assertEquals(2, subPaths.size());
+        assertEquals("a/m/s/", subPaths.get(0));
+        assertEquals("s/a/i/", subPaths.get(1));
+        assertEquals(TEST_JSON_SAINT_ENTRIES, reopened.getEntriesCountAtSubPath("s/a/i"));
+        assertEquals(TEST_JSON_SAINT_ENTRIES, reopened.getEntriesListAtSubPath("s/a/i/", 0, COUNT_ALL).size());
+    }
+
+    @Test
+    public void testSecondBulkInsertKeepsExistingEntries() {
+        // Given a storage with one single city
+        bulkInsertFromJson(TEST_JSON_ONE_ENTRY);
+
+        // When more cities are added with another bulk insert
+        bulkInsertFromJson(TEST_JSON_SAINT);
+
+        // Then both the old and the new cities should be present
+        assertEquals(1, mIndexTreeStorage.getEntriesCountAtSubPath("a/m/s/"));
+        assertEquals(TEST_JSON_SAINT_ENTRIES, mIndexTreeStorage.getEntriesCountAtSubPath("s/a/i/"));
+    }
+
+    @Test
+    public void testGetSubPathsContainingEntries() {
+        // Given a storage with cities under two different subpaths
+        mIndexTreeStorage.initiateBulkInsert();
+        addEntriesFromJson(TEST_JSON_ONE_ENTRY, mIndexTreeStorage);
+        addEntriesFromJson(TEST_JSON_SAINT, mIndexTreeStorage);
+        mIndexTreeStorage.finalizeBulkInsert();
+
+        // When the subpaths under a prefix are requested
+        final List<String> subPaths = mIndexTreeStorage.getSubPathsContainingEntriesFrom("s/");
+
+        // Then only the subpath holding the saint cities should be returned
+        assertEquals(1, subPaths.size());
+        assertEquals("s/a/i/", subPaths.get(0));
+    }
+
+    @Test
+    public void testEntriesCountRollups() {
+        // Given a storage with cities under two different subpaths
+        mIndexTreeStorage.initiateBulkInsert();
+        addEntriesFromJson(TEST_JSON_ONE_ENTRY, mIndexTreeStorage);
+        addEntriesFromJson(TEST_JSON_SAINT, mIndexTreeStorage);
+        mIndexTreeStorage.finalizeBulkInsert();
+
+        // When the counts are requested at every depth, then they should include the subpaths below
+        assertEquals(TEST_JSON_SAINT_ENTRIES + 1, mIndexTreeStorage.getEntriesCountFrom(""));
+        assertEquals(1, mIndexTreeStorage.getEntriesCountFrom("a/"));
+        assertEquals(TEST_JSON_SAINT_ENTRIES, mIndexTreeStorage.getEntriesCountFrom("s/a/"));
+        assertEquals(TEST_JSON_SAINT_ENTRIES, mIndexTreeStorage.getEntriesCountFrom("s/a/i/"));
+        assertEquals(0, mIndexTreeStorage.getEntriesCountFrom("s/b/"));
+
+        // And the counts before a subpath should include all the subpaths sorting before it
+        assertEquals(0, mIndexTreeStorage.getEntriesCountBefore("a/"));
+        assertEquals(1, mIndexTreeStorage.getEntriesCountBefore("s/"));
+        assertEquals(TEST_JSON_SAINT_ENTRIES + 1, mIndexTreeStorage.getEntriesCountBefore("z/"));
+    }
+
+    @Test
+    public void testBulkInsertResumesFromCheckpoint() {
+        // Given a bulk insert interrupted after a checkpoint, with more cities added after it
+        final IndexTree indexTree = new IndexTree(mIndexTreeStorage);
+        indexTree.initiateBulkInsert(2);
+        addEntriesFromJson(TEST_JSON_ONE_ENTRY, indexTree);
+        indexTree.checkpointBulkInsert(1);
+        addEntriesFromJson(TEST_JSON_TWO_ENTRIES_SAME_PREFIX, indexTree);
+        assertTrue(IndexTreeBulkCheckpoint.isPresent(mIndexDirectory));
+
+        // When the index is opened again by a new storage and the bulk insert is resumed
+        final IndexTree resumed = new IndexTree(createStorage(mIndexDirectory.getAbsolutePath(), false));
+        final long position = resumed.resumeBulkInsert();
+        addEntriesFromJson(TEST_JSON_SAINT, resumed);
+        resumed.finalizeBulkInsert();
+
+        // Then it should go on from the checkpoint, without the cities added after it
+        assertEquals(1, position);
+        assertEquals(1, resumed.countMatching("amst"));
+        assertEquals(0, resumed.countMatching("amstelveen"));
+        assertEquals(TEST_JSON_SAINT_ENTRIES, resumed.countMatching("sain"));
+        assertFalse(IndexTreeBulkCheckpoint.isPresent(mIndexDirectory));
+    }
+
+    @Test
+    public void testInterruptedFinalizationIsResumed() {
+        // Given a checkpointed bulk insert whose finalization fails, as the checkpoint cannot be replaced
+        final IndexTree indexTree = new IndexTree(mIndexTreeStorage);
+        indexTree.initiateBulkInsert(2);
+        addEntriesFromJson(TEST_JSON_ONE_ENTRY, indexTree);
+        addEntriesFromJson(TEST_JSON_SAINT, indexTree);
+        indexTree.checkpointBulkInsert(TEST_JSON_SAINT_ENTRIES + 1);
+        final File blocker = new File(mIndexDirectory, "checkpoint.bin.tmp");
+        assertTrue(new File(blocker, "blocker").mkdirs());
+        try {
+            indexTree.finalizeBulkInsert();
+            fail("The finalization should fail");
+        } catch (final RuntimeException e) {
+            // Expected, the checkpoint is kept.
+        }
+        assertTrue(IndexTreeBulkCheckpoint.isPresent(mIndexDirectory));
+        FsUtils.deleteDirectory(blocker);
+
+        // When the index is opened again by a new storage and the finalization is resumed
+        final IndexTree resumed = new IndexTree(createStorage(mIndexDirectory.getAbsolutePath(), false));
+        final long position = resumed.resumeBulkInsert();
+        resumed.finalizeBulkInsert(position);
+
+        // Then all the cities should be found, and the checkpoint deleted
+        assertEquals(TEST_JSON_SAINT_ENTRIES + 1, position);
+        assertEquals(1, resumed.countMatching("amst"));
+        assertEquals(TEST_JSON_SAINT_ENTRIES, resumed.countMatching("sain"));
+        assertFalse(IndexTreeBulkCheckpoint.isPresent(mIndexDirectory));
+    }
+
+    @Test
+    public void testResumeWithoutCheckpoint() {
+        // Given an index whose bulk insert was never checkpointed, when it is resumed
+        final IndexTree indexTree = new IndexTree(mIndexTreeStorage);
+
+        // Then there should be nothing to resume
+        assertEquals(-1, indexTree.resumeBulkInsert());
+    }
+
+    @Test
+    public void testDeleteIndex() {
+        // Given storage populated with a known list of cities sharing the same prefix
+        bulkInsertFromJson(TEST_JSON_SAINT);
+        // When deletion of the storage is requested
+        mIndexTreeStorage.deleteIndex();
+        // Then a query with the known prefix should return zero items
+        final int count = mIndexTreeStorage.getEntriesCountAtSubPath("s/a/i/");
+        assertEquals(0, count);
+        assertTrue(mIndexTreeStorage.getSubPathsContainingEntriesFrom("").isEmpty());
+    }
+
+    /**
+     * Adds the cities of the json array with a bulk insert.
+     */
+    protected void bulkInsertFromJson(final String json) {
+        mIndexTreeStorage.initiateBulkInsert();
+        addEntriesFromJson(json, mIndexTreeStorage);
+        mIndexTreeStorage.finalizeBulkInsert();
+    }
+
+    protected void addEntriesFromJson(final String json, final IndexTreeStorage<City> storage) {
+        final JsonArray array = new JsonParser().parse(json).getAsJsonArray();
+        final Gson gson = new GsonBuilder().create();
+
+        for (int i = 0; i < array.size(); i++) {
+            final City city = gson.fromJson(array.get(i), City.class);
+            storage.addEntryAtSubPath(IndexTree.createRelativePathFromFilter(city.getIndexTreeKey()), city);
+        }
+    }
+
+    protected void addEntriesFromJson(final String json, final IndexTree indexTree) {
+        final JsonArray array = new JsonParser().parse(json).getAsJsonArray();
+        final Gson gson = new GsonBuilder().create();
+
+        for (int i = 0; i < array.size(); i++) {
+            indexTree.addEntry(gson.fromJson(array.get(i), City.class));
+        }
+    }
+
+    protected String readAsset(final String fileName) throws IOException {
+        final InputStream is = getClass().getClassLoader().getResourceAsStream(fileName);
+        final BufferedReader rd = new BufferedReader(new InputStreamReader(is, "UTF-8"), 4096);
+        final StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = rd.readLine()) != null) {
+            sb.append(line);
+        }
+        rd.close();
+        return sb.toString();
+    }
+}
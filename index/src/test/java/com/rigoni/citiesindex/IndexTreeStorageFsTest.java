@@ -0,0 +1,32 @@
+package com.rigoni.citiesindex;
+
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.index.IndexTreeStorage;
+import com.rigoni.citiesindex.index.IndexTreeStorageFs;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexTreeStorageFsTest extends IndexTreeStorageContractTest {
+    @Override
+    protected IndexTreeStorage<City> createStorage(final String path, final boolean create) {
+        return new IndexTreeStorageFs<City>(City.class, path, create);
+    }
+
+    @Test
+    public void testSingleInsertAfterBulkInsertIsVisible() {
+        // Given a storage built with a bulk insert
+        bulkInsertFromJson(TEST_JSON_SAINT);
+
+        // When a city is added outside of a bulk insert
+        addEntriesFromJson(TEST_JSON_ONE_ENTRY, mIndexTreeStorage);
+
+        // Then its subpath should be listed too
+        final List<String> subPaths = mIndexTreeStorage.getSubPathsContainingEntriesFrom("");
+        assertEquals(2, subPaths.size());
+        assertEquals(1, mIndexTreeStorage.getEntriesCountAtSubPath("a/m/s/"));
+    }
+}
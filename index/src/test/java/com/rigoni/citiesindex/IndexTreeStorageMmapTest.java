@@ -0,0 +1,85 @@
+package com.rigoni.citiesindex;
+
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.data.CityCodec;
+import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.index.IndexTreeBulkCheckpoint;
+import com.rigoni.citiesindex.index.IndexTreeStorage;
+import com.rigoni.citiesindex.index.IndexTreeStorageMmap;
+import com.rigoni.citiesindex.utils.FsUtils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IndexTreeStorageMmapTest extends IndexTreeStorageContractTest {
+    @Override
+    protected IndexTreeStorage<City> createStorage(final String path, final boolean create) {
+        return new IndexTreeStorageMmap<City>(new CityCodec(), path, create);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddEntryOutsideBulkInsertFails() {
+        // Given an empty storage, when a city is added outside of a bulk insert an exception is thrown
+        addEntriesFromJson(TEST_JSON_ONE_ENTRY, mIndexTreeStorage);
+    }
+
+    @Test
+    public void testReadsDoNotTakeTheStorageLock() throws InterruptedException {
+        // Given a storage with a known list of cities, locked as by a bulk insert in progress
+        bulkInsertFromJson(TEST_JSON_SAINT);
+        final AtomicInteger read = new AtomicInteger(-1);
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read.set(mIndexTreeStorage.getEntriesListAtSubPath("s/a/i/", 0, COUNT_ALL).size()
+                        + mIndexTreeStorage.seek("s/a/i/", "sainz")
+                        + mIndexTreeStorage.getEntriesCountAtSubPath("s/a/i/"));
+            }
+        });
+        synchronized (mIndexTreeStorage) {
+            // When the storage is read from another thread
+            reader.start();
+            reader.join(10000);
+
+            // Then the reads should complete without waiting for the lock
+            assertEquals(3 * TEST_JSON_SAINT_ENTRIES, read.get());
+        }
+    }
+
+    @Test
+    public void testResumedFinalizationSkipsWrittenPartitions() {
+        // Given a bulk insert whose finalization fails once the first of two partitions is written
+        final IndexTree indexTree = new IndexTree(mIndexTreeStorage);
+        indexTree.initiateBulkInsert(2);
+        addEntriesFromJson(TEST_JSON_ONE_ENTRY, indexTree);
+        addEntriesFromJson(TEST_JSON_SAINT, indexTree);
+        final File blocker = new File(mIndexDirectory, "data.1.rows.tmp.tmp");
+        assertTrue(new File(blocker, "blocker").mkdirs());
+        try {
+            indexTree.finalizeBulkInsert(TEST_JSON_SAINT_ENTRIES + 1);
+            fail("The finalization should fail");
+        } catch (final RuntimeException e) {
+            // Expected, the data file of the first partition is kept.
+        }
+        assertTrue(new File(mIndexDirectory, "data.0.rows.tmp").exists());
+        FsUtils.deleteDirectory(blocker);
+
+        // When the index is opened again by a new storage and the finalization is resumed
+        final IndexTree resumed = new IndexTree(createStorage(mIndexDirectory.getAbsolutePath(), false));
+        resumed.finalizeBulkInsert(resumed.resumeBulkInsert());
+
+        // Then all the cities should be found, and the data files deleted
+        assertEquals(1, resumed.countMatching("amst"));
+        assertEquals(TEST_JSON_SAINT_ENTRIES, resumed.countMatching("sain"));
+        assertFalse(new File(mIndexDirectory, "data.0.tmp").exists());
+        assertFalse(new File(mIndexDirectory, "data.0.rows.tmp").exists());
+        assertFalse(IndexTreeBulkCheckpoint.isPresent(mIndexDirectory));
+    }
+}
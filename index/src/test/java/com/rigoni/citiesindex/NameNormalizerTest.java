@@ -5,10 +5,13 @@ import com.rigoni.citiesindex.utils.NameNormalizer;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Locale;
+
 import static org.junit.Assert.*;
 
 public class NameNormalizerTest {
     private static final String FORBIDDEN_CHARS = "[|?*.,<>\":+]'/’ ";
+    private static final String FORBIDDEN_CHARS_REGEXP = "[\\[|?*.,<>\":+\\]'/’ ]+";
 
     private NameNormalizer mNameNormalizer;
 
@@ -81,4 +84,56 @@ public class NameNormalizerTest {
         input = "Amster  Dam";
         assertEquals("amster_dam", mNameNormalizer.normalize(input));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testEveryCharacterNormalizedAsLowerCaseAndPattern() throws Exception {
+        for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+            final String input = "A" + (char) c + "b" + (char) c + (char) c + " " + (char) c;
+            assertEquals("Character " + c, normalizeWithPattern(input), mNameNormalizer.normalize(input));
+        }
+    }
+
+    @Test
+    public void testCharactersLowerCasedByContext() throws Exception {
+        final String[] inputs = {
+                "İstanbul", "ΟΔΟΣ ΣΑΣ", "Σ", "ΑΣ, GR", "\uD801\uDC00 Deseret", "Lone \uD801 surrogate"
+        };
+        for (final String input : inputs) {
+            assertEquals(input, normalizeWithPattern(input), mNameNormalizer.normalize(input));
+        }
+    }
+
+    @Test
+    public void testLocaleWithOwnLowerCase() throws Exception {
+        final Locale defaultLocale = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale("tr", "TR"));
+            assertEquals("ısparta_tr", mNameNormalizer.normalize("ISPARTA, TR"));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+        assertEquals("isparta_tr", mNameNormalizer.normalize("ISPARTA, TR"));
+    }
+
+    @Test
+    public void testAppendsToBuilder() throws Exception {
+        final StringBuilder normalized = new StringBuilder("key:");
+        mNameNormalizer.normalize(new StringBuilder("Amster  Dam"), normalized);
+        assertEquals("key:amster_dam", normalized.toString());
+    }
+
+    @Test
+    public void testBufferReusedAcrossNames() throws Exception {
+        final StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longName.append("Amster Dam ");
+        }
+        assertEquals(normalizeWithPattern(longName.toString()), mNameNormalizer.normalize(longName));
+        assertEquals("amsterdam", mNameNormalizer.normalize("Amsterdam"));
+        assertEquals("", mNameNormalizer.normalize(""));
+    }
+
+    private static String normalizeWithPattern(final String name) {
+        return name.toLowerCase().replaceAll(FORBIDDEN_CHARS_REGEXP, "_");
+    }
+}
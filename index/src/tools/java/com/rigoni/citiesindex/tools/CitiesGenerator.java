@@ -0,0 +1,166 @@
+package com.rigoni.citiesindex.tools;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.stream.JsonWriter;
+import com.rigoni.citiesindex.utils.BinaryUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Random;
+
+/**
+ * Writes made up cities in the same json format as the assets of the app, as many as needed,
+ * to test and measure the index at sizes the real file does not reach. The same seed always
+ * gives the same cities.
+ *
+ * Real names are far from uniform: a handful of words start a big share of them (San, Saint,
+ * New, Bad...), some countries hold most of the places and the same name comes back in many
+ * of them. The names are therefore made of an optional common first word, a stem and an
+ * optional suffix, each picked with a Zipf distribution, so that a few prefixes match
+ * hundreds of thousands of cities while most match a handful. Accents and the punctuation
+ * the normalizer replaces show up as well.
+ *
+ * Usage: CitiesGenerator count seed outputFile
+ */
+public final class CitiesGenerator {
+    private static final String[] FIRST_WORDS = {
+            "San ", "Saint-", "Santa ", "New ", "Bad ", "La ", "Le ", "Los ", "North ", "Port ",
+            "Mount ", "Lake ", "El ", "Sainte-", "Fort ", "São ", "Novo", "Ban ", "Kampung ", "Al ",
+            "West ", "East ", "South ", "Villa ", "Puerto ", "Nowa ", "Nizhniy ", "Ust’-", "Kafr ", "Ad "
+    };
+    private static final String[] STEM_SYLLABLES = {
+            "ma", "an", "ber", "li", "ro", "sa", "ka", "to", "ri", "na", "del", "mon", "ha", "ta", "el",
+            "vi", "go", "lo", "ne", "di", "pa", "su", "cha", "ko", "bu", "ra", "wa", "ze", "yo", "qu",
+            "shi", "ny", "ö", "é", "ji", "fa", "xi", "ü", "á", "ø"
+    };
+    private static final String[] SUFFIXES = {
+            "ville", "burg", "ton", "pur", "abad", "ovo", "sk", "heim", "dorf", "field", "stadt",
+            "grad", "hausen", "ia", "o", "ka", "ino", "port", "by", "’ye", " City", " Springs"
+    };
+    private static final String[] COUNTRIES = {
+            "US", "RU", "DE", "FR", "IN", "CN", "BR", "MX", "IT", "ES", "GB", "PL", "ID", "JP", "PH",
+            "UA", "TR", "IR", "NG", "CA", "AU", "AR", "PK", "VN", "NL", "SE", "CZ", "RO", "GR", "ZA"
+    };
+
+    /**
+     * How often a name starts with one of the common first words.
+     */
+    private static final double FIRST_WORD_PROBABILITY = 0.2;
+    private static final double SUFFIX_PROBABILITY = 0.5;
+    private static final int MAX_STEM_SYLLABLES = 3;
+
+    private final Random mRandom;
+    private final ZipfSampler mFirstWords = new ZipfSampler(FIRST_WORDS.length, 1.2);
+    private final ZipfSampler mStemSyllables = new ZipfSampler(STEM_SYLLABLES.length, 1.0);
+    private final ZipfSampler mSuffixes = new ZipfSampler(SUFFIXES.length, 1.1);
+    private final ZipfSampler mCountries = new ZipfSampler(COUNTRIES.length, 1.0);
+
+    /**
+     * Constructor.
+     * @param seed the same seed always gives the same cities.
+     */
+    public CitiesGenerator(final long seed) {
+        mRandom = new Random(seed);
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: CitiesGenerator count seed outputFile");
+            System.exit(1);
+        }
+        final int count = Integer.parseInt(args[0]);
+        final long seed = Long.parseLong(args[1]);
+        final File outputFile = new File(args[2]);
+        final OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputFile));
+        try {
+            new CitiesGenerator(seed).generate(count, outputStream);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Writes the json array of the cities, the stream is not closed.
+     * @param count how many cities to write.
+     */
+    public void generate(final int count, final OutputStream outputStream) throws IOException {
+        Preconditions.checkArgument(count >= 0);
+        Preconditions.checkNotNull(outputStream);
+        final OutputStreamWriter streamWriter = new OutputStreamWriter(outputStream, BinaryUtils.UTF_8);
+        final JsonWriter writer = new JsonWriter(streamWriter);
+        writer.beginArray();
+        for (int i = 0; i < count; i++) {
+            writer.beginObject();
+            writer.name("country").value(COUNTRIES[mCountries.next(mRandom)]);
+            writer.name("name").value(nextName());
+            writer.name("_id").value(i + 1);
+            writer.name("coord").beginObject();
+            writer.name("lon").value(nextCoordinate(180));
+            writer.name("lat").value(nextCoordinate(90));
+            writer.endObject();
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.flush();
+    }
+
+    private String nextName() {
+        final StringBuilder name = new StringBuilder();
+        if (mRandom.nextDouble() < FIRST_WORD_PROBABILITY) {
+            name.append(FIRST_WORDS[mFirstWords.next(mRandom)]);
+        }
+        final int stemStart = name.length();
+        final int syllables = 1 + mRandom.nextInt(MAX_STEM_SYLLABLES);
+        for (int i = 0; i < syllables; i++) {
+            name.append(STEM_SYLLABLES[mStemSyllables.next(mRandom)]);
+        }
+        name.setCharAt(stemStart, Character.toUpperCase(name.charAt(stemStart)));
+        if (mRandom.nextDouble() < SUFFIX_PROBABILITY) {
+            name.append(SUFFIXES[mSuffixes.next(mRandom)]);
+        }
+        return name.toString();
+    }
+
+    /**
+     * @return a coordinate between -range and range, with the 6 decimals of the real file.
+     */
+    private double nextCoordinate(final int range) {
+        return Math.round((mRandom.nextDouble() * 2 - 1) * range * 1e6) / 1e6;
+    }
+
+    /**
+     * Picks ranks between 0 and size - 1, the rank r with a probability proportional to
+     * 1 / (r + 1) ^ exponent.
+     */
+    private static final class ZipfSampler {
+        private final double[] mCumulativeWeights;
+
+        ZipfSampler(final int size, final double exponent) {
+            mCumulativeWeights = new double[size];
+            double total = 0;
+            for (int i = 0; i < size; i++) {
+                total += 1 / Math.pow(i + 1, exponent);
+                mCumulativeWeights[i] = total;
+            }
+        }
+
+        int next(final Random random) {
+            final double value = random.nextDouble() * mCumulativeWeights[mCumulativeWeights.length - 1];
+            int low = 0;
+            int high = mCumulativeWeights.length - 1;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (mCumulativeWeights[middle] <= value) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
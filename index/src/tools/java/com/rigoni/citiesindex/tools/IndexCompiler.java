@@ -0,0 +1,108 @@
+package com.rigoni.citiesindex.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.rigoni.citiesindex.data.City;
+import com.rigoni.citiesindex.data.CityCodec;
+import com.rigoni.citiesindex.data.PrebuiltIndex;
+import com.rigoni.citiesindex.index.IndexTree;
+import com.rigoni.citiesindex.index.IndexTreeStorageMmap;
+import com.rigoni.citiesindex.utils.FsUtils;
+import com.rigoni.citiesindex.utils.StreamUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+/**
+ * Builds the index of each cities file of the assets at build time, on the JVM, the same way
+ * {@link com.rigoni.citiesindex.task.CitiesIndexBuilderTask} builds it on the device.
+ * Each index is written next to the others as an asset, see {@link PrebuiltIndex}.
+ *
+ * Usage: IndexCompiler assetsDirectory outputDirectory
+ */
+public final class IndexCompiler {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private IndexCompiler() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: IndexCompiler assetsDirectory outputDirectory");
+            System.exit(1);
+        }
+        final File assetsDirectory = new File(args[0]);
+        final File outputDirectory = new File(args[1]);
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outputDirectory.getAbsolutePath());
+        }
+
+        final File[] files = assetsDirectory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list assets directory " + assetsDirectory.getAbsolutePath());
+        }
+        for (final File file : files) {
+            if (!file.isFile() || !file.getName().endsWith(PrebuiltIndex.CITIES_FILE_SUFFIX)) continue;
+            final File indexFile = new File(outputDirectory, PrebuiltIndex.getAssetName(file.getName()));
+            final long start = System.currentTimeMillis();
+            final int count = compile(file, indexFile);
+            System.out.println("Compiled " + count + " cities from " + file.getName() + " into "
+                    + indexFile.getName() + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * @return the amount of cities indexed.
+     */
+    private static int compile(final File citiesFile, final File indexFile) throws IOException {
+        final File workDirectory = new File(indexFile.getAbsolutePath() + ".work");
+        FsUtils.deleteDirectory(workDirectory);
+        final IndexTreeStorageMmap<City> storage
+                = new IndexTreeStorageMmap<>(new CityCodec(), workDirectory.getAbsolutePath(), true);
+        final IndexTree indexTree = new IndexTree(storage);
+
+        int count = 0;
+        final InputStream inputStream = new FileInputStream(citiesFile);
+        try {
+            indexTree.initiateBulkInsert(Runtime.getRuntime().availableProcessors());
+            final JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+            final Gson gson = new GsonBuilder().create();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                indexTree.addEntry(gson.<City>fromJson(reader, City.class));
+                count++;
+            }
+            reader.close();
+            indexTree.finalizeBulkInsert();
+            copyFile(storage.getIndexFile(), indexFile);
+        } finally {
+            StreamUtils.closeInputStreamNoThrow(inputStream);
+            FsUtils.deleteDirectory(workDirectory);
+        }
+        return count;
+    }
+
+    private static void copyFile(final File source, final File destination) throws IOException {
+        final InputStream inputStream = new FileInputStream(source);
+        try {
+            final OutputStream outputStream = new FileOutputStream(destination);
+            try {
+                final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while ((read = inputStream.read(buffer)) >= 0) {
+                    outputStream.write(buffer, 0, read);
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+}